@@ -4,10 +4,13 @@ import org.mybatis.spring.annotation.MapperScan;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.EnableAspectJAutoProxy;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 // 指定代理可以被 AopContext 类获取
 @EnableAspectJAutoProxy(exposeProxy = true)
 @MapperScan("com.qqdp.mapper")
+// 开启定时任务
+@EnableScheduling
 @SpringBootApplication
 public class QQRedisApplication {
 
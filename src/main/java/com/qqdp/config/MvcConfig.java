@@ -1,7 +1,11 @@
 package com.qqdp.config;
 
+import com.qqdp.utils.CacheClient;
 import com.qqdp.utils.LoginInterceptor;
+import com.qqdp.utils.RateLimitInterceptor;
+import com.qqdp.utils.RateLimiter;
 import com.qqdp.utils.RefreshTokenInterceptor;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
@@ -13,10 +17,17 @@ import javax.annotation.Resource;
 public class MvcConfig implements WebMvcConfigurer {
     @Resource
     StringRedisTemplate stringRedisTemplate;
+    @Resource
+    CacheClient cacheClient;
+    @Resource
+    RateLimiter rateLimiter;
+    // 信任的反向代理，只从这些地址转发的请求中读取 X-Forwarded-For
+    @Value("${qqdp.rate-limit.trusted-proxies:}")
+    String[] trustedProxies;
 
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
-        registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate))
+        registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate, cacheClient))
                 .addPathPatterns("/**").order(0);
         registry.addInterceptor(new LoginInterceptor()).excludePathPatterns(
                 "/shop/**",
@@ -24,7 +35,11 @@ public class MvcConfig implements WebMvcConfigurer {
                 "/shop-type/**",
                 "/blog/hot",
                 "/user/code",
-                "/user/login"
+                "/user/login",
+                "/warmup/ready"
         ).order(1);
+        // 未登录的请求先被登录拦截器拒绝，不占用限流的次数
+        registry.addInterceptor(new RateLimitInterceptor(rateLimiter, trustedProxies))
+                .addPathPatterns("/**").order(2);
     }
 }
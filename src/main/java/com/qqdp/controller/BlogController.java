@@ -8,6 +8,7 @@ import com.qqdp.entity.Blog;
 import com.qqdp.entity.User;
 import com.qqdp.service.IBlogService;
 import com.qqdp.service.IUserService;
+import com.qqdp.utils.RateLimit;
 import com.qqdp.utils.SystemConstants;
 import com.qqdp.utils.UserHolder;
 import org.springframework.web.bind.annotation.*;
@@ -40,6 +41,7 @@ public class BlogController {
         return blogService.saveBlog(blog);
     }
 
+    @RateLimit(name = "blog:like", limit = 10, period = 10)
     @PutMapping("/like/{id}")
     public Result likeBlog(@PathVariable("id") Long id) {
         return blogService.likeBlog(id);
@@ -0,0 +1,78 @@
+package com.qqdp.controller;
+
+import com.qqdp.dto.Result;
+import com.qqdp.utils.BloomFilters;
+import com.qqdp.utils.CacheClient;
+import com.qqdp.utils.HotKeyDetector;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ * 缓存监控
+ * </p>
+ */
+@RestController
+@RequestMapping("/cache")
+public class CacheController {
+
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private BloomFilters bloomFilters;
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    /**
+     * 查询各个 key 前缀的缓存命中统计
+     *
+     * @return 本地缓存、redis 缓存的命中及未命中次数
+     */
+    @GetMapping("/stats")
+    public Result stats() {
+        return Result.ok(cacheClient.getStats());
+    }
+
+    /**
+     * 查询缓存重建线程池的指标
+     *
+     * @return 队列长度、重建耗时、失败次数等
+     */
+    @GetMapping("/rebuild")
+    public Result rebuild() {
+        return Result.ok(cacheClient.getRebuildStats());
+    }
+
+    /**
+     * 查询布隆过滤器的指标
+     *
+     * @return 内存占用、填充率、理论及实测误判率
+     */
+    @GetMapping("/bloom")
+    public Result bloom() {
+        return Result.ok(bloomFilters.snapshot());
+    }
+
+    /**
+     * 查询访问频率最高的 key 及当前的热点 key
+     *
+     * @return top-K 的 key 及估计的访问次数、热点 key 的剩余晋升时间
+     */
+    @GetMapping("/hot")
+    public Result hot() {
+        return Result.ok(hotKeyDetector.snapshot());
+    }
+
+    /**
+     * 查询各个 key 前缀查询数据库的熔断器状态及舱壁占用
+     *
+     * @return 熔断器状态、窗口内的查询及失败次数、打开次数、正在查询数据库的线程数
+     */
+    @GetMapping("/degrade")
+    public Result degrade() {
+        return Result.ok(cacheClient.getDegradeStats());
+    }
+}
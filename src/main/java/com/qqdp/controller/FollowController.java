@@ -3,6 +3,7 @@ package com.qqdp.controller;
 
 import com.qqdp.dto.Result;
 import com.qqdp.service.IFollowService;
+import com.qqdp.utils.RateLimit;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
@@ -26,6 +27,7 @@ public class FollowController {
         return followService.isFollow(id);
     }
 
+    @RateLimit(name = "follow", algorithm = RateLimit.Algorithm.GCRA, limit = 30, period = 60, burst = 5)
     @PutMapping("/{id}/{isFollow}")
     public Result follow(@PathVariable("id") Long id, @PathVariable("isFollow") Boolean isFollow) {
         return followService.follow(id, isFollow);
@@ -0,0 +1,32 @@
+package com.qqdp.controller;
+
+import com.qqdp.dto.Result;
+import com.qqdp.utils.RedisIdWorker;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ * 全局 id 监控
+ * </p>
+ */
+@RestController
+@RequestMapping("/id")
+public class IdController {
+
+    @Resource
+    private RedisIdWorker redisIdWorker;
+
+    /**
+     * 查询全局 id 的生成方式及指标
+     *
+     * @return 号段剩余数量、雪花算法的 worker id、生成速率、等待下一秒及时钟回拨次数
+     */
+    @GetMapping("/stats")
+    public Result stats() {
+        return Result.ok(redisIdWorker.snapshot());
+    }
+}
@@ -0,0 +1,32 @@
+package com.qqdp.controller;
+
+import com.qqdp.dto.Result;
+import com.qqdp.utils.RateLimiter;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ * 限流监控
+ * </p>
+ */
+@RestController
+@RequestMapping("/rate-limit")
+public class RateLimitController {
+
+    @Resource
+    private RateLimiter rateLimiter;
+
+    /**
+     * 查询各个限流规则的指标
+     *
+     * @return 通过、redis 拒绝、本地拒绝及 redis 异常放行的次数
+     */
+    @GetMapping("/stats")
+    public Result stats() {
+        return Result.ok(rateLimiter.snapshot());
+    }
+}
@@ -47,9 +47,11 @@ public class ShopController {
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
         // 写入数据库
-        shopService.save(shop);
-        // 返回店铺id
-        return Result.ok(shop.getId());
+//        shopService.save(shop);
+//        // 返回店铺id
+//        return Result.ok(shop.getId());
+
+        return shopService.saveShop(shop);
     }
 
     /**
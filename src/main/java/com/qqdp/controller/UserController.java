@@ -9,12 +9,14 @@ import com.qqdp.entity.User;
 import com.qqdp.entity.UserInfo;
 import com.qqdp.service.IUserInfoService;
 import com.qqdp.service.IUserService;
+import com.qqdp.utils.RateLimit;
 import com.qqdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
 import javax.servlet.http.HttpSession;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <p>
@@ -38,6 +40,9 @@ public class UserController {
     /**
      * 发送手机验证码
      */
+    @RateLimit(name = "code:ip", key = RateLimit.KeyType.IP, limit = 20, period = 1, unit = TimeUnit.HOURS)
+    @RateLimit(name = "code:phone", key = RateLimit.KeyType.PHONE, algorithm = RateLimit.Algorithm.GCRA,
+            limit = 1, period = 60)
     @PostMapping("code")
     public Result sendCode(@RequestParam("phone") String phone, HttpSession session) {
         // TODO 发送短信验证码并保存验证码
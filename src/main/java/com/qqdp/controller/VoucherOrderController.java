@@ -3,10 +3,12 @@ package com.qqdp.controller;
 
 import com.qqdp.dto.Result;
 import com.qqdp.service.IVoucherOrderService;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
 
@@ -28,4 +30,36 @@ public class VoucherOrderController {
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    /**
+     * 查询排队进度，轮到该用户时直接下单
+     */
+    @GetMapping("seckill/{id}/ticket/{ticket}")
+    public Result pollSeckillTicket(@PathVariable("id") Long voucherId, @PathVariable("ticket") Long ticket) {
+        return voucherOrderService.pollSeckillTicket(voucherId, ticket);
+    }
+
+    /**
+     * 查询秒杀订单的处理状态，处理中时挂起请求，处理完成或超时后返回
+     */
+    @GetMapping("status/{id}")
+    public DeferredResult<Result> queryOrderStatus(@PathVariable("id") Long orderId) {
+        return voucherOrderService.queryOrderStatus(orderId);
+    }
+
+    /**
+     * 查询订单消息队列的长度、pending 消息数及死信数
+     */
+    @GetMapping("stream/stats")
+    public Result queryOrderStreamStats() {
+        return voucherOrderService.queryOrderStreamStats();
+    }
+
+    /**
+     * 查询本节点缓存的优惠券状态（已售完、未开始、已结束）、直接拒绝的请求数及准入控制的指标
+     */
+    @GetMapping("seckill/states")
+    public Result querySeckillStates() {
+        return voucherOrderService.querySeckillStates();
+    }
 }
@@ -0,0 +1,50 @@
+package com.qqdp.controller;
+
+import com.qqdp.dto.Result;
+import com.qqdp.utils.CacheWarmer;
+import org.springframework.boot.availability.ApplicationAvailability;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ * 缓存预热及就绪检查
+ * </p>
+ */
+@RestController
+@RequestMapping("/warmup")
+public class WarmupController {
+
+    @Resource
+    private CacheWarmer cacheWarmer;
+    @Resource
+    private ApplicationAvailability applicationAvailability;
+
+    /**
+     * 就绪检查，启动时的缓存预热完成前返回 503，负载均衡不会将请求转发到该节点
+     *
+     * @return
+     */
+    @GetMapping("/ready")
+    public ResponseEntity<Result> ready() {
+        ReadinessState state = applicationAvailability.getReadinessState();
+        HttpStatus status = state == ReadinessState.ACCEPTING_TRAFFIC ? HttpStatus.OK : HttpStatus.SERVICE_UNAVAILABLE;
+        return ResponseEntity.status(status).body(Result.ok(state));
+    }
+
+    /**
+     * 查询最近一次预热的进度
+     *
+     * @return 各个任务的状态、条数、批数及耗时
+     */
+    @GetMapping("/stats")
+    public Result stats() {
+        return Result.ok(cacheWarmer.snapshot());
+    }
+}
@@ -0,0 +1,19 @@
+package com.qqdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 秒杀排队凭证，未获得下单资格的用户凭此轮询排队进度
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class SeckillTicket {
+    private Long voucherId;
+    // 排队号
+    private Long ticket;
+    // 前面还有多少人
+    private Long position;
+}
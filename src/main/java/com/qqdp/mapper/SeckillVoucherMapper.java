@@ -2,6 +2,10 @@ package com.qqdp.mapper;
 
 import com.qqdp.entity.SeckillVoucher;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.cursor.Cursor;
+
+import java.time.LocalDateTime;
 
 /**
  * <p>
@@ -13,4 +17,12 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface SeckillVoucherMapper extends BaseMapper<SeckillVoucher> {
 
+    /**
+     * 流式读取未结束的秒杀优惠券，用于启动时预热库存及缓存，需要在事务中遍历
+     *
+     * @param now 当前时间
+     * @return 游标
+     */
+    Cursor<SeckillVoucher> scanActive(@Param("now") LocalDateTime now);
+
 }
@@ -2,6 +2,7 @@ package com.qqdp.mapper;
 
 import com.qqdp.entity.Shop;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.cursor.Cursor;
 
 /**
  * <p>
@@ -13,4 +14,11 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface ShopMapper extends BaseMapper<Shop> {
 
+    /**
+     * 流式读取所有店铺，用于启动时预热缓存，需要在事务中遍历
+     *
+     * @return 游标，遍历时逐行从数据库读取，不会一次性加载到内存
+     */
+    Cursor<Shop> scanAll();
+
 }
@@ -2,6 +2,7 @@ package com.qqdp.mapper;
 
 import com.qqdp.entity.ShopType;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.cursor.Cursor;
 
 /**
  * <p>
@@ -13,4 +14,11 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface ShopTypeMapper extends BaseMapper<ShopType> {
 
+    /**
+     * 按排序流式读取所有店铺类型，用于启动时预热缓存，需要在事务中遍历
+     *
+     * @return 游标
+     */
+    Cursor<ShopType> scanAll();
+
 }
@@ -2,6 +2,9 @@ package com.qqdp.mapper;
 
 import com.qqdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,12 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 一条 insert 语句批量插入订单，主键已存在的订单被忽略
+     *
+     * @param orders 订单
+     * @return 实际插入的行数，不包括被忽略的订单
+     */
+    int insertBatch(@Param("orders") List<VoucherOrder> orders);
+
 }
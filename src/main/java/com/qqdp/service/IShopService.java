@@ -16,6 +16,8 @@ public interface IShopService extends IService<Shop> {
 
     Result queryShopById(Long id);
 
+    Result saveShop(Shop shop);
+
     Result updateShop(Shop shop);
 
     Result queryShopByType(Integer typeId, Integer current, Double x, Double y);
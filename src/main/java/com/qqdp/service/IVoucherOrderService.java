@@ -3,6 +3,9 @@ package com.qqdp.service;
 import com.qqdp.dto.Result;
 import com.qqdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.List;
 
 /**
  * <p>
@@ -19,4 +22,16 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
     Result createVoucherOrder(Long voucherId, Long userId, String stockKey);
 
     void createVoucherOrder(VoucherOrder order);
+
+    void createVoucherOrders(List<VoucherOrder> orders);
+
+    List<Long> cancelUnpaidOrders(List<Long> orderIds);
+
+    Result queryOrderStreamStats();
+
+    Result pollSeckillTicket(Long voucherId, Long ticket);
+
+    DeferredResult<Result> queryOrderStatus(Long orderId);
+
+    Result querySeckillStates();
 }
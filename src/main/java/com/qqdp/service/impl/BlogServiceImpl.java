@@ -17,9 +17,14 @@ import com.qqdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.qqdp.service.IFollowService;
 import com.qqdp.service.IUserService;
+import com.qqdp.utils.BloomFilters;
+import com.qqdp.utils.CacheClient;
+import com.qqdp.utils.HotKeyDetector;
 import com.qqdp.utils.RedisConstants;
 import com.qqdp.utils.SystemConstants;
 import com.qqdp.utils.UserHolder;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.stereotype.Service;
@@ -30,10 +35,8 @@ import org.springframework.web.context.request.ServletRequestAttributes;
 import javax.annotation.Resource;
 import javax.servlet.http.HttpServletRequest;
 import java.time.LocalDateTime;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
@@ -53,6 +56,12 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private BloomFilters bloomFilters;
+    @Resource
+    private HotKeyDetector hotKeyDetector;
 
     /**
      * 保存博客信息
@@ -75,6 +84,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (!save) {
             return Result.fail("保存失败~");
         }
+        // 加入布隆过滤器
+        bloomFilters.add(BloomFilters.BLOG, blog.getId());
 
         long l = LocalDateTimeUtil.toEpochMilli(now);
         // 查询粉丝 select * from tb_follow where follow_user_id = ?
@@ -96,10 +107,32 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
      * @return
      */
     private boolean isLike(String likeKey, String userId) {
+        // 每个用户的查询结果不同，只统计访问频率
+        hotKeyDetector.record(likeKey);
         Double score = stringRedisTemplate.opsForZSet().score(likeKey, userId);
         return score != null;
     }
 
+    /**
+     * 批量判断用户是否点赞博客，通过 pipeline 一次往返查询所有博客
+     *
+     * @param blogVOs 博客列表
+     * @param userId  用户 id
+     */
+    private void setIsLike(List<BlogVO> blogVOs, String userId) {
+        if (blogVOs.isEmpty()) {
+            return;
+        }
+        List<Object> scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            blogVOs.forEach(blogVO -> conn.zScore(RedisConstants.BLOG_LIKED_KEY + blogVO.getId(), userId));
+            return null;
+        });
+        for (int i = 0; i < blogVOs.size(); i++) {
+            blogVOs.get(i).setIsLike(scores.get(i) != null);
+        }
+    }
+
     /**
      * 点赞/取消点赞博客
      *
@@ -128,6 +161,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             // 修改点赞数量
             update().setSql("liked = liked - 1").eq("id", id).update();
         }
+        // 点赞数量已变化，删除博客缓存
+        cacheClient.delete(RedisConstants.CACHE_BLOG_KEY + id);
+        // 点赞用户已变化，删除热点点赞列表的本地缓存
+        cacheClient.evictHot(likeKey);
         return Result.ok();
     }
 
@@ -169,16 +206,15 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询用户
-        List<BlogVO> blogVOList = records.stream().map(record -> {
-            BlogVO blog = BeanUtil.copyProperties(record, BlogVO.class);
-            setBlogger(blog);
-            if (user != null) {
-                // 判断是否点赞
-                blog.setIsLike(isLike(RedisConstants.BLOG_LIKED_KEY + blog.getId(), user.getId().toString()));
-            }
-            return blog;
-        }).collect(Collectors.toList());
+        List<BlogVO> blogVOList = records.stream()
+                .map(record -> BeanUtil.copyProperties(record, BlogVO.class))
+                .collect(Collectors.toList());
+        // 批量查询用户
+        setBloggers(blogVOList);
+        if (user != null) {
+            // 批量判断是否点赞
+            setIsLike(blogVOList, user.getId().toString());
+        }
         return Result.ok(blogVOList);
     }
 
@@ -193,6 +229,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         // 获取登录用户
         UserDTO user = UserHolder.getUser();
 
+        // 布隆过滤器判断一定不存在的博客，不再查询数据库
+        if (!bloomFilters.mightContain(BloomFilters.BLOG, id)) {
+            return Result.fail("博客不存在~");
+        }
         Blog blog = getById(id);
         if (blog == null) {
             return Result.fail("博客不存在~");
@@ -244,25 +284,28 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     public Result likesBlog(Long id) {
         String likeKey = RedisConstants.BLOG_LIKED_KEY + id;
         // 1.查询 top6 的点赞用户 zrange key 0 5
-        Set<String> range = stringRedisTemplate.opsForZSet().
-                range(likeKey, 0, SystemConstants.DEFAULT_PAGE_SIZE);
+        // 所有用户查询的结果相同，热点博客在本地短暂缓存
+        Set<String> range = cacheClient.queryHot(likeKey, () -> stringRedisTemplate.opsForZSet().
+                range(likeKey, 0, SystemConstants.DEFAULT_PAGE_SIZE));
         if (range == null || range.isEmpty()) {
             return Result.ok(Collections.emptyList());
         }
         // 2.解析出其中的用户id
         List<Long> ids = range.stream().map(Long::valueOf).collect(Collectors.toList());
         // 将 id 以逗号拼接
-        String idStr = StrUtil.join(",", ids);
+//        String idStr = StrUtil.join(",", ids);
         // 3.根据用户id查询用户 WHERE id IN ( 5 , 1 , 6) ORDER BY FIELD(id, 5, 1, 6)
-        List<UserDTO> userDTOS = userService.query()
-                // WHERE id IN ( 5 , 1 , 6)
-                .in("id", ids)
-                // 在 sql 语句最后拼接上 ORDER BY FIELD(id, 5, 1, 6)
-                // 表示按照某字段指定排序
-                .last("ORDER BY FIELD(id," + idStr + ")").list()
-                .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
-                .collect(Collectors.toList());
+//        List<UserDTO> userDTOS = userService.query()
+//                // WHERE id IN ( 5 , 1 , 6)
+//                .in("id", ids)
+//                // 在 sql 语句最后拼接上 ORDER BY FIELD(id, 5, 1, 6)
+//                // 表示按照某字段指定排序
+//                .last("ORDER BY FIELD(id," + idStr + ")").list()
+//                .stream()
+//                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
+//                .collect(Collectors.toList());
+        // 批量查询缓存，结果顺序与 ids 一致，因此无需 ORDER BY FIELD
+        List<UserDTO> userDTOS = queryUsers(ids);
 
         return Result.ok(userDTOS);
     }
@@ -309,19 +352,18 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 offset = 1;
             }
         }
-        // 5.根据id查询blog
-        String idStr = StrUtil.join(",", ids);
-        String userId = user.getId().toString();
-        List<BlogVO> blogs = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")")
-                .list().stream().map(blog -> {
-                    BlogVO blogVO = BeanUtil.copyProperties(blog, BlogVO.class);
-                    // 5.1.设置 blog 有关的用户信息
-                    setBlogger(blogVO);
-                    // 5.2.查询 blog 是否被点赞
-                    blogVO.setIsLike(
-                            isLike(RedisConstants.BLOG_LIKED_KEY + blog.getId(), userId));
-                    return blogVO;
-                }).collect(Collectors.toList());
+        // 5.根据id批量查询blog，结果顺序与 ids 一致
+        List<BlogVO> blogs = cacheClient.queryBatch(RedisConstants.CACHE_BLOG_KEY, ids, Blog.class,
+                        missIds -> listByIds(missIds).stream()
+                                .collect(Collectors.toMap(Blog::getId, blog -> blog)),
+                        RedisConstants.CACHE_BLOG_TTL, TimeUnit.MINUTES)
+                .stream()
+                .map(blog -> BeanUtil.copyProperties(blog, BlogVO.class))
+                .collect(Collectors.toList());
+        // 5.1.批量设置 blog 有关的用户信息
+        setBloggers(blogs);
+        // 5.2.批量查询 blog 是否被点赞
+        setIsLike(blogs, user.getId().toString());
 
         // 6.封装并返回
         ScrollResult result = new ScrollResult();
@@ -338,4 +380,34 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         blogVO.setName(user.getNickName());
         blogVO.setIcon(user.getIcon());
     }
+
+    // 批量设置博主信息
+    private void setBloggers(List<BlogVO> blogVOs) {
+        Set<Long> userIds = blogVOs.stream().map(BlogVO::getUserId).collect(Collectors.toSet());
+        Map<Long, UserDTO> users = queryUsers(userIds).stream()
+                .collect(Collectors.toMap(UserDTO::getId, user -> user));
+        blogVOs.forEach(blogVO -> {
+            UserDTO user = users.get(blogVO.getUserId());
+            if (user != null) {
+                blogVO.setName(user.getNickName());
+                blogVO.setIcon(user.getIcon());
+            }
+        });
+    }
+
+    /**
+     * 批量查询用户信息，优先查询缓存
+     * <br>
+     * 缓存只有 {@link RedisConstants#CACHE_USER_TTL} 分钟，修改昵称、头像后最多延迟这段时间生效；
+     * 新增修改用户信息的接口时，需要调用 cacheClient.delete(CACHE_USER_KEY + id) 删除缓存
+     *
+     * @param ids 用户 id
+     * @return 用户信息，顺序与 ids 一致
+     */
+    private List<UserDTO> queryUsers(Collection<Long> ids) {
+        return cacheClient.queryBatch(RedisConstants.CACHE_USER_KEY, ids, UserDTO.class,
+                missIds -> userService.listByIds(missIds).stream()
+                        .collect(Collectors.toMap(User::getId, user -> BeanUtil.copyProperties(user, UserDTO.class))),
+                RedisConstants.CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
 }
@@ -4,8 +4,16 @@ import com.qqdp.entity.SeckillVoucher;
 import com.qqdp.mapper.SeckillVoucherMapper;
 import com.qqdp.service.ISeckillVoucherService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.qqdp.utils.SeckillStock;
+import cn.hutool.core.exceptions.ExceptionUtil;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.List;
+
 /**
  * <p>
  * 秒杀优惠券表，与优惠券是一对一关系 服务实现类
@@ -17,4 +25,45 @@ import org.springframework.stereotype.Service;
 @Service
 public class SeckillVoucherServiceImpl extends ServiceImpl<SeckillVoucherMapper, SeckillVoucher> implements ISeckillVoucherService {
 
+    @Resource
+    private SeckillStock seckillStock;
+
+    // 每人限购数量
+    @Value("${qqdp.seckill.per-user-limit:1}")
+    private int perUserLimit;
+    // 预热在该时间内开始的秒杀活动
+    @Value("${qqdp.seckill.warm-up.lookahead-minutes:60}")
+    private long lookaheadMinutes;
+
+    /**
+     * 将秒杀库存及元数据（开始时间、结束时间、每人限购数量）加载到 redis，已加载的库存不会被覆盖
+     *
+     * @param voucher
+     */
+    @Override
+    public void loadSeckillMeta(SeckillVoucher voucher) {
+        seckillStock.load(voucher.getVoucherId(), voucher.getStock(),
+                voucher.getBeginTime(), voucher.getEndTime(), perUserLimit);
+    }
+
+    /**
+     * 定时预热即将开始及正在进行的秒杀活动，活动开始前元数据已在 redis 中，
+     * 秒杀请求不需要再查询数据库
+     */
+    @Scheduled(initialDelayString = "${qqdp.seckill.warm-up.initial-delay-millis:10000}",
+            fixedDelayString = "${qqdp.seckill.warm-up.interval-millis:60000}")
+    public void warmUp() {
+        try {
+            LocalDateTime now = LocalDateTime.now();
+            // select * from tb_seckill_voucher where end_time > now and begin_time < now + lookahead
+            List<SeckillVoucher> vouchers = query()
+                    .gt("end_time", now)
+                    .lt("begin_time", now.plusMinutes(lookaheadMinutes))
+                    .list();
+            vouchers.forEach(this::loadSeckillMeta);
+            log.debug("秒杀预热完成，共 " + vouchers.size() + " 个优惠券");
+        } catch (Exception e) {
+            log.warn("秒杀预热失败：" + ExceptionUtil.getRootCauseMessage(e));
+        }
+    }
 }
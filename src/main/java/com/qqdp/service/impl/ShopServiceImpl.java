@@ -5,8 +5,6 @@ import cn.hutool.core.convert.Convert;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.qqdp.VO.ShopVO;
 import com.qqdp.dto.Result;
 import com.qqdp.entity.Shop;
@@ -14,9 +12,13 @@ import com.qqdp.entity.ShopType;
 import com.qqdp.mapper.ShopMapper;
 import com.qqdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.qqdp.utils.BloomFilters;
 import com.qqdp.utils.CacheClient;
+import com.qqdp.utils.CacheRebuildExecutor;
+import com.qqdp.utils.ILock;
 import com.qqdp.utils.RedisConstants;
 import com.qqdp.utils.RedisData;
+import com.qqdp.utils.RedisLocks;
 import com.qqdp.utils.SystemConstants;
 import org.springframework.data.geo.Distance;
 import org.springframework.data.geo.GeoResult;
@@ -49,9 +51,12 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     StringRedisTemplate stringRedisTemplate;
     @Resource
     private CacheClient cacheClient;
-
-    // JSON工具
-    private static final ObjectMapper mapper = new ObjectMapper();
+    @Resource
+    private CacheRebuildExecutor cacheRebuildExecutor;
+    @Resource
+    private BloomFilters bloomFilters;
+    @Resource
+    private RedisLocks redisLocks;
 
     /**
      * 查询商铺信息
@@ -82,7 +87,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 //                    Shop.class, s -> getById(s), 20L, TimeUnit.SECONDS);
 
         } catch (Exception e) {
+            // 等待缓存重建超时或数据库不可用，店铺不一定不存在
             e.printStackTrace();
+            return Result.fail("业务繁忙，请稍后再试~");
         }
 
         if (shop == null) {
@@ -100,81 +107,64 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     private Shop queryWithMutex(Long id) {
         Shop shop = null;
 
-        // 先从 redis 中获取缓存
+        // 先从 redis 中获取缓存，与 CacheClient 使用相同的序列化方式
         String key = RedisConstants.CACHE_SHOP_KEY + id;
-        Map<Object, Object> entries = stringRedisTemplate.opsForHash().entries(key);
-        if (!entries.isEmpty()) {
-            // 添加空对象缓存，防止缓存穿透
-            if ("false".equals(entries.get("exist"))) {
-                return null;
-            } else {
-                entries.keySet().stream().forEach(s -> {
-                    if ("null".equals(entries.get(s))) {
-                        entries.put(s, null);
-                    }
-                });
-                shop = BeanUtil.toBean(entries, Shop.class);
-            }
+        shop = cacheClient.get(key, Shop.class);
+        if (shop != null) {
+            return shop;
+        }
+        // 添加空对象缓存，防止缓存穿透
+        if (BooleanUtil.isTrue(stringRedisTemplate.hasKey(key))) {
+            return null;
         } else {
+            ILock lock = shopLock(id);
+            boolean locked;
             try {
-                boolean tryLock = tryLock(id);
-
-                // 若未获取到锁，休眠一段时间后重新获取
-                if (tryLock) {
-                    Thread.sleep(50);
-                    return queryWithMutex(id);
+                // 未获取到锁时等待持有者释放的通知，不再休眠后重试
+                locked = lock.tryLock(RedisConstants.LOCK_SHOP_TTL, RedisConstants.LOCK_SHOP_TTL, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                locked = false;
+            }
+            if (!locked) {
+                // 等待超时，持有者可能刚好重建完成，再读取一次缓存；仍未命中时不能当作店铺不存在
+                shop = cacheClient.get(key, Shop.class);
+                if (shop != null || BooleanUtil.isTrue(stringRedisTemplate.hasKey(key))) {
+                    return shop;
+                }
+                throw new RuntimeException("等待店铺缓存重建超时：" + id);
+            }
+            try {
+                // 获取到锁后二次校验，等待期间其他线程可能已经重建完成
+                shop = cacheClient.get(key, Shop.class);
+                if (shop != null || BooleanUtil.isTrue(stringRedisTemplate.hasKey(key))) {
+                    return shop;
                 }
-                // 获取到锁，查询数据库
+                // 查询数据库
                 shop = getById(id);
-                Map<String, Object> map;
 
                 // 添加空对象缓存，防止缓存穿透
                 if (shop == null) {
-                    map = new HashMap<>();
-                    map.put("exist", "false");
-                    stringRedisTemplate.opsForHash().putAll(key, map);
-                    stringRedisTemplate.expire(key, RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+                    cacheClient.setNull(key);
                 } else {
-                    map = BeanUtil.beanToMap(shop);
-                    for (String s : map.keySet()) {
-                        if (!(map.get(s) instanceof String)) {
-                            map.put(s, map.get(s) + "");
-                        }
-                    }
-                    stringRedisTemplate.opsForHash().putAll(key, map);
-                    stringRedisTemplate.expire(key, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+                    cacheClient.set(key, shop, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
                 }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
             } finally {
                 // 释放锁
-                unlock(id);
+                lock.unlock();
             }
         }
         return shop;
     }
 
     /**
-     * 上锁
+     * 商铺缓存重建的互斥锁，key 为 lock:shop:id
      *
      * @param id
      * @return
      */
-    private boolean tryLock(Long id) {
-        // 判断是否存在这个 key
-        Boolean flag = stringRedisTemplate.opsForValue()
-                .setIfAbsent(RedisConstants.LOCK_SHOP_KEY + id, "1",
-                        RedisConstants.LOCK_SHOP_TTL, TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(flag);
-    }
-
-    /**
-     * 释放锁
-     *
-     * @param id
-     */
-    private void unlock(Long id) {
-        stringRedisTemplate.delete(RedisConstants.LOCK_SHOP_KEY + id);
+    private ILock shopLock(Long id) {
+        return redisLocks.getLock(StrUtil.removePrefix(RedisConstants.LOCK_SHOP_KEY, "lock:") + id);
     }
 
     /**
@@ -188,9 +178,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 
         // 先从 redis 中获取缓存
         String key = RedisConstants.CACHE_SHOP_KEY + id;
-        String value = stringRedisTemplate.opsForValue().get(key);
-        if (!StrUtil.isBlank(value)) {
-            RedisData redisData = mapper.readValue(value, RedisData.class);
+        RedisData redisData = cacheClient.getWithLogicalExpire(key, Shop.class);
+        if (redisData != null) {
             // 添加空对象缓存，防止缓存穿透
             if (redisData.getData() != null) {
                 if (redisData.getExpireTime().isAfter(LocalDateTime.now())) {
@@ -207,57 +196,60 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 
     private Shop saveWithLogicalExpire(Long id) throws Exception {
         Shop shop = null;
+        ILock lock = shopLock(id);
+        // 未获取到锁时等待持有者释放的通知，之后的二次校验会读到其重建的缓存
+        if (!lock.tryLock(RedisConstants.LOCK_SHOP_TTL, RedisConstants.LOCK_SHOP_TTL, TimeUnit.SECONDS)) {
+            return queryWithMutex(id);
+        }
         try {
-            boolean tryLock = tryLock(id);
-            // 未获取到锁，休眠一段时间重新查询
-            if (!tryLock) {
-                Thread.sleep(50);
-                return queryWithMutex(id);
-            }
-
             // 拿到锁后要 DoubleCheck 数据是否过期，防止刚才判断时数据还未更新
             // 先从 redis 中获取缓存
             String key = RedisConstants.CACHE_SHOP_KEY + id;
-            String value = stringRedisTemplate.opsForValue().get(key);
-            if (!StrUtil.isBlank(value)) {
-                RedisData redisData = mapper.readValue(value, RedisData.class);
+            RedisData redisData = cacheClient.getWithLogicalExpire(key, Shop.class);
+            if (redisData != null) {
                 // 添加空对象缓存，防止缓存穿透
                 if (redisData.getData() != null) {
-                    if (redisData.getExpireTime().isAfter(LocalDateTime.now())) {
-                        shop = (Shop) redisData.getData();
-                    } else {
-                        shop = saveShop2Redis(id);
+                    shop = (Shop) redisData.getData();
+                    if (!redisData.getExpireTime().isAfter(LocalDateTime.now())) {
+                        // 已过期，异步重建，当前请求返回旧数据
+                        saveShop2Redis(id);
                     }
                 }
             } else {
-                shop = saveShop2Redis(id);
+                // 没有缓存时没有旧数据可以返回，只能同步查询数据库
+                shop = getById(id);
+                writeShop2Redis(key, shop);
             }
         } finally {
-            unlock(id);
+            lock.unlock();
         }
         return shop;
     }
 
-    private Shop saveShop2Redis(Long id) {
-        Shop shop = getById(id);
+    /**
+     * 交给缓存重建线程池异步查询数据库并存 redis，查询数据库也不占用请求线程
+     *
+     * @param id
+     */
+    private void saveShop2Redis(Long id) {
+        String key = RedisConstants.CACHE_SHOP_KEY + id;
+        cacheRebuildExecutor.submit(key, () -> writeShop2Redis(key, getById(id)));
+    }
 
-        // 新开一个线程存 redis
-        new Thread(() -> {
-            String key = RedisConstants.CACHE_SHOP_KEY + id;
-            RedisData data = new RedisData();
-            // 逻辑过期时间 20min
-            data.setExpireTime(LocalDateTime.now().plusMinutes(20));
-            data.setData(shop);
-            // 物理过期时间 30min
-            try {
-                stringRedisTemplate.opsForValue().set(key, mapper.writeValueAsString(data));
-            } catch (JsonProcessingException e) {
-                e.printStackTrace();
-            }
-            stringRedisTemplate.expire(key, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        }).run();
+    private void writeShop2Redis(String key, Shop shop) {
+        // 逻辑过期时间 20min
+        cacheClient.setWithLogicalExpire(key, shop, 20L, TimeUnit.MINUTES);
+        // 物理过期时间 30min
+        stringRedisTemplate.expire(key, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+    }
 
-        return shop;
+    @Override
+    public Result saveShop(Shop shop) {
+        // 写入数据库
+        save(shop);
+        // 加入布隆过滤器
+        bloomFilters.add(BloomFilters.SHOP, shop.getId());
+        return Result.ok(shop.getId());
     }
 
     @Override
@@ -268,7 +260,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             return Result.fail("店铺不存在~");
         }
         updateById(shop);
-        stringRedisTemplate.delete(RedisConstants.CACHE_SHOP_KEY + id);
+        // 删除 redis 缓存及所有节点的本地缓存
+        cacheClient.delete(RedisConstants.CACHE_SHOP_KEY + id);
         return Result.ok();
     }
 
@@ -331,11 +324,12 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
                     Distance distance = result.getDistance();
                     distanceMap.put(shopIdStr, distance);
                 });
-        // 5.根据 id 查询 Shop
-        String idStr = StrUtil.join(",", ids);
-        List<ShopVO> shopVOS = query().in("id", ids)
-                .last("ORDER BY FIELD(id," + idStr + ")")
-                .list().stream().map(shop -> {
+        // 5.根据 id 批量查询 Shop，优先走缓存，未命中的一次性查询数据库，结果顺序与 ids 一致
+        List<ShopVO> shopVOS = cacheClient.queryBatch(RedisConstants.CACHE_SHOP_KEY, ids, Shop.class,
+                        missIds -> listByIds(missIds).stream()
+                                .collect(Collectors.toMap(Shop::getId, shop -> shop)),
+                        RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES)
+                .stream().map(shop -> {
                     ShopVO shopVO = BeanUtil.copyProperties(shop, ShopVO.class);
                     shopVO.setDistance(distanceMap.get(shop.getId().toString()).getValue());
                     return shopVO;
@@ -1,21 +1,17 @@
 package com.qqdp.service.impl;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.qqdp.dto.Result;
 import com.qqdp.entity.ShopType;
 import com.qqdp.mapper.ShopTypeMapper;
 import com.qqdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.qqdp.utils.CacheClient;
 import com.qqdp.utils.RedisConstants;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -29,45 +25,20 @@ import java.util.stream.Collectors;
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
     @Resource
-    StringRedisTemplate stringRedisTemplate;
-
-
-
-    // JSON工具
-    private static final ObjectMapper mapper = new ObjectMapper();
+    private CacheClient cacheClient;
 
     @Override
     public Result queryTypeList() {
-        List<ShopType> typeList;
-
-        // 先从 redis 中获取缓存
-        String key = RedisConstants.CACHE_SHOP_KEY + "typeList";
-        List<String> range = stringRedisTemplate.opsForList().range(key, 0, -1);
-        if (!range.isEmpty()) {
-            typeList = range.stream().map(s -> {
-                try {
-                    return mapper.readValue(s, ShopType.class);
-                } catch (JsonProcessingException e) {
-                    e.printStackTrace();
-                }
-                return null;
-            }).collect(Collectors.toList());
-        } else {
+        // 先从 redis 中获取缓存，整个列表序列化后存储在一个 key 中
+        String key = RedisConstants.CACHE_SHOP_TYPE_KEY;
+        List<ShopType> typeList = cacheClient.getList(key, ShopType.class);
+        if (typeList == null) {
             typeList = query().orderByAsc("sort").list();
             if (typeList == null) {
                 return Result.fail("店铺分类不存在~");
             }
-            range = typeList.stream().map(shopType -> {
-                try {
-                    return mapper.writeValueAsString(shopType);
-                } catch (JsonProcessingException e) {
-                    e.printStackTrace();
-                }
-                return null;
-            }).collect(Collectors.toList());
-            stringRedisTemplate.opsForList().rightPushAll(key, range);
+            cacheClient.set(key, typeList, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
         }
-        stringRedisTemplate.expire(key, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
         return Result.ok(typeList);
     }
 }
@@ -5,8 +5,6 @@ import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.RandomUtil;
 import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.qqdp.dto.LoginFormDTO;
 import com.qqdp.dto.Result;
 import com.qqdp.dto.UserDTO;
@@ -44,9 +42,8 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
 
     @Resource
     private IFollowService followService;
-
-    // JSON工具
-    private static final ObjectMapper mapper = new ObjectMapper();
+    @Resource
+    private CacheClient cacheClient;
 
     @Override
     public Result sendCode(String phone, HttpSession session) {
@@ -113,21 +110,16 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
 //        session.setAttribute("user", BeanUtil.copyProperties(user, UserDTO.class));
         // 保存到 redis
         String token = UUID.randomUUID().toString(true);
-        try {
-            // 将对象转化为 json 字符串进行存储
-            String value = mapper.writeValueAsString(BeanUtil.copyProperties(user, UserDTO.class));
-            stringRedisTemplate.opsForValue().set(RedisConstants.LOGIN_USER_KEY + token,
-                    value,
-                    RedisConstants.LOGIN_USER_TTL, TimeUnit.SECONDS);
-
-            // 登录成功，将用户关注列表保存到 redis 中
-            loadFollows(user.getId());
-
-            // 登录成功，用户自动签到
-            sign(user.getId());
-        } catch (JsonProcessingException e) {
-            return Result.fail(e.getMessage());
-        }
+        // 将对象序列化后进行存储
+        cacheClient.set(RedisConstants.LOGIN_USER_KEY + token,
+                BeanUtil.copyProperties(user, UserDTO.class),
+                RedisConstants.LOGIN_USER_TTL, TimeUnit.SECONDS);
+
+        // 登录成功，将用户关注列表保存到 redis 中
+        loadFollows(user.getId());
+
+        // 登录成功，用户自动签到
+        sign(user.getId());
 
         return Result.ok(token);
     }
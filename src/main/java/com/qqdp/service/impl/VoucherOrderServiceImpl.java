@@ -1,8 +1,15 @@
 package com.qqdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.date.LocalDateTimeUtil;
+import cn.hutool.core.exceptions.ExceptionUtil;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.thread.ThreadUtil;
 import cn.hutool.core.util.StrUtil;
+import cn.hutool.system.SystemUtil;
 import com.qqdp.dto.Result;
+import com.qqdp.dto.SeckillTicket;
 import com.qqdp.entity.SeckillVoucher;
 import com.qqdp.entity.VoucherOrder;
 import com.qqdp.mapper.VoucherOrderMapper;
@@ -10,22 +17,30 @@ import com.qqdp.service.ISeckillVoucherService;
 import com.qqdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.qqdp.utils.*;
-import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.connection.stream.*;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.LocalDateTime;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -46,39 +61,40 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private CacheClient cacheClient;
     @Resource
     private RedisIdWorker redisIdWorker;
+    @Resource
+    private SeckillStock seckillStock;
+    @Resource
+    private SeckillStates seckillStates;
+    @Resource
+    private SeckillAdmission seckillAdmission;
+    @Resource
+    private SeckillOrderStatus seckillOrderStatus;
+    @Resource
+    private SeckillOrderExpiry seckillOrderExpiry;
+    @Resource
+    private RedisLocks redisLocks;
 
-    // 获取当前类的代理对象，防止事务失效
+    // 当前类的代理对象，防止事务失效，消费线程中无法通过 AopContext 获取，因此延迟注入
+    @Lazy
+    @Resource
     private IVoucherOrderService proxy;
 
     @Override
     public Result seckillVoucher(Long voucherId) {
-        // 1.查询优惠券
-        String stockKey = RedisConstants.SECKILL_STOCK_KEY + voucherId;
-        SeckillVoucher voucher = cacheClient.queryWithPassThrough(
-                RedisConstants.CACHE_SECKILL_VOUCHER_KEY, voucherId, SeckillVoucher.class,
-                id -> {
-                    SeckillVoucher result = seckillVoucherService.getById(id);
-                    if (result != null
-                            && StrUtil.isNotBlank(stringRedisTemplate.opsForValue().get(stockKey))) {
-                        // 数据预热，设置库存缓存
-                        stringRedisTemplate.opsForValue()
-                                .setIfAbsent(stockKey, result.getStock().toString());
-                    }
-                    return result;
-                },
-                RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        if (voucher == null) {
-            return Result.fail("优惠券不存在~");
-        }
-        // 2.判断秒杀是否开始
-        LocalDateTime now = LocalDateTime.now();
-        if (voucher.getBeginTime().isAfter(now)) {
-            return Result.fail("秒杀活动还未开始~");
+        // 0.根据本地状态判断，已售完、未开始、已结束的优惠券直接返回
+        String reason = seckillStates.reject(voucherId);
+        if (reason != null) {
+            return Result.fail(reason);
         }
-        if (voucher.getEndTime().isBefore(now)) {
-            return Result.fail("秒杀活动已结束~");
+        // 0.1.准入控制，超过放行速率的用户领取排队号，订单积压过多时直接拒绝
+        SeckillAdmission.Decision decision = seckillAdmission.admit(voucherId);
+        if (decision == SeckillAdmission.Decision.SHED) {
+            return Result.fail("排队人数过多，请稍后再试~");
         }
-
+        if (decision == SeckillAdmission.Decision.QUEUED) {
+            return Result.ok(seckillAdmission.enqueue(voucherId, UserHolder.getUser().getId()));
+        }
+        // 1.优惠券的活动时间、库存、限购数量均在 lua 脚本中校验，一次 redis 往返完成秒杀
         // 同步下单
 //        return synchronous(voucherId);
         // 异步下单
@@ -86,45 +102,124 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     }
 
     // lua 脚本
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    private static final DefaultRedisScript<List> SECKILL_SCRIPT;
 
     // 加载 lua 脚本
     static {
         SECKILL_SCRIPT = new DefaultRedisScript<>();
         // ClassPathResource 可以获取 class 路径下的资源
         SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
+        SECKILL_SCRIPT.setResultType(List.class);
     }
 
+    // 升级前未分片的消息队列，由第一个消费线程继续消费，避免遗留消息无人处理
+    private static final String LEGACY_ORDER_STREAM = "stream.orders";
+    // 消费异常后的等待时间
+    private static final long ERROR_BACKOFF_MILLIS = 1000L;
+    // 空闲超过该时间且没有 pending 消息的消费者会被删除
+    private static final long CONSUMER_EXPIRE_MILLIS = 3600_000L;
+
+    // 消息队列分片数，按优惠券 id 分片，修改前需确保已有消息消费完成
+    @Value("${qqdp.seckill.stream.shards:4}")
+    private int streamShards;
+    // 每个节点的消费线程数
+    @Value("${qqdp.seckill.stream.consumers:4}")
+    private int streamConsumers;
+    // 每次从每个分片读取的最大消息数，同一批消息在一个事务中写入数据库
+    @Value("${qqdp.seckill.stream.batch-size:200}")
+    private int streamBatchSize;
+    // 消息队列为空时阻塞等待的时间
+    @Value("${qqdp.seckill.stream.block-millis:2000}")
+    private long streamBlockMillis;
+    // 节点标识，作为消费者名称的前缀，默认为 主机名:进程号
+    @Value("${qqdp.seckill.stream.node-id:}")
+    private String nodeId;
+
+    // 是否定时恢复 pending-list 中的消息
+    @Value("${qqdp.seckill.recovery.enabled:true}")
+    private boolean recoveryEnabled;
+    // 消息空闲超过该时间才会被认领，需大于处理一批消息的最长时间
+    @Value("${qqdp.seckill.recovery.min-idle-millis:30000}")
+    private long recoveryMinIdleMillis;
+    // 最大投递次数，超过后转入死信队列
+    @Value("${qqdp.seckill.recovery.max-deliveries:5}")
+    private long recoveryMaxDeliveries;
+    // 每次每个分片最多恢复的消息数
+    @Value("${qqdp.seckill.recovery.batch-size:100}")
+    private long recoveryBatchSize;
+
+    // 已写入数据库的订单的去重窗口
+    @Value("${qqdp.seckill.stream.dedupe-window-seconds:600}")
+    private long dedupeWindowSeconds;
+
+    // 重复投递而直接确认的消息数
+    private final LongAdder deduplicated = new LongAdder();
+    // 恢复处理的消息数
+    private final LongAdder recovered = new LongAdder();
+    // 转入死信队列的消息数
+    private final LongAdder deadLettered = new LongAdder();
+    // 清理的消息数
+    private final LongAdder trimmed = new LongAdder();
+
     // 异步执行数据下单的线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
-    // 存储下单信息的阻塞队列
-    private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
+    private ExecutorService orderExecutor;
+    // 是否继续消费，关闭时设置为 false，消费线程处理完已读取的消息后退出
+    private volatile boolean running = true;
 
     // 在类初始化之后执行，因为当这个类初始化好了之后，随时都是有可能要执行的
     @PostConstruct
     private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        if (StrUtil.isBlank(nodeId)) {
+            nodeId = NetUtil.getLocalHostName() + ":" + SystemUtil.getCurrentPID();
+        }
+        int threads = Math.max(streamConsumers, 1);
+        orderExecutor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("seckill-order-", false));
+        // 将分片分配给消费线程，每个分片至少有一个线程消费，每个线程至少消费一个分片，
+        // 多个节点的消费者属于同一个消费者组，共同分担每个分片的消息
+        for (int i = 0; i < threads; i++) {
+            List<String> streams = new ArrayList<>();
+            for (int shard = i; shard < streamShards; shard += threads) {
+                streams.add(RedisConstants.SECKILL_ORDER_STREAM_KEY + shard);
+            }
+            if (streams.isEmpty()) {
+                streams.add(RedisConstants.SECKILL_ORDER_STREAM_KEY + (i % streamShards));
+            }
+            if (i == 0) {
+                streams.add(LEGACY_ORDER_STREAM);
+            }
+            orderExecutor.submit(new VoucherOrderHandler(nodeId + ":" + i, streams));
+        }
+    }
+
+    // 停止消费，等待已读取的消息处理完成，未处理的消息仍在 pending-list 中，不会丢失
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        running = false;
+        orderExecutor.shutdown();
+        if (!orderExecutor.awaitTermination(streamBlockMillis + 10_000L, TimeUnit.MILLISECONDS)) {
+            log.warn("订单消费线程未能在限定时间内退出");
+        }
     }
 
     // 执行循环下单的任务类
     private class VoucherOrderHandler implements Runnable {
+        // 消费者名称，各个节点、各个线程均不相同
+        private final Consumer consumer;
+        // 消费的消息队列
+        private final List<String> streams;
+
+        VoucherOrderHandler(String consumerName, List<String> streams) {
+            this.consumer = Consumer.from(RedisConstants.SECKILL_ORDER_GROUP, consumerName);
+            this.streams = streams;
+        }
+
         @Override
         public void run() {
             // 若使用 redis 的消息队列，要先创建队列
-            try {
-                stringRedisTemplate.opsForStream().createGroup("stream.orders", "g1");
-            } catch (Exception e) {
-                if (e.getMessage().contains("Consumer Group name already exists")) {
-                    log.debug("消息队列已存在~");
-                } else {
-                    log.error("创建redis消息队列失败~", e);
-                    return;
-                }
+            while (running && !createGroups()) {
+                ThreadUtil.sleep(ERROR_BACKOFF_MILLIS * 5);
             }
-            while (true) {
-                VoucherOrder order;
-
+            while (running) {
                 // 从阻塞队列中获取下单信息并操作下单
 //                try {
 //                    order = orderTasks.take();
@@ -136,78 +231,82 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
                 // 从 redis 消息队列中获取下单信息并操作下单
                 try {
-                    // 1.获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS s1 >
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            // 创建一个消费者
-                            Consumer.from("g1", "c1"),
-                            // 获取一条数据，若队列为空，阻塞两秒，防止 cpu 空转
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            // 从 stream.orders 消息队列中获取最新的一条数据
-                            StreamOffset.create("stream.orders", ReadOffset.lastConsumed())
-                    );
+                    // 1.获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 200 BLOCK 2000 STREAMS s1 s2 > >
+                    List<MapRecord<String, Object, Object>> list = read(ReadOffset.lastConsumed(),
+                            // 每个分片获取一批数据，若队列为空则阻塞等待，防止 cpu 空转
+                            StreamReadOptions.empty().count(streamBatchSize).block(Duration.ofMillis(streamBlockMillis)));
                     // 2.判断订单信息是否为空
                     if (list == null || list.isEmpty()) {
                         // 如果为null，说明没有消息，继续下一次循环
-                        Thread.sleep(200);
                         continue;
                     }
-                    // 解析数据
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    order = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    // 3.创建订单
-                    createVoucherOrder(order);
-                    // 4.确认消息 XACK
-                    stringRedisTemplate.opsForStream().acknowledge("s1", "g1", record.getId());
+                    // 3.创建订单并确认消息，处理失败的消息留在 pending-list 中
+                    handle(list);
                 } catch (Exception e) {
                     log.error("处理订单异常", e);
                     // 处理异常消息
                     // 从消息队列中获取消息后，消息会存放在 pending-list 中，
                     // 直到消息得到确认才从中删除，若出现异常需要在 pending-list 重新获取消息进行处理
                     handlePendingList();
+                    ThreadUtil.sleep(ERROR_BACKOFF_MILLIS);
+                }
+            }
+        }
+
+        // 创建消费者组，从头开始消费，已存在时忽略
+        private boolean createGroups() {
+            for (String stream : streams) {
+                try {
+                    stringRedisTemplate.opsForStream().createGroup(stream, ReadOffset.from("0"),
+                            RedisConstants.SECKILL_ORDER_GROUP);
+                } catch (Exception e) {
+                    if (!ExceptionUtil.getRootCauseMessage(e).contains("BUSYGROUP")) {
+                        log.warn("创建redis消息队列 " + stream + " 失败：" + ExceptionUtil.getRootCauseMessage(e));
+                        return false;
+                    }
                 }
             }
+            log.debug("消费者 " + consumer.getName() + " 开始消费消息队列 " + streams);
+            return true;
+        }
+
+        // 从负责的所有分片中读取消息
+        @SuppressWarnings("unchecked")
+        private List<MapRecord<String, Object, Object>> read(ReadOffset offset, StreamReadOptions options) {
+            StreamOffset<String>[] offsets = streams.stream()
+                    .map(stream -> StreamOffset.create(stream, offset))
+                    .toArray(StreamOffset[]::new);
+            return stringRedisTemplate.opsForStream().read(consumer, options, offsets);
         }
 
         // 操作异常的重试次数
         private int retries;
 
-        // 处理 pending-list 中的消息
+        // 处理 pending-list 中的消息，每个分片从头到尾处理一遍，仍然失败的消息交给 recoverPendingOrders 处理
         private void handlePendingList() {
-            retries = 0;
-            while (true) {
-                try {
-                    // 1.获取pending-list中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS s1 0
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            // 创建一个消费者
-                            Consumer.from("g1", "c1"),
-                            // 获取一条数据
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create("stream.orders", ReadOffset.from("0"))
-                    );
-                    // 2.判断订单信息是否为空
-                    if (list == null || list.isEmpty()) {
-                        // 如果为null，说明没有异常消息，结束循环
-                        break;
-                    }
-                    // 解析数据
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    // 3.创建订单
-                    createVoucherOrder(voucherOrder);
-                    // 4.确认消息 XACK
-                    stringRedisTemplate.opsForStream().acknowledge("s1", "g1", record.getId());
-                    retries = 0;
-                } catch (Exception e) {
-                    if (retries++ > 5) {
-                        log.error("处理 pendding 订单异常", e);
-                        break;
-                    }
+            for (String stream : streams) {
+                retries = 0;
+                String lastId = "0";
+                while (running) {
                     try {
-                        Thread.sleep(20);
-                    } catch (Exception ex) {
-                        ex.printStackTrace();
+                        // 1.获取pending-list中的订单信息 XREADGROUP GROUP g1 c1 COUNT 200 STREAMS s1 0
+                        List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                                consumer, StreamReadOptions.empty().count(streamBatchSize),
+                                StreamOffset.create(stream, ReadOffset.from(lastId)));
+                        // 2.判断订单信息是否为空
+                        if (list == null || list.isEmpty()) {
+                            // 如果为null，说明没有异常消息，结束循环
+                            break;
+                        }
+                        handle(list);
+                        lastId = list.get(list.size() - 1).getId().getValue();
+                        retries = 0;
+                    } catch (Exception e) {
+                        if (retries++ > 5) {
+                            log.error("处理 pendding 订单异常", e);
+                            break;
+                        }
+                        ThreadUtil.sleep(20);
                     }
                 }
             }
@@ -215,7 +314,328 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     }
 
     /**
-     * 创建订单
+     * 批量创建订单并确认消息
+     * <br>
+     * 整批失败时逐条处理，处理失败的消息不确认，留在 pending-list 中等待重试
+     *
+     * @param records 消息
+     * @return 处理失败的消息及异常
+     */
+    private Map<MapRecord<String, ?, ?>, Exception> handle(List<? extends MapRecord<String, ?, ?>> records) {
+        // 解析数据，去重窗口内已经写入数据库的订单直接确认
+        List<Object> persisted = isPersisted(records);
+        List<MapRecord<String, ?, ?>> duplicates = new ArrayList<>();
+        List<VoucherOrder> orders = new ArrayList<>(records.size());
+        List<MapRecord<String, ?, ?>> pending = new ArrayList<>(records.size());
+        for (int i = 0; i < records.size(); i++) {
+            if (Boolean.TRUE.equals(persisted.get(i))) {
+                duplicates.add(records.get(i));
+            } else {
+                pending.add(records.get(i));
+                orders.add(toOrder(records.get(i)));
+            }
+        }
+        if (!duplicates.isEmpty()) {
+            deduplicated.add(duplicates.size());
+            acknowledge(duplicates);
+        }
+        if (orders.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        return handle(pending, orders);
+    }
+
+    private Map<MapRecord<String, ?, ?>, Exception> handle(List<MapRecord<String, ?, ?>> records,
+                                                          List<VoucherOrder> orders) {
+        try {
+            // 在一个事务中批量创建订单
+            proxy.createVoucherOrders(orders);
+            markPersisted(orders);
+            seckillOrderStatus.success(orders);
+            // 开始计时，超时未支付自动取消
+            seckillOrderExpiry.schedule(orders);
+        } catch (Exception e) {
+            // 批量失败时逐条处理，避免一条异常数据导致整批消息都无法确认
+            log.error("批量创建订单失败，逐条处理", e);
+            Map<MapRecord<String, ?, ?>, Exception> failures = new LinkedHashMap<>();
+            for (int i = 0; i < records.size(); i++) {
+                MapRecord<String, ?, ?> record = records.get(i);
+                try {
+                    proxy.createVoucherOrder(orders.get(i));
+                    markPersisted(Collections.singletonList(orders.get(i)));
+                    seckillOrderStatus.success(Collections.singletonList(orders.get(i)));
+                    seckillOrderExpiry.schedule(Collections.singletonList(orders.get(i)));
+                } catch (Exception ex) {
+                    log.error("创建订单失败：" + record.getStream() + " " + record.getId(), ex);
+                    failures.put(record, ex);
+                    continue;
+                }
+                acknowledge(record.getStream(), Collections.singletonList(record.getId()));
+            }
+            return failures;
+        }
+        acknowledge(records);
+        return Collections.emptyMap();
+    }
+
+    // 按分片批量确认消息 XACK
+    private void acknowledge(List<? extends MapRecord<String, ?, ?>> records) {
+        records.stream()
+                .collect(Collectors.groupingBy(MapRecord::getStream,
+                        Collectors.mapping(MapRecord::getId, Collectors.toList())))
+                .forEach(this::acknowledge);
+    }
+
+    // 判断订单是否在去重窗口内已经写入数据库 SISMEMBER seckill:persisted:voucherId orderId
+    private List<Object> isPersisted(List<? extends MapRecord<String, ?, ?>> records) {
+        return stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (MapRecord<String, ?, ?> record : records) {
+                Map<?, ?> value = record.getValue();
+                byte[] key = (RedisConstants.SECKILL_PERSISTED_KEY + value.get("voucherId"))
+                        .getBytes(StandardCharsets.UTF_8);
+                connection.setCommands().sIsMember(key, String.valueOf(value.get("id")).getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+    }
+
+    // 记录已经写入数据库的订单，每个优惠券一个集合，最后一次写入后经过去重窗口时间过期
+    private void markPersisted(List<VoucherOrder> orders) {
+        Map<Long, List<VoucherOrder>> groups = orders.stream().collect(Collectors.groupingBy(VoucherOrder::getVoucherId));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            groups.forEach((voucherId, list) -> {
+                byte[] key = (RedisConstants.SECKILL_PERSISTED_KEY + voucherId).getBytes(StandardCharsets.UTF_8);
+                byte[][] ids = list.stream()
+                        .map(order -> order.getId().toString().getBytes(StandardCharsets.UTF_8))
+                        .toArray(byte[][]::new);
+                connection.setCommands().sAdd(key, ids);
+                connection.keyCommands().expire(key, dedupeWindowSeconds);
+            });
+            return null;
+        });
+    }
+
+    private VoucherOrder toOrder(MapRecord<String, ?, ?> record) {
+        VoucherOrder order = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+        // 消息 id 中包含写入消息队列的时间，即下单时间
+        order.setCreateTime(LocalDateTimeUtil.of(record.getId().getTimestamp()));
+        order.setStatus(1);
+        return order;
+    }
+
+    private void acknowledge(String stream, List<RecordId> ids) {
+        stringRedisTemplate.opsForStream().acknowledge(stream, RedisConstants.SECKILL_ORDER_GROUP,
+                ids.toArray(new RecordId[0]));
+    }
+
+    // 所有订单消息队列，包括升级前未分片的消息队列
+    private List<String> orderStreams() {
+        List<String> streams = new ArrayList<>(streamShards + 1);
+        for (int shard = 0; shard < streamShards; shard++) {
+            streams.add(RedisConstants.SECKILL_ORDER_STREAM_KEY + shard);
+        }
+        streams.add(LEGACY_ORDER_STREAM);
+        return streams;
+    }
+
+    /**
+     * 定时恢复 pending-list 中的消息，并清理已处理的消息
+     * <p>
+     * 1) 所有消费者（包括已宕机节点的消费者）空闲超过阈值的消息通过 XCLAIM 转移给本节点的恢复消费者重新处理，
+     * 多个节点同时恢复时，XCLAIM 的最小空闲时间保证同一条消息只会被一个节点认领
+     * <br>
+     * 2) 投递次数达到上限仍处理失败的消息连同异常信息转入死信队列，并确认原消息
+     * <br>
+     * 3) 通过 XTRIM MINID 删除 pending-list 中最早的消息之前（均已确认）的消息，限制消息队列的内存占用
+     * <br>
+     * 4) 删除长时间空闲且没有 pending 消息的消费者，例如已下线节点的消费者
+     */
+    @Scheduled(initialDelayString = "${qqdp.seckill.recovery.interval-millis:5000}",
+            fixedDelayString = "${qqdp.seckill.recovery.interval-millis:5000}")
+    public void recoverPendingOrders() {
+        if (!recoveryEnabled || !running) {
+            return;
+        }
+        for (String stream : orderStreams()) {
+            try {
+                if (!stringRedisTemplate.hasKey(stream)) {
+                    continue;
+                }
+                recoverPending(stream);
+                trimAcknowledged(stream);
+                removeIdleConsumers(stream);
+            } catch (Exception e) {
+                log.warn("恢复消息队列 " + stream + " 失败：" + ExceptionUtil.getRootCauseMessage(e));
+            }
+        }
+    }
+
+    private void recoverPending(String stream) {
+        // 1.查询 pending-list XPENDING stream g1 - + 100
+        PendingMessages pending = stringRedisTemplate.opsForStream().pending(stream,
+                RedisConstants.SECKILL_ORDER_GROUP, Range.unbounded(), recoveryBatchSize);
+        Map<RecordId, Long> deliveries = new HashMap<>();
+        for (PendingMessage message : pending) {
+            if (message.getElapsedTimeSinceLastDelivery().toMillis() >= recoveryMinIdleMillis) {
+                deliveries.put(message.getId(), message.getTotalDeliveryCount());
+            }
+        }
+        if (deliveries.isEmpty()) {
+            return;
+        }
+        // 2.认领空闲超过阈值的消息 XCLAIM stream g1 recovery 30000 id1 id2 ...
+        byte[] rawStream = stream.getBytes(StandardCharsets.UTF_8);
+        RecordId[] ids = deliveries.keySet().toArray(new RecordId[0]);
+        List<ByteRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                connection.streamCommands().xClaim(rawStream, RedisConstants.SECKILL_ORDER_GROUP,
+                        nodeId + ":recovery", Duration.ofMillis(recoveryMinIdleMillis), ids));
+        List<MapRecord<String, String, String>> records = new ArrayList<>();
+        if (claimed != null) {
+            for (ByteRecord record : claimed) {
+                records.add(record.deserialize(RedisSerializer.string()));
+            }
+        }
+        // 3.消息已被删除但仍在 pending-list 中，无法再处理，直接确认
+        Set<RecordId> claimedIds = records.stream().map(MapRecord::getId).collect(Collectors.toSet());
+        for (RecordId id : ids) {
+            if (!claimedIds.contains(id)
+                    && stringRedisTemplate.opsForStream().range(stream, Range.closed(id.getValue(), id.getValue())).isEmpty()) {
+                acknowledge(stream, Collections.singletonList(id));
+            }
+        }
+        if (records.isEmpty()) {
+            return;
+        }
+        recovered.add(records.size());
+        // 4.重新处理，达到最大投递次数仍失败的消息转入死信队列
+        handle(records).forEach((record, e) -> {
+            // 认领时投递次数加 1
+            if (deliveries.get(record.getId()) + 1 >= recoveryMaxDeliveries) {
+                deadLetter(record, deliveries.get(record.getId()) + 1, e);
+            }
+        });
+    }
+
+    // 将消息连同异常信息转入死信队列，并确认原消息
+    private void deadLetter(MapRecord<String, ?, ?> record, long deliveryCount, Exception e) {
+        Map<String, String> value = new LinkedHashMap<>();
+        record.getValue().forEach((k, v) -> value.put(String.valueOf(k), String.valueOf(v)));
+        value.put("stream", record.getStream());
+        value.put("messageId", record.getId().getValue());
+        value.put("deliveries", String.valueOf(deliveryCount));
+        value.put("error", ExceptionUtil.getRootCauseMessage(e));
+        stringRedisTemplate.opsForStream().add(RedisConstants.SECKILL_ORDER_DLQ_KEY, value);
+        acknowledge(record.getStream(), Collections.singletonList(record.getId()));
+        deadLettered.increment();
+        // 通知用户下单失败
+        seckillOrderStatus.failed(Long.valueOf(value.get("id")), Long.valueOf(value.get("userId")), "下单失败，请稍后重试~");
+        log.error("订单消息处理失败超过 " + deliveryCount + " 次，转入死信队列：" + value);
+    }
+
+    // 删除已确认的消息 XTRIM stream MINID ~ id，需要 redis 6.2 及以上版本
+    private void trimAcknowledged(String stream) {
+        StreamInfo.XInfoGroup group = stringRedisTemplate.opsForStream().groups(stream).stream()
+                .filter(g -> RedisConstants.SECKILL_ORDER_GROUP.equals(g.groupName()))
+                .findFirst().orElse(null);
+        if (group == null) {
+            return;
+        }
+        // pending-list 中最早的消息之前的消息均已确认，没有 pending 消息时最后投递的消息之前的消息均已确认，
+        // 只以一次 XPENDING 汇总的结果为准，lastDeliveredId 先于汇总读取，不会超过汇总时已确认的位置
+        PendingMessagesSummary summary = stringRedisTemplate.opsForStream()
+                .pending(stream, RedisConstants.SECKILL_ORDER_GROUP);
+        if (summary == null) {
+            return;
+        }
+        String minId = summary.getTotalPendingMessages() > 0 ? summary.minMessageId() : group.lastDeliveredId();
+        if (StrUtil.isBlank(minId)) {
+            return;
+        }
+        Object count = stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.execute("XTRIM",
+                stream.getBytes(StandardCharsets.UTF_8), "MINID".getBytes(StandardCharsets.UTF_8),
+                "~".getBytes(StandardCharsets.UTF_8), minId.getBytes(StandardCharsets.UTF_8)));
+        if (count instanceof Long) {
+            trimmed.add((Long) count);
+        }
+    }
+
+    // 删除空闲超过一小时且没有 pending 消息的消费者
+    private void removeIdleConsumers(String stream) {
+        stringRedisTemplate.opsForStream().consumers(stream, RedisConstants.SECKILL_ORDER_GROUP).forEach(consumer -> {
+            if (consumer.pendingCount() == 0 && consumer.idleTimeMs() > CONSUMER_EXPIRE_MILLIS) {
+                stringRedisTemplate.opsForStream().deleteConsumer(stream,
+                        Consumer.from(RedisConstants.SECKILL_ORDER_GROUP, consumer.consumerName()));
+            }
+        });
+    }
+
+    @Override
+    public Result pollSeckillTicket(Long voucherId, Long ticket) {
+        String reason = seckillStates.reject(voucherId);
+        if (reason != null) {
+            return Result.fail(reason);
+        }
+        SeckillTicket waiting = seckillAdmission.poll(voucherId, UserHolder.getUser().getId(), ticket);
+        if (waiting != null) {
+            return Result.ok(waiting);
+        }
+        // 轮到该用户，直接下单
+        return asynchronous(voucherId);
+    }
+
+    @Override
+    public DeferredResult<Result> queryOrderStatus(Long orderId) {
+        Long userId = UserHolder.getUser().getId();
+        if (seckillOrderStatus.query(orderId, userId) == null) {
+            // 状态已过期或不是秒杀订单，查询数据库，已取消的订单返回已取消
+            DeferredResult<Result> result = new DeferredResult<>();
+            VoucherOrder order = query().select("status").eq("id", orderId).eq("user_id", userId).one();
+            if (order == null) {
+                result.setResult(Result.fail("订单不存在~"));
+            } else if (order.getStatus() != null && order.getStatus() == 4) {
+                result.setResult(Result.ok(SeckillOrderStatus.of(orderId, SeckillOrderStatus.Status.CANCELLED,
+                        SeckillOrderStatus.CANCELLED_REASON)));
+            } else {
+                result.setResult(Result.ok(SeckillOrderStatus.of(orderId, SeckillOrderStatus.Status.SUCCESS, null)));
+            }
+            return result;
+        }
+        // 等待订单处理完成
+        return seckillOrderStatus.watch(orderId, userId);
+    }
+
+    @Override
+    public Result querySeckillStates() {
+        Map<String, Object> snapshot = seckillStates.snapshot();
+        snapshot.put("admission", seckillAdmission.snapshot());
+        snapshot.put("orderStatus", seckillOrderStatus.snapshot());
+        snapshot.put("expiry", seckillOrderExpiry.snapshot());
+        return Result.ok(snapshot);
+    }
+
+    @Override
+    public Result queryOrderStreamStats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (String stream : orderStreams()) {
+            if (!stringRedisTemplate.hasKey(stream)) {
+                continue;
+            }
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("length", stringRedisTemplate.opsForStream().size(stream));
+            map.put("pending", stringRedisTemplate.opsForStream()
+                    .pending(stream, RedisConstants.SECKILL_ORDER_GROUP).getTotalPendingMessages());
+            result.put(stream, map);
+        }
+        result.put("deadLetters", stringRedisTemplate.opsForStream().size(RedisConstants.SECKILL_ORDER_DLQ_KEY));
+        result.put("deduplicated", deduplicated.sum());
+        result.put("recovered", recovered.sum());
+        result.put("deadLettered", deadLettered.sum());
+        result.put("trimmed", trimmed.sum());
+        return Result.ok(result);
+    }
+
+    /**
+     * 创建订单，数据库库存不足时抛出异常，订单随事务回滚
      *
      * @param order
      */
@@ -223,21 +643,91 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Transactional
     public void createVoucherOrder(VoucherOrder order) {
         Long voucherId = order.getVoucherId();
+        // 创建订单，订单已存在说明是重复投递的消息，不再扣减库存
+        if (getBaseMapper().insertBatch(Collections.singletonList(order)) == 0) {
+            return;
+        }
         // 使用乐观锁防止超卖，除此之外还可以新增一个版本号字段，但失败率较高
         boolean success = seckillVoucherService.update()
                 .setSql("stock = stock - 1")
-                .gt("stock", 1)
+                .gt("stock", 0)
                 .eq("voucher_id", voucherId).update();
         if (!success) {
-            log.error("库存不足，下单失败");
+            // 回滚订单，消息留在 pending-list 中，重试失败后转入死信队列
+            throw new IllegalStateException("库存不足，下单失败：" + voucherId);
         }
-        // 创建订单
-        save(order);
+    }
+
+    /**
+     * 批量创建订单，每个优惠券只执行一次 insert 和一次库存扣减
+     * <br>
+     * 以消息中的订单 id 作为主键，已存在的订单被忽略，只按实际插入的订单数扣减库存，
+     * 因此同一条消息被重复投递或被多个消费者同时处理时，订单和库存都不会重复
+     *
+     * @param orders
+     */
+    @Override
+    @Transactional
+    public void createVoucherOrders(List<VoucherOrder> orders) {
+        if (orders.isEmpty()) {
+            return;
+        }
+        // 按优惠券 id 排序后依次处理，多个线程同时处理时加锁顺序一致，避免死锁
+        Map<Long, List<VoucherOrder>> groups = orders.stream().collect(
+                Collectors.groupingBy(VoucherOrder::getVoucherId, TreeMap::new, Collectors.toList()));
+        groups.forEach((voucherId, list) -> {
+            // 先创建订单，其他事务正在插入同一个订单时会等待其提交后忽略
+            int count = getBaseMapper().insertBatch(list);
+            if (count == 0) {
+                return;
+            }
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + count)
+                    .ge("stock", count)
+                    .eq("voucher_id", voucherId).update();
+            if (!success) {
+                // 回滚整批，由调用方逐条处理
+                throw new IllegalStateException("库存不足，批量下单失败：" + voucherId);
+            }
+        });
+    }
+
+    /**
+     * 取消未支付的订单并归还数据库库存，已支付的订单不受影响
+     * <br>
+     * 先锁定未支付的订单再修改，与支付并发时只有一方成功；按优惠券 id 排序归还库存，避免死锁
+     *
+     * @param orderIds 订单 id
+     * @return 所有已取消的订单 id，包括之前已取消的，调用方据此归还 redis 库存
+     */
+    @Override
+    @Transactional
+    public List<Long> cancelUnpaidOrders(List<Long> orderIds) {
+        if (orderIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // 1.锁定未支付的订单 select id, voucher_id from tb_voucher_order where id in (...) and status = 1 for update
+        List<VoucherOrder> unpaid = query().select("id", "voucher_id")
+                .in("id", orderIds).eq("status", 1).last("for update").list();
+        if (!unpaid.isEmpty()) {
+            // 2.修改为已取消
+            update().set("status", 4).set("update_time", LocalDateTime.now())
+                    .in("id", unpaid.stream().map(VoucherOrder::getId).collect(Collectors.toList()))
+                    .eq("status", 1).update();
+            // 3.归还库存
+            unpaid.stream().collect(Collectors.groupingBy(VoucherOrder::getVoucherId, TreeMap::new, Collectors.counting()))
+                    .forEach((voucherId, count) -> seckillVoucherService.update()
+                            .setSql("stock = stock + " + count)
+                            .eq("voucher_id", voucherId).update());
+        }
+        // 4.查询所有已取消的订单
+        return query().select("id").in("id", orderIds).eq("status", 4).list()
+                .stream().map(VoucherOrder::getId).collect(Collectors.toList());
     }
 
     /**
      * 异步下单，将校验和具体下单分开执行，在 redis 中进行资格校验，
-     * 成功后将数据存入阻塞队列，异步执行具体下单的步骤
+     * 成功后将数据存入消息队列，异步执行具体下单的步骤
      *
      * @param voucherId
      * @return
@@ -247,31 +737,81 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         Long userId = UserHolder.getUser().getId();
         // 获取订单号
         long orderId = redisIdWorker.nextId("order");
-        // 执行 lua 脚本进行库存和一人一单校验
-        Long result = stringRedisTemplate.execute(SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString(), String.valueOf(orderId));
+        // 执行 lua 脚本进行活动时间、库存和一人一单校验
+        List<Long> result = executeSeckill(voucherId, userId, orderId);
+        long code = result.get(0);
+        if (code == 3) {
+            // 优惠券未预热，查询数据库后加载到 redis 再重试
+            SeckillVoucher voucher = cacheClient.queryWithPassThrough(
+                    RedisConstants.CACHE_SECKILL_VOUCHER_KEY, voucherId, SeckillVoucher.class,
+                    seckillVoucherService::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            if (voucher == null) {
+                return Result.fail("优惠券不存在~");
+            }
+            seckillVoucherService.loadSeckillMeta(voucher);
+            result = executeSeckill(voucherId, userId, orderId);
+            code = result.get(0);
+            if (code == 3) {
+                return Result.fail("业务繁忙~");
+            }
+        }
         // 2.判断结果是否为0
-        if (result > 0) {
-            // 2.1.不为0 ，代表没有购买资格
-            return Result.fail(result == 1 ? "库存不足~" : "无法重复购买~");
+        if (code == 4) {
+            seckillStates.notStarted(voucherId, result.get(1));
+            return Result.fail("秒杀活动还未开始~");
         }
-        // 获得原始的事务对象
-        if (proxy == null) {
-            proxy = (IVoucherOrderService) AopContext.currentProxy();
+        if (code == 5) {
+            seckillStates.ended(voucherId);
+            return Result.fail("秒杀活动已结束~");
         }
-        // 将订单信息保存到阻塞队列，异步执行数据库下单操作
-        VoucherOrder voucherOrder = new VoucherOrder();
-        voucherOrder.setVoucherId(voucherId);
-        voucherOrder.setId(redisIdWorker.nextId("order"));
-        voucherOrder.setCreateTime(LocalDateTime.now());
-        voucherOrder.setUserId(userId);
-        voucherOrder.setStatus(1);
-        orderTasks.add(voucherOrder);
+        if (code > 0) {
+            // 2.1.不为0 ，代表没有购买资格，库存不足时通知所有节点
+            if (code == 1) {
+                seckillStates.soldOut(voucherId);
+            }
+            return Result.fail(code == 1 ? "库存不足~" : "无法重复购买~");
+        }
+        // 2.2.下单成功，若本地认为已售完，说明库存已被补充
+        seckillStates.available(voucherId);
+        // 订单信息已由 lua 脚本写入消息队列，消费线程以同一个订单 id 写入数据库
         // 3.返回订单id
         return Result.ok(orderId);
     }
 
+    /**
+     * 执行秒杀脚本，脚本只操作用户所在段的 key（同一个 slot），该段已售完时依次从相邻的段借用一个库存后重试
+     *
+     * @return {结果, 附加数据}，结果含义见 seckill.lua
+     */
+    @SuppressWarnings("unchecked")
+    private List<Long> executeSeckill(Long voucherId, Long userId, long orderId) {
+        int segments = seckillStock.getSegments();
+        int home = seckillStock.homeSegment(userId);
+        List<String> keys = Arrays.asList(seckillStock.metaKey(voucherId, home),
+                seckillStock.stockKey(voucherId, home),
+                seckillStock.orderKey(voucherId, home), seckillStock.streamKey(voucherId, home),
+                seckillStock.orderCountKey(voucherId, home),
+                seckillStock.orderBitmapKey(voucherId, home));
+        List<Long> result = null;
+        for (int i = 0; i < segments; i++) {
+            // 借用的库存可能被同一段的其他用户抢走，此时继续向下一个段借用
+            if (i > 0 && !seckillStock.borrow(voucherId, (home + i) % segments, home)) {
+                continue;
+            }
+            result = stringRedisTemplate.execute(SECKILL_SCRIPT, keys,
+                    voucherId.toString(), userId.toString(), String.valueOf(orderId),
+                    String.valueOf(seckillStock.bitmapOffset(userId)));
+            if (result.get(0) != 1) {
+                break;
+            }
+        }
+        if (result.get(0) == 0) {
+            // 订单状态设为处理中，状态 key 按订单 id 查询，与段不在同一个 slot，因此不在脚本中写入
+            seckillOrderStatus.pending(orderId, userId);
+        }
+        return result;
+    }
+
     /**
      * 同步下单，校验完成后直接进行真正的下单，期间会操作多次数据库，效率低下
      *
@@ -279,29 +819,37 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
      * @return
      */
     private Result synchronous(Long voucherId) {
-        String stockKey = RedisConstants.SECKILL_STOCK_KEY + voucherId;
+        Long userId = UserHolder.getUser().getId();
+        String stockKey = seckillStock.stockKey(voucherId, seckillStock.homeSegment(userId));
         // 判断库存是否充足
         String stock = stringRedisTemplate.opsForValue().get(stockKey);
-        if (Integer.parseInt(stock) < 1) {
+        if (stock == null || Integer.parseInt(stock) < 1) {
             return Result.fail("库存不足~");
         }
         // 如果锁加在方法内部，因为该方法被 spring 的事务控制，
         // 会导致当前方法事务还没有提交，但是锁已经释放也会导致问题，
         // 所以选择将当前方法整体包裹起来，确保事务不会出现问题
-        Long userId = UserHolder.getUser().getId();
         // 使用分布式系统或集群模式下多进程可见并且互斥的锁
-        SimpleRedisLock simpleRedisLock = new SimpleRedisLock(stringRedisTemplate,
-                voucherId + ":" + userId);
-        if (simpleRedisLock.tryLock(10)) {
+        // 可重入锁由看门狗续期，业务执行时间超过有效时间也不会丢失锁
+//        ILock lock = new SimpleRedisLock(stringRedisTemplate, voucherId + ":" + userId);
+        // 锁被占用时等待释放的通知，而不是直接失败
+        ILock lock = redisLocks.getLock("order:" + voucherId + ":" + userId);
+        try {
+            if (!lock.tryLock(3, 10, TimeUnit.SECONDS)) {
+                return Result.fail("业务繁忙~");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Result.fail("业务繁忙~");
+        }
+        try {
             // 调用的方法，其实是this.的方式调用的，事务想要生效，
             // 还得利用代理来生效，所以这个地方，我们需要获得原始的事务对象，来操作事务
             // return this.createVoucherOrder(voucherId, userId, stockKey);
-            if (proxy == null) {
-                proxy = (IVoucherOrderService) AopContext.currentProxy();
-            }
             return proxy.createVoucherOrder(voucherId, userId, stockKey);
+        } finally {
+            lock.unlock();
         }
-        return Result.fail("业务繁忙~");
 
         // 单机情况的锁
 //        synchronized (voucherId + ":" + userId) {
@@ -334,7 +882,7 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         // 使用乐观锁防止超卖，除此之外还可以新增一个版本号字段，但失败率较高
         boolean success = seckillVoucherService.update()
                 .setSql("stock = stock - 1")
-                .gt("stock", 1)
+                .gt("stock", 0)
                 .eq("voucher_id", voucherId).update();
         if (!success) {
             stringRedisTemplate.opsForValue().increment(stockKey);
@@ -7,6 +7,7 @@ import com.qqdp.mapper.VoucherMapper;
 import com.qqdp.entity.SeckillVoucher;
 import com.qqdp.service.ISeckillVoucherService;
 import com.qqdp.service.IVoucherService;
+import com.qqdp.utils.BloomFilters;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -26,6 +27,8 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
 
     @Resource
     private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private BloomFilters bloomFilters;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -47,5 +50,9 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
+        // 保存秒杀库存及元数据到 redis
+        seckillVoucherService.loadSeckillMeta(seckillVoucher);
+        // 加入布隆过滤器，事务提交前加入只会多放行，不会误拦截
+        bloomFilters.add(BloomFilters.VOUCHER, voucher.getId());
     }
 }
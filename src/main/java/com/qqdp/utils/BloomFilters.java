@@ -0,0 +1,176 @@
+package com.qqdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.qqdp.mapper.BlogMapper;
+import com.qqdp.mapper.SeckillVoucherMapper;
+import com.qqdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 店铺、秒杀券、博客的布隆过滤器
+ * <p>
+ * 启动完成后异步加载：redis 中存在构建完成标记时直接加载位数组，否则从数据库分页读取全部 id 构建后写入 redis，
+ * 加载完成前过滤器不生效。新增数据时调用 {@link #add(String, Object)}，
+ * 写入 redis 并通知所有节点更新本地位数组，因此新增的数据不会被误拦截。
+ */
+@Slf4j
+@Component
+public class BloomFilters {
+    public static final String SHOP = "shop";
+    public static final String VOUCHER = "voucher";
+    public static final String BLOG = "blog";
+
+    // 构建时每次从数据库读取的 id 数量
+    private static final int PAGE_SIZE = 10000;
+
+    @Resource
+    private RedisTemplate<String, byte[]> cacheRedisTemplate;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private ShopMapper shopMapper;
+    @Resource
+    private SeckillVoucherMapper seckillVoucherMapper;
+    @Resource
+    private BlogMapper blogMapper;
+
+    // 是否开启布隆过滤器
+    @Value("${qqdp.bloom.enabled:false}")
+    private boolean enabled;
+    // 每个过滤器预计的数据量
+    @Value("${qqdp.bloom.expected-insertions:1000000}")
+    private long expectedInsertions;
+    // 期望误判率
+    @Value("${qqdp.bloom.fpp:0.01}")
+    private double fpp;
+
+    private final Map<String, RedisBloomFilter> filters = new LinkedHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        filters.put(SHOP, new RedisBloomFilter(SHOP, expectedInsertions, fpp, cacheRedisTemplate));
+        filters.put(VOUCHER, new RedisBloomFilter(VOUCHER, expectedInsertions, fpp, cacheRedisTemplate));
+        filters.put(BLOG, new RedisBloomFilter(BLOG, expectedInsertions, fpp, cacheRedisTemplate));
+        cacheClient.registerBloomFilter(RedisConstants.CACHE_SHOP_KEY, filters.get(SHOP));
+        cacheClient.registerBloomFilter(RedisConstants.CACHE_SECKILL_VOUCHER_KEY, filters.get(VOUCHER));
+        cacheClient.registerBloomFilter(RedisConstants.CACHE_BLOG_KEY, filters.get(BLOG));
+        // 订阅新增数据的通知，消息格式为 过滤器名称:id
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            RedisBloomFilter filter = filters.get(StrUtil.subBefore(body, ":", false));
+            if (filter != null) {
+                filter.addLocal(StrUtil.subAfter(body, ":", false));
+            }
+        }, new ChannelTopic(RedisConstants.BLOOM_FILTER_ADD_CHANNEL));
+    }
+
+    /**
+     * 启动完成后异步加载过滤器，不阻塞启动，redis 或数据库不可用时过滤器保持不生效
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void load() {
+        if (!enabled) {
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            load(filters.get(SHOP), shopMapper, "id");
+            load(filters.get(VOUCHER), seckillVoucherMapper, "voucher_id");
+            load(filters.get(BLOG), blogMapper, "id");
+        }, "bloom-filter-loader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private <T> void load(RedisBloomFilter filter, BaseMapper<T> mapper, String idColumn) {
+        long begin = System.currentTimeMillis();
+        try {
+            if (filter.load()) {
+                log.info("布隆过滤器 {} 从 redis 加载完成，耗时 {}ms", filter.getName(), System.currentTimeMillis() - begin);
+                return;
+            }
+            // redis 中不存在或未构建完成，按 id 分页读取数据库，只查询 id 列
+            long lastId = 0;
+            long count = 0;
+            while (true) {
+                List<Object> ids = mapper.selectObjs(new QueryWrapper<T>()
+                        .select(idColumn).gt(idColumn, lastId).orderByAsc(idColumn).last("limit " + PAGE_SIZE));
+                if (ids.isEmpty()) {
+                    break;
+                }
+                filter.putAll(ids);
+                count += ids.size();
+                lastId = ((Number) ids.get(ids.size() - 1)).longValue();
+                if (ids.size() < PAGE_SIZE) {
+                    break;
+                }
+            }
+            filter.flush();
+            log.info("布隆过滤器 {} 从数据库构建完成，共 {} 条数据，耗时 {}ms",
+                    filter.getName(), count, System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            log.error("布隆过滤器 " + filter.getName() + " 加载失败，过滤器不生效", e);
+        }
+    }
+
+    /**
+     * 新增数据，写入 redis 并通知所有节点
+     *
+     * @param name 过滤器名称
+     * @param id   数据 id
+     */
+    public void add(String name, Object id) {
+        RedisBloomFilter filter = filters.get(name);
+        if (filter == null || id == null) {
+            return;
+        }
+        filter.add(id);
+        stringRedisTemplate.convertAndSend(RedisConstants.BLOOM_FILTER_ADD_CHANNEL, name + ":" + id);
+    }
+
+    /**
+     * 判断数据是否可能存在，未开启时一律认为存在
+     *
+     * @param name 过滤器名称
+     * @param id   数据 id
+     * @return false 表示一定不存在
+     */
+    public boolean mightContain(String name, Object id) {
+        RedisBloomFilter filter = filters.get(name);
+        return filter == null || filter.mightContain(id);
+    }
+
+    /**
+     * 获取各个过滤器的内存占用及误判率
+     *
+     * @return
+     */
+    public Map<String, Map<String, Object>> snapshot() {
+        Map<String, Map<String, Object>> result = new LinkedHashMap<>();
+        filters.forEach((name, filter) -> result.put(name, filter.snapshot()));
+        return result;
+    }
+}
@@ -1,13 +1,29 @@
 package com.qqdp.utils;
 
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
 import cn.hutool.core.util.*;
-import cn.hutool.json.*;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 /**
  * Redis 缓存工具
@@ -21,26 +37,423 @@ import java.util.function.Function;
  * 也设置成 static，若设置成静态属性，将无法通过构造器或注解注入，需要通过
  * set方法注入、@PostConstruct、MethodInvokingFactoryBean等方法注入，
  * 需要重新配置 stringRedisTemplate，比较麻烦。
+ * <p>
+ * 缓存数据通过 {@link CacheCodecs} 序列化（默认 json），以字节形式读写 redis。
+ * <p>
+ * 可选的本地缓存（L1）：对配置的 key 前缀，在 redis（L2）之前先查询进程内的 LRU 缓存，
+ * 命中时既不需要网络往返，也不需要 json 反序列化。本地缓存的过期时间要短于 redis，
+ * 数据更新时通过 {@link #delete(String)} 删除 redis 缓存并发布失效消息，所有节点收到后删除本地缓存；
+ * 逻辑过期的数据重建时覆盖写入，同样发布失效消息。从 redis 读到的数据在本地的缓存时间不超过其在 redis 中的剩余过期时间。
+ * <p>
+ * 所有经过本地缓存查询的 key 都由 {@link HotKeyDetector} 统计访问频率，未开启本地缓存的前缀中
+ * 被探测为热点的 key 也会在本地短暂缓存，分摊单个 key 对 redis 的访问压力。
+ * <p>
+ * 可以为 key 前缀注册布隆过滤器，过滤器判断一定不存在的 id 直接返回 null，
+ * 既不查询 redis 也不查询数据库，也不会写入空值缓存。
+ * <p>
+ * 数据库降级：对配置的 key 前缀，查询数据库时经过舱壁（限制同时查询数据库的线程数）和熔断器，
+ * 写缓存时同时写入一份过期时间较长的影子副本。数据库查询失败、过慢导致熔断器打开或舱壁已满时，
+ * 返回影子副本中的旧数据，且不写回缓存，也不写入空值，数据库恢复后由下一次查询重建；
+ * 没有影子副本时快速失败，不会堆积等待数据库的线程。
+ * <p>
+ * 写入缓存的过期时间随机延长一部分，避免同一批写入的 key 同时过期。
  */
 @Component
 public class CacheClient {
     private final StringRedisTemplate stringRedisTemplate;
 
-    // 线程池
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
     // NULL 数据缓存过期时间 - 2分钟
     private static final long CACHE_NULL_TTL = 2L;
     // redis 锁前缀
     private static final String LOCK_KEY = "lock:";
+    // 等待缓存重建的最长时间，与互斥锁的过期时间一致
+    private static final long REBUILD_WAIT_MILLIS = 10_000L;
+
+    // 以字节形式读写缓存数据
+    @Resource
+    private RedisTemplate<String, byte[]> cacheRedisTemplate;
+    @Resource
+    private CacheCodecs cacheCodecs;
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+    // 缓存重建线程池
+    @Resource
+    private CacheRebuildExecutor rebuildExecutor;
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    // 逻辑过期的数据在过期前的这段时间内随机提前刷新
+    @Value("${qqdp.cache.rebuild.refresh-ahead-millis:2000}")
+    private long refreshAheadMillis;
+
+    // 是否开启本地缓存
+    @Value("${qqdp.cache.local.enabled:false}")
+    private boolean localEnabled;
+    // 本地缓存最大容量，超出后按 LRU 淘汰
+    @Value("${qqdp.cache.local.capacity:10000}")
+    private int localCapacity;
+    // 本地缓存过期时间，实际取与 redis 过期时间中较短的一个
+    @Value("${qqdp.cache.local.ttl-seconds:10}")
+    private long localTtlSeconds;
+    // 开启本地缓存的 key 前缀
+    @Value("${qqdp.cache.local.prefixes:}")
+    private String[] localPrefixes;
+
+    // 缓存过期时间随机延长的最大比例
+    @Value("${qqdp.cache.ttl-jitter:0.1}")
+    private double ttlJitter;
+
+    // 是否开启数据库降级
+    @Value("${qqdp.cache.degrade.enabled:true}")
+    private boolean degradeEnabled;
+    // 开启数据库降级的 key 前缀
+    @Value("${qqdp.cache.degrade.prefixes:}")
+    private String[] degradePrefixes;
+    // 熔断器打开的失败率
+    @Value("${qqdp.cache.degrade.failure-rate:0.5}")
+    private double failureRate;
+    // 统计窗口内至少查询多少次才计算失败率
+    @Value("${qqdp.cache.degrade.minimum-calls:20}")
+    private int minimumCalls;
+    // 熔断器的统计窗口
+    @Value("${qqdp.cache.degrade.window-seconds:10}")
+    private long windowSeconds;
+    // 超过该时间的查询视为失败
+    @Value("${qqdp.cache.degrade.slow-call-millis:1000}")
+    private long slowCallMillis;
+    // 熔断器打开后经过多长时间放行试探查询
+    @Value("${qqdp.cache.degrade.open-seconds:10}")
+    private long openSeconds;
+    // 每个 key 前缀同时查询数据库的最大线程数
+    @Value("${qqdp.cache.degrade.max-concurrent:20}")
+    private int maxConcurrent;
+    // 舱壁已满时等待的最长时间
+    @Value("${qqdp.cache.degrade.bulkhead-wait-millis:50}")
+    private long bulkheadWaitMillis;
+    // 影子副本的过期时间
+    @Value("${qqdp.cache.degrade.shadow-ttl-hours:24}")
+    private long shadowTtlHours;
+
+    // 本地缓存，hutool 的 LRUCache 内部加锁，线程安全
+    private LRUCache<String, Object> localCache;
+    // 各个 key 前缀的命中统计
+    private final Map<String, CacheStats> stats = new ConcurrentHashMap<>();
+    // 本进程内正在重建的缓存，同一个 key 的并发请求共享同一个结果
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    // 等待其他节点重建缓存的通知
+    private final Map<String, CompletableFuture<Void>> rebuildWaiters = new ConcurrentHashMap<>();
+    // 各个 key 前缀对应的布隆过滤器
+    private final Map<String, RedisBloomFilter> bloomFilters = new ConcurrentHashMap<>();
+    // 各个 key 前缀查询数据库的熔断器及舱壁
+    private final Map<String, DegradeGuard> guards = new ConcurrentHashMap<>();
+
+    private static class DegradeGuard {
+        private final CircuitBreaker breaker;
+        private final Semaphore bulkhead;
+
+        private DegradeGuard(CircuitBreaker breaker, Semaphore bulkhead) {
+            this.breaker = breaker;
+            this.bulkhead = bulkhead;
+        }
+    }
+
+    // 查询数据库的结果，stale 为 true 时是从影子副本读取的旧数据，不能写回缓存
+    private static class Loaded<R> {
+        private final R value;
+        private final boolean stale;
+
+        private Loaded(R value, boolean stale) {
+            this.value = value;
+            this.stale = stale;
+        }
+    }
 
     public CacheClient(StringRedisTemplate stringRedisTemplate) {
         this.stringRedisTemplate = stringRedisTemplate;
     }
 
+    @PostConstruct
+    private void init() {
+        localCache = CacheUtil.newLRUCache(localCapacity);
+        // 订阅缓存失效频道，其他节点（包括自己）更新数据后删除本地缓存
+        listenerContainer.addMessageListener(
+                (message, pattern) -> localCache.remove(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(RedisConstants.CACHE_INVALIDATE_CHANNEL));
+        // 订阅缓存重建完成频道，唤醒等待重建的线程
+        listenerContainer.addMessageListener((message, pattern) -> {
+            CompletableFuture<Void> waiter = rebuildWaiters.remove(new String(message.getBody(), StandardCharsets.UTF_8));
+            if (waiter != null) {
+                waiter.complete(null);
+            }
+        }, new ChannelTopic(RedisConstants.CACHE_REBUILT_CHANNEL));
+    }
+
+    /**
+     * 删除缓存，同时删除所有节点的本地缓存
+     *
+     * @param key
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        invalidateLocal(key);
+    }
+
+    // 删除本地缓存，并通知其他节点删除本地缓存
+    private void invalidateLocal(String key) {
+        localCache.remove(key);
+        stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    /**
+     * 获取各个 key 前缀的缓存命中统计
+     *
+     * @return
+     */
+    public Map<String, Map<String, Object>> getStats() {
+        Map<String, Map<String, Object>> result = new LinkedHashMap<>();
+        stats.forEach((prefix, stat) -> result.put(prefix, stat.snapshot()));
+        return result;
+    }
+
+    /**
+     * 获取各个 key 前缀查询数据库的熔断器状态及舱壁占用
+     *
+     * @return
+     */
+    public Map<String, Object> getDegradeStats() {
+        Map<String, Object> prefixes = new TreeMap<>();
+        guards.forEach((prefix, guard) -> {
+            Map<String, Object> map = guard.breaker.snapshot();
+            map.put("concurrent", maxConcurrent - guard.bulkhead.availablePermits());
+            prefixes.put(prefix, map);
+        });
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("enabled", degradeEnabled);
+        map.put("prefixes", prefixes);
+        return map;
+    }
+
+    /**
+     * 为 key 前缀注册布隆过滤器
+     *
+     * @param keyPrefix   redis 中缓存的 key 前缀
+     * @param bloomFilter 布隆过滤器
+     */
+    public void registerBloomFilter(String keyPrefix, RedisBloomFilter bloomFilter) {
+        bloomFilters.put(keyPrefix, bloomFilter);
+    }
+
+    // 布隆过滤器判断数据是否可能存在，未注册过滤器时一律认为存在
+    private boolean mightContain(String keyPrefix, Object id) {
+        RedisBloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        if (bloomFilter == null || bloomFilter.mightContain(id)) {
+            return true;
+        }
+        stats(keyPrefix).bloomReject();
+        return false;
+    }
+
+    private CacheStats stats(String keyPrefix) {
+        return stats.computeIfAbsent(keyPrefix, k -> new CacheStats());
+    }
+
+    private boolean isDegradeEnabled(String keyPrefix) {
+        return degradeEnabled && ArrayUtil.contains(degradePrefixes, keyPrefix);
+    }
+
+    // key 所属的开启了数据库降级的前缀，不存在时返回 null
+    private String degradePrefixOf(String key) {
+        if (!degradeEnabled) {
+            return null;
+        }
+        for (String prefix : degradePrefixes) {
+            if (key.startsWith(prefix)) {
+                return prefix;
+            }
+        }
+        return null;
+    }
+
+    // 随机延长过期时间，避免同一批写入的 key 同时过期
+    private long jitter(long seconds) {
+        long bound = (long) (seconds * ttlJitter);
+        return bound <= 0 ? seconds : seconds + ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+
+    private DegradeGuard guard(String keyPrefix) {
+        return guards.computeIfAbsent(keyPrefix, k -> new DegradeGuard(
+                new CircuitBreaker(failureRate, minimumCalls, TimeUnit.SECONDS.toMillis(windowSeconds),
+                        slowCallMillis, TimeUnit.SECONDS.toMillis(openSeconds)),
+                new Semaphore(maxConcurrent)));
+    }
+
+    /**
+     * 经过舱壁和熔断器查询数据库，数据库不可用时读取影子副本
+     *
+     * @param keyPrefix redis 中缓存的 key 前缀
+     * @param key       缓存的 key
+     * @param type      数据类型
+     * @param loader    查询数据库的回调函数
+     * @param <R>
+     * @return 查询到的数据
+     */
+    private <R> Loaded<R> load(String keyPrefix, String key, Class<R> type, Supplier<R> loader) {
+        if (!isDegradeEnabled(keyPrefix)) {
+            return new Loaded<>(loader.get(), false);
+        }
+        DegradeGuard guard = guard(keyPrefix);
+        // 1.舱壁已满说明数据库已经变慢，不再增加等待数据库的线程
+        if (!acquire(guard.bulkhead)) {
+            stats(keyPrefix).bulkheadReject();
+            return loadShadow(keyPrefix, key, type, null);
+        }
+        try {
+            // 2.熔断器打开，不查询数据库
+            if (!guard.breaker.allow()) {
+                stats(keyPrefix).breakerReject();
+                return loadShadow(keyPrefix, key, type, null);
+            }
+            // 3.查询数据库，记录结果及耗时
+            long begin = System.currentTimeMillis();
+            R result;
+            try {
+                result = loader.get();
+            } catch (RuntimeException e) {
+                guard.breaker.record(false, System.currentTimeMillis() - begin);
+                stats(keyPrefix).dbFailure();
+                return loadShadow(keyPrefix, key, type, e);
+            }
+            guard.breaker.record(true, System.currentTimeMillis() - begin);
+            return new Loaded<>(result, false);
+        } finally {
+            guard.bulkhead.release();
+        }
+    }
+
+    private boolean acquire(Semaphore bulkhead) {
+        try {
+            return bulkhead.tryAcquire(bulkheadWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // 读取影子副本，不存在时抛出数据库的异常，不会写入空值
+    private <R> Loaded<R> loadShadow(String keyPrefix, String key, Class<R> type, RuntimeException cause) {
+        byte[] bytes = cacheRedisTemplate.opsForValue().get(RedisConstants.CACHE_SHADOW_KEY + key);
+        if (cacheCodecs.isNull(bytes)) {
+            throw cause != null ? cause : new RuntimeException("数据库繁忙，请稍后再试：" + key);
+        }
+        stats(keyPrefix).staleServed();
+        return new Loaded<>(cacheCodecs.decode(bytes, type), true);
+    }
+
+    private boolean isLocalEnabled(String keyPrefix) {
+        return localEnabled && ArrayUtil.contains(localPrefixes, keyPrefix);
+    }
+
+    // 查询本地缓存，同时统计访问频率
+    private <R> R getLocal(String keyPrefix, String key, Class<R> type) {
+        hotKeyDetector.record(key);
+        if (!isLocalEnabled(keyPrefix) && !hotKeyDetector.isHot(key)) {
+            return null;
+        }
+        Object value = localCache.get(key, false);
+        if (value == null) {
+            stats(keyPrefix).localMiss();
+            return null;
+        }
+        stats(keyPrefix).localHit();
+        return type.cast(value);
+    }
+
+    // 写入本地缓存，过期时间不超过 redis 中的过期时间
+    private void putLocal(String keyPrefix, String key, Object value, long ttlMillis) {
+        if (value == null || ttlMillis <= 0) {
+            return;
+        }
+        if (isLocalEnabled(keyPrefix)) {
+            localCache.put(key, value, Math.min(TimeUnit.SECONDS.toMillis(localTtlSeconds), ttlMillis));
+        } else if (hotKeyDetector.isHot(key)) {
+            // 热点 key 只缓存很短的时间
+            localCache.put(key, value, Math.min(hotKeyDetector.getTtlMillis(), ttlMillis));
+        }
+    }
+
+    // 从 redis 读到的数据写入本地缓存，过期时间不超过 key 在 redis 中的剩余过期时间
+    private void putLocalRemaining(String keyPrefix, String key, Object value, long ttlMillis) {
+        if (value == null || !isLocalCandidate(keyPrefix, key)) {
+            return;
+        }
+        putLocal(keyPrefix, key, value,
+                remainingMillis(ttlMillis, cacheRedisTemplate.getExpire(key, TimeUnit.MILLISECONDS)));
+    }
+
+    // 是否会写入本地缓存：开启本地缓存的前缀，或热点 key
+    private boolean isLocalCandidate(String keyPrefix, String key) {
+        return isLocalEnabled(keyPrefix) || hotKeyDetector.isHot(key);
+    }
+
+    /**
+     * 根据 PTTL 的结果计算本地缓存的过期时间
+     *
+     * @param ttlMillis 写入缓存时的过期时间
+     * @param pttl      PTTL 的结果，-1 表示没有过期时间，-2 或 null 表示 key 已不存在
+     * @return
+     */
+    private static long remainingMillis(long ttlMillis, Long pttl) {
+        if (pttl == null || pttl == -2) {
+            return 0;
+        }
+        return pttl == -1 ? ttlMillis : Math.min(ttlMillis, pttl);
+    }
+
+    /**
+     * 查询不经过缓存序列化的 redis 数据（如 zset），key 为热点时在本地短暂缓存查询结果
+     *
+     * @param key    redis 中的 key
+     * @param loader 查询 redis 的回调函数
+     * @param <R>
+     * @return 查询到的数据
+     */
+    @SuppressWarnings("unchecked")
+    public <R> R queryHot(String key, Supplier<R> loader) {
+        hotKeyDetector.record(key);
+        if (!hotKeyDetector.isHot(key)) {
+            return loader.get();
+        }
+        Object value = localCache.get(key, false);
+        if (value != null) {
+            return (R) value;
+        }
+        R result = loader.get();
+        if (result != null) {
+            localCache.put(key, result, hotKeyDetector.getTtlMillis());
+        }
+        return result;
+    }
+
+    /**
+     * 数据已修改，key 为热点时删除所有节点的本地缓存，不删除 redis 中的数据
+     *
+     * @param key
+     */
+    public void evictHot(String key) {
+        if (!hotKeyDetector.isHot(key)) {
+            return;
+        }
+        invalidateLocal(key);
+    }
+
     /**
      * 设置 String 类型的 key-value 及数据过期时间，参考 Redis Setex 命令
      * <br>
-     * 将任意 Java 对象序列化为 json 并存储在 string 类型的 key 中，并且可以设置 TTL 过期时间
+     * 将任意 Java 对象序列化后存储在 string 类型的 key 中，并且可以设置 TTL 过期时间
+     * <br>
+     * 用于写入 redis 中不存在的 key（缓存未命中后重建、登录），不发布失效消息：
+     * 本地缓存的时间不超过 key 在 redis 中的剩余过期时间，key 不存在时任何节点都没有它的本地缓存。
+     * 覆盖已有数据时应先 {@link #delete(String)}
      *
      * @param key
      * @param value
@@ -48,14 +461,127 @@ public class CacheClient {
      * @param unit  过期时间单位
      */
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        long seconds = Math.max(1, jitter(unit.toSeconds(time)));
+        if (degradePrefixOf(key) == null) {
+            cacheRedisTemplate.opsForValue().set(key, cacheCodecs.encode(value), seconds, TimeUnit.SECONDS);
+        } else {
+            // 开启数据库降级的 key 同时写入影子副本
+            byte[] bytes = cacheCodecs.encode(value);
+            cacheRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                setEx(connection, key, bytes, seconds);
+                return null;
+            });
+        }
+    }
+
+    // 在 pipeline 中写入缓存，开启数据库降级的 key 同时写入影子副本
+    private void setEx(RedisConnection connection, String key, byte[] bytes, long seconds) {
+        connection.stringCommands().setEx(key.getBytes(StandardCharsets.UTF_8), seconds, bytes);
+        setShadow(connection, key, bytes);
+    }
+
+    // 开启数据库降级的 key 写入影子副本
+    private void setShadow(RedisConnection connection, String key, byte[] bytes) {
+        if (degradePrefixOf(key) != null) {
+            connection.stringCommands().setEx((RedisConstants.CACHE_SHADOW_KEY + key).getBytes(StandardCharsets.UTF_8),
+                    TimeUnit.HOURS.toSeconds(shadowTtlHours), bytes);
+        }
+    }
+
+    /**
+     * 通过一次 pipeline 批量写入缓存，只写入不存在的 key，用于预热
+     * <br>
+     * 已存在的 key 由查询或更新写入，不比预热读到的数据旧，不覆盖
+     *
+     * @param values key -> 数据
+     * @param time   过期时间
+     * @param unit   过期时间单位
+     */
+    public void setBatchIfAbsent(Map<String, ?> values, Long time, TimeUnit unit) {
+        if (values.isEmpty()) {
+            return;
+        }
+        long seconds = unit.toSeconds(time);
+        cacheRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            values.forEach((key, value) -> {
+                byte[] bytes = cacheCodecs.encode(value);
+                connection.stringCommands().set(key.getBytes(StandardCharsets.UTF_8), bytes,
+                        Expiration.seconds(Math.max(1, jitter(seconds))), RedisStringCommands.SetOption.ifAbsent());
+                setShadow(connection, key, bytes);
+            });
+            return null;
+        });
+    }
+
+    /**
+     * 通过一次 pipeline 批量刷新缓存的过期时间，不存在的 key（包括更新数据后被删除的）不会重新写入
+     *
+     * @param keys key
+     * @param time 过期时间
+     * @param unit 过期时间单位
+     */
+    public void expireBatch(Collection<String> keys, Long time, TimeUnit unit) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        long seconds = unit.toSeconds(time);
+        cacheRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            keys.forEach(key -> connection.keyCommands().expire(key.getBytes(StandardCharsets.UTF_8),
+                    Math.max(1, jitter(seconds))));
+            return null;
+        });
+    }
+
+    /**
+     * 缓存空值，用于解决缓存穿透问题
+     *
+     * @param key
+     */
+    public void setNull(String key) {
+        cacheRedisTemplate.opsForValue().set(key, new byte[0], CACHE_NULL_TTL, TimeUnit.MINUTES);
+    }
+
+    /**
+     * 查询缓存并反序列化为指定类型，缓存不存在或为空值时返回 null
+     *
+     * @param key
+     * @param type 数据类型
+     * @param <R>
+     * @return
+     */
+    public <R> R get(String key, Class<R> type) {
+        return cacheCodecs.decode(cacheRedisTemplate.opsForValue().get(key), type);
+    }
+
+    /**
+     * 查询缓存并反序列化为集合，缓存不存在或为空值时返回 null
+     *
+     * @param key
+     * @param type 集合元素类型
+     * @param <R>
+     * @return
+     */
+    public <R> List<R> getList(String key, Class<R> type) {
+        return cacheCodecs.decodeList(cacheRedisTemplate.opsForValue().get(key), type);
+    }
+
+    /**
+     * 查询逻辑过期的缓存，其中的 data 转换为指定类型，缓存不存在时返回 null
+     *
+     * @param key
+     * @param type data 的数据类型
+     * @return
+     */
+    public RedisData getWithLogicalExpire(String key, Class<?> type) {
+        return cacheCodecs.decodeLogical(cacheRedisTemplate.opsForValue().get(key), type);
     }
 
     /**
      * 设置 String 类型的 key-value 及逻辑过期时间，数据本身不会过期
      * <br>
-     * 将任意 Java 对象序列化为 json 并存储在 string 类型的 key 中，
-     * 并且可以设置逻辑过期时间，用于处理缓存击穿问题
+     * 将任意 Java 对象序列化后存储在 string 类型的 key 中，
+     * 并且可以设置逻辑过期时间，用于处理缓存击穿问题。
+     * 逻辑过期的数据重建时覆盖旧数据，写入后删除所有节点的本地缓存
      *
      * @param key
      * @param value
@@ -68,7 +594,8 @@ public class CacheClient {
         redisData.setData(value);
         redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
         // 写入Redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        cacheRedisTemplate.opsForValue().set(key, cacheCodecs.encode(redisData));
+        invalidateLocal(key);
     }
 
     /**
@@ -86,28 +613,39 @@ public class CacheClient {
      */
     public <R, ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type,
                                           Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        // 0.布隆过滤器判断数据一定不存在，直接返回
+        if (!mightContain(keyPrefix, id)) {
+            return null;
+        }
         String key = keyPrefix + id;
+        // 0.先查询本地缓存
+        R result = getLocal(keyPrefix, key, type);
+        if (result != null) {
+            return result;
+        }
         // 1.从 redis 中查询数据缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
-        // 2.判断是否存在
-        if (json != null) {
-            // 判断命中的是否是空值
-            if (StrUtil.isBlank(json)) {
-                return null;
-            } else {
-                return JSONUtil.toBean(json, type);
-            }
+        byte[] bytes = cacheRedisTemplate.opsForValue().get(key);
+        // 2.判断是否存在，命中空值时返回 null
+        if (bytes != null) {
+            stats(keyPrefix).redisHit();
+            return toResult(keyPrefix, key, bytes, type, unit.toMillis(time));
         }
+        stats(keyPrefix).redisMiss();
 
-        // 3.不存在，根据 id 查询数据库
-        R result = dbFallback.apply(id);
+        // 3.不存在，根据 id 查询数据库，数据库不可用时返回影子副本中的旧数据，不写回缓存
+        Loaded<R> loaded = load(keyPrefix, key, type, () -> dbFallback.apply(id));
+        if (loaded.stale) {
+            return loaded.value;
+        }
+        result = loaded.value;
         // 4.判断是否存在
         if (result == null) {
             // 将空值写入 redis
-            set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+            setNull(key);
         } else {
             // 5.存在，写入 redis
             set(key, result, time, unit);
+            putLocal(keyPrefix, key, result, unit.toMillis(time));
         }
 
         return result;
@@ -140,16 +678,27 @@ public class CacheClient {
      */
     public <R, ID> R queryWithLogicalExpire(String keyPrefix, ID id, Class<R> type,
                                             Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        // 0.布隆过滤器判断数据一定不存在，直接返回
+        if (!mightContain(keyPrefix, id)) {
+            return null;
+        }
         String key = keyPrefix + id;
+        // 0.先查询本地缓存，本地缓存的过期时间不会超过逻辑过期时间
+        R result = getLocal(keyPrefix, key, type);
+        if (result != null) {
+            return result;
+        }
         // 1.从 redis 中查询数据缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = cacheRedisTemplate.opsForValue().get(key);
         // 2.判断是否存在
         // 热点数据一般会提前预热，缓存在 redis 中，且采用逻辑过期方案缓存不会自动失效，
         // 因此一定存在缓存，若不存在则数据 id 有问题
-        if (StrUtil.isBlank(json)) {
+        if (cacheCodecs.isNull(bytes)) {
+            stats(keyPrefix).redisMiss();
             // 3.不存在，直接返回
             return null;
         }
+        stats(keyPrefix).redisHit();
         // 4.命中，需要先把json反序列化为对象
 //        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
 //        R result = JSONUtil.toBean((JSONObject) redisData.getData(), type);
@@ -159,107 +708,375 @@ public class CacheClient {
 //            // 5.1.未过期，直接返回数据信息
 //            return result;
 //        }
-        R result = checkIsExpired(json, type);
-        if (result != null) {
+        RedisData redisData = cacheCodecs.decodeLogical(bytes, type);
+        result = type.cast(redisData.getData());
+        // 5.判断是否需要刷新：在逻辑过期前的一段随机时间内提前刷新，避免大量 key 同时过期，
+        // 且热点数据在过期前就已经刷新完成
+        LocalDateTime now = LocalDateTime.now();
+        if (!needRefresh(redisData.getExpireTime(), now)) {
+            // 5.1.无需刷新，直接返回数据信息
+            putLocal(keyPrefix, key, result, Duration.between(now, redisData.getExpireTime()).toMillis());
             return result;
         }
+        // 6.即将过期或已过期，提交异步重建任务，同一个 key 只会提交一次，线程池满时丢弃
+        rebuildExecutor.submit(key, () -> rebuildLogical(keyPrefix, key, id, type, dbFallback, time, unit));
+        // 7.返回旧的数据，因此不能保证数据的一致性
+        return result;
+    }
 
-        // 5.2.已过期，需要缓存重建
-        // 6.缓存重建
-        // 6.1.获取互斥锁
+    // 重建逻辑过期的缓存，通过 redis 互斥锁保证多个节点只有一个在重建
+    private <R, ID> void rebuildLogical(String keyPrefix, String key, ID id, Class<R> type,
+                                        Function<ID, R> dbFallback, Long time, TimeUnit unit) {
         String lockKey = LOCK_KEY + key;
-        boolean isLock = tryLock(lockKey);
-        // 6.2.判断是否获取锁成功
-        if (isLock) {
-            // 成功，但需要二次校验
-            result = checkIsExpired(stringRedisTemplate.opsForValue().get(key), type);
-            if (result == null) {
-                // 另外开一个线程更新缓存
-                CACHE_REBUILD_EXECUTOR.submit(() -> {
-                    try {
-                        // 查询数据库
-                        R newR = dbFallback.apply(id);
-                        // 重建缓存
-                        this.setWithLogicalExpire(key, newR, time, unit);
-                    } catch (Exception e) {
-                        throw new RuntimeException(e);
-                    } finally {
-                        unlock(lockKey);
-                    }
-                });
+        if (!tryLock(lockKey)) {
+            return;
+        }
+        try {
+            // 二次校验，可能其他节点已经刷新过了
+            RedisData redisData = getWithLogicalExpire(key, type);
+            if (redisData != null && !needRefresh(redisData.getExpireTime(), LocalDateTime.now())) {
+                return;
+            }
+            // 查询数据库并重建缓存，数据库不可用时保留旧数据，等待下一次刷新
+            if (isDegradeEnabled(keyPrefix) && guard(keyPrefix).breaker.getState() == CircuitBreaker.State.OPEN) {
+                stats(keyPrefix).breakerReject();
+                return;
             }
+            Loaded<R> loaded = load(keyPrefix, key, type, () -> dbFallback.apply(id));
+            if (loaded.stale) {
+                return;
+            }
+            R newR = loaded.value;
+            this.setWithLogicalExpire(key, newR, time, unit);
+            localCache.remove(key);
+        } finally {
+            unlock(lockKey);
         }
-        // 6.4.返回过期的商铺信息，因此不能保证数据的一致性
-        return result;
     }
 
     /**
-     * 判断数据是否逻辑过期
+     * 判断逻辑过期的数据是否需要刷新，距离过期时间小于一个随机的提前量时即需要刷新
      *
-     * @param json 数据的 json 格式
-     * @param type 数据类型
-     * @param <R>
+     * @param expireTime 逻辑过期时间
+     * @param now        当前时间
      * @return
      */
-    private <R> R checkIsExpired(String json, Class<R> type) {
-        if (StrUtil.isNotBlank(json)) {
-            // 需要先把json反序列化为对象
-            RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-            R result = JSONUtil.toBean((JSONObject) redisData.getData(), type);
-            LocalDateTime expireTime = redisData.getExpireTime();
-            // 判断是否过期
-            if (expireTime.isAfter(LocalDateTime.now())) {
-                // 未过期，直接返回数据信息
-                return result;
-            }
-        }
-        return null;
+    private boolean needRefresh(LocalDateTime expireTime, LocalDateTime now) {
+        long jitter = refreshAheadMillis <= 0 ? 0 : ThreadLocalRandom.current().nextLong(refreshAheadMillis);
+        return !expireTime.minus(Duration.ofMillis(jitter)).isAfter(now);
+    }
+
+    /**
+     * 获取缓存重建线程池的指标
+     *
+     * @return
+     */
+    public Map<String, Object> getRebuildStats() {
+        return rebuildExecutor.snapshot();
     }
 
+    /**
+     * 根据指定的 key 查询缓存，并反序列化为指定类型，利用互斥锁解决缓存击穿问题
+     * <p>
+     * 缓存未命中时，同一个 jvm 内对同一个 key 的并发请求合并为一次重建（single-flight），
+     * 只有负责重建的线程去竞争 redis 互斥锁；竞争失败说明其他节点正在重建，
+     * 此时订阅重建完成的通知后再读取缓存，而不是休眠后递归重试。
+     *
+     * @param keyPrefix  redis 中缓存的 key 前缀
+     * @param id         数据 id
+     * @param type       数据类型
+     * @param dbFallback 若缓存不存在，查询数据库的回调函数
+     * @param time       缓存过期时间
+     * @param unit       缓存过期时间单位
+     * @param <R>
+     * @param <ID>
+     * @return 查询到的数据
+     */
     public <R, ID> R queryWithMutex(String keyPrefix, ID id, Class<R> type,
                                     Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        // 0.布隆过滤器判断数据一定不存在，直接返回
+        if (!mightContain(keyPrefix, id)) {
+            return null;
+        }
         String key = keyPrefix + id;
+        // 0.先查询本地缓存
+        R result = getLocal(keyPrefix, key, type);
+        if (result != null) {
+            return result;
+        }
         // 1.从 redis 中查询数据缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
-        // 2.判断是否存在
-        if (StrUtil.isNotBlank(json)) {
-            // 存在，直接返回
-            return JSONUtil.toBean(json, type);
+        byte[] bytes = cacheRedisTemplate.opsForValue().get(key);
+        // 2.判断是否存在，空值说明数据不存在，解决缓存穿透问题
+        if (bytes != null) {
+            stats(keyPrefix).redisHit();
+            return toResult(keyPrefix, key, bytes, type, unit.toMillis(time));
         }
-        // 判断命中的值是否是空值，解决缓存击穿问题
-        if (json != null) {
-            // 返回一个错误信息
-            return null;
+        stats(keyPrefix).redisMiss();
+
+        // 3.实现缓存重构，同一个 key 只允许一个线程重建
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> running = inFlight.putIfAbsent(key, future);
+        if (running != null) {
+            // 3.1.本进程内已有线程在重建，等待其结果即可
+            try {
+                return type.cast(running.get(REBUILD_WAIT_MILLIS, TimeUnit.MILLISECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException | TimeoutException e) {
+                throw new RuntimeException("缓存重建失败：" + key, e);
+            }
         }
-        // 4.实现缓存重构
-        // 4.1 获取互斥锁
-        String lockKey = LOCK_KEY + key;
-        R result = null;
         try {
-            boolean isLock = tryLock(lockKey);
-            // 4.2 判断否获取成功
-            if (!isLock) {
-                //4.3 失败，则休眠重试
-                Thread.sleep(50);
-                return queryWithMutex(keyPrefix, id, type, dbFallback, time, unit);
+            // 3.2.由当前线程负责重建
+            result = rebuildWithMutex(keyPrefix, key, id, type, dbFallback, time, unit);
+            future.complete(result);
+            return result;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    // 获取 redis 互斥锁后重建缓存，获取失败则等待其他节点重建完成
+    private <R, ID> R rebuildWithMutex(String keyPrefix, String key, ID id, Class<R> type,
+                                       Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        String lockKey = LOCK_KEY + key;
+        long deadline = System.currentTimeMillis() + REBUILD_WAIT_MILLIS;
+        while (true) {
+            // 1.获取互斥锁
+            if (tryLock(lockKey)) {
+                try {
+                    // 2.成功，但需要二次校验，可能在等待期间其他节点已经重建完成
+                    byte[] bytes = cacheRedisTemplate.opsForValue().get(key);
+                    if (bytes != null) {
+                        return toResult(keyPrefix, key, bytes, type, unit.toMillis(time));
+                    }
+                    // 3.根据id查询数据库，数据库不可用时返回影子副本中的旧数据，不写回缓存
+                    Loaded<R> loaded = load(keyPrefix, key, type, () -> dbFallback.apply(id));
+                    if (loaded.stale) {
+                        return loaded.value;
+                    }
+                    R result = loaded.value;
+                    if (result == null) {
+                        // 将空值写入redis
+                        setNull(key);
+                        return null;
+                    }
+                    // 4.写入redis
+                    set(key, result, time, unit);
+                    putLocal(keyPrefix, key, result, unit.toMillis(time));
+                    return result;
+                } finally {
+                    // 5.释放互斥锁，并通知等待的节点
+                    unlock(lockKey);
+                    stringRedisTemplate.convertAndSend(RedisConstants.CACHE_REBUILT_CHANNEL, key);
+                }
             }
-            // 4.4 根据id查询数据库
-            result = dbFallback.apply(id);
-            // 5.不存在，返回错误
-            if (result == null) {
-                //将空值写入redis
-                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-                //返回错误信息
-                return null;
+            // 6.获取锁失败，等待重建完成的通知
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new RuntimeException("等待缓存重建超时：" + key);
             }
-            // 6.写入redis
-            set(key, result, time, unit);
-        } catch (Exception e) {
+            byte[] bytes = awaitRebuild(key, remaining);
+            if (bytes != null) {
+                return toResult(keyPrefix, key, bytes, type, unit.toMillis(time));
+            }
+            // 超时或重建失败，重新竞争锁
+        }
+    }
+
+    // 等待缓存重建完成，返回重建后的缓存，未重建完成返回 null
+    private byte[] awaitRebuild(String key, long timeoutMillis) {
+        CompletableFuture<Void> waiter = rebuildWaiters.computeIfAbsent(key, k -> new CompletableFuture<>());
+        // 先注册再查询，防止在注册前重建已经完成而错过通知
+        byte[] bytes = cacheRedisTemplate.opsForValue().get(key);
+        if (bytes != null) {
+            return bytes;
+        }
+        try {
+            waiter.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new RuntimeException(e);
-        } finally {
-            //7.释放互斥锁
-            unlock(lockKey);
+        } catch (ExecutionException | TimeoutException e) {
+            rebuildWaiters.remove(key, waiter);
+            return null;
+        }
+        return cacheRedisTemplate.opsForValue().get(key);
+    }
+
+    /**
+     * 批量查询缓存，保持与传入 id 相同的顺序，不存在的数据不会出现在结果中
+     * <p>
+     * 先用布隆过滤器剔除一定不存在的 id，再查本地缓存，剩余的 key 通过一次 MGET 查询 redis，
+     * 仍未命中的 id 通过一次批量查询数据库加载，最后通过一次 pipeline 写回 redis。无论查询多少条数据，与 redis 的往返次数都是常数。
+     *
+     * @param keyPrefix  redis 中缓存的 key 前缀
+     * @param ids        数据 id 集合
+     * @param type       数据类型
+     * @param dbFallback 批量查询数据库的回调函数，返回 id 与数据的映射
+     * @param time       缓存过期时间
+     * @param unit       缓存过期时间单位
+     * @param <R>
+     * @param <ID>
+     * @return 查询到的数据
+     */
+    public <R, ID> List<R> queryBatch(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                      Function<Collection<ID>, Map<ID, R>> dbFallback, Long time, TimeUnit unit) {
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        long ttlMillis = unit.toMillis(time);
+        Map<ID, R> found = new HashMap<>(ids.size());
+        // 1.先查询本地缓存
+        List<ID> remoteIds = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            // 布隆过滤器判断一定不存在的数据直接跳过
+            if (!mightContain(keyPrefix, id)) {
+                continue;
+            }
+            R local = getLocal(keyPrefix, keyPrefix + id, type);
+            if (local != null) {
+                found.put(id, local);
+            } else {
+                remoteIds.add(id);
+            }
+        }
+        // 2.一次 MGET 查询 redis
+        List<ID> missIds = new ArrayList<>();
+        if (!remoteIds.isEmpty()) {
+            List<String> keys = remoteIds.stream().map(id -> keyPrefix + id).collect(Collectors.toList());
+            List<byte[]> values = cacheRedisTemplate.opsForValue().multiGet(keys);
+            Map<String, R> locals = new LinkedHashMap<>();
+            for (int i = 0; i < remoteIds.size(); i++) {
+                byte[] bytes = values == null ? null : values.get(i);
+                if (bytes == null) {
+                    stats(keyPrefix).redisMiss();
+                    missIds.add(remoteIds.get(i));
+                    continue;
+                }
+                stats(keyPrefix).redisHit();
+                if (cacheCodecs.isNull(bytes)) {
+                    continue;
+                }
+                R result = cacheCodecs.decode(bytes, type);
+                found.put(remoteIds.get(i), result);
+                if (isLocalCandidate(keyPrefix, keys.get(i))) {
+                    locals.put(keys.get(i), result);
+                }
+            }
+            // 需要写入本地缓存的 key 通过一次 pipeline 查询剩余过期时间
+            if (!locals.isEmpty()) {
+                List<Object> pttls = cacheRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    locals.keySet().forEach(key -> connection.keyCommands().pTtl(key.getBytes(StandardCharsets.UTF_8)));
+                    return null;
+                });
+                int i = 0;
+                for (Map.Entry<String, R> entry : locals.entrySet()) {
+                    Object pttl = i < pttls.size() ? pttls.get(i++) : null;
+                    putLocal(keyPrefix, entry.getKey(), entry.getValue(),
+                            remainingMillis(ttlMillis, pttl instanceof Long ? (Long) pttl : null));
+                }
+            }
+        }
+        // 3.未命中的数据一次性查询数据库，并通过 pipeline 写回 redis，不存在的数据写入空值，
+        // 数据库不可用时返回影子副本中的旧数据，不写回缓存
+        if (!missIds.isEmpty()) {
+            Loaded<Map<ID, R>> loaded = loadBatch(keyPrefix, missIds, type, dbFallback);
+            if (loaded.stale) {
+                found.putAll(loaded.value);
+            } else {
+                Map<ID, R> fromDb = loaded.value == null ? Collections.emptyMap() : loaded.value;
+                long seconds = unit.toSeconds(time);
+                long nullSeconds = TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL);
+                cacheRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (ID id : missIds) {
+                        String key = keyPrefix + id;
+                        R result = fromDb.get(id);
+                        if (result == null) {
+                            connection.stringCommands().setEx(key.getBytes(StandardCharsets.UTF_8), nullSeconds, new byte[0]);
+                        } else {
+                            setEx(connection, key, cacheCodecs.encode(result), jitter(seconds));
+                        }
+                    }
+                    return null;
+                });
+                fromDb.forEach((id, result) -> {
+                    if (result != null) {
+                        putLocal(keyPrefix, keyPrefix + id, result, ttlMillis);
+                    }
+                });
+                found.putAll(fromDb);
+            }
+        }
+        // 4.按照传入的顺序返回
+        List<R> list = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            R result = found.get(id);
+            if (result != null) {
+                list.add(result);
+            }
+        }
+        return list;
+    }
+
+    // 经过舱壁和熔断器批量查询数据库，数据库不可用时通过一次 MGET 读取影子副本
+    private <R, ID> Loaded<Map<ID, R>> loadBatch(String keyPrefix, List<ID> ids, Class<R> type,
+                                                 Function<Collection<ID>, Map<ID, R>> dbFallback) {
+        if (!isDegradeEnabled(keyPrefix)) {
+            return new Loaded<>(dbFallback.apply(ids), false);
+        }
+        DegradeGuard guard = guard(keyPrefix);
+        RuntimeException cause = null;
+        if (!acquire(guard.bulkhead)) {
+            stats(keyPrefix).bulkheadReject();
+        } else {
+            try {
+                if (!guard.breaker.allow()) {
+                    stats(keyPrefix).breakerReject();
+                } else {
+                    long begin = System.currentTimeMillis();
+                    try {
+                        Map<ID, R> result = dbFallback.apply(ids);
+                        guard.breaker.record(true, System.currentTimeMillis() - begin);
+                        return new Loaded<>(result, false);
+                    } catch (RuntimeException e) {
+                        guard.breaker.record(false, System.currentTimeMillis() - begin);
+                        stats(keyPrefix).dbFailure();
+                        cause = e;
+                    }
+                }
+            } finally {
+                guard.bulkhead.release();
+            }
+        }
+        List<String> keys = ids.stream()
+                .map(id -> RedisConstants.CACHE_SHADOW_KEY + keyPrefix + id).collect(Collectors.toList());
+        List<byte[]> values = cacheRedisTemplate.opsForValue().multiGet(keys);
+        Map<ID, R> shadows = new HashMap<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            byte[] bytes = values == null ? null : values.get(i);
+            if (!cacheCodecs.isNull(bytes)) {
+                shadows.put(ids.get(i), cacheCodecs.decode(bytes, type));
+            }
+        }
+        if (shadows.isEmpty()) {
+            throw cause != null ? cause : new RuntimeException("数据库繁忙，请稍后再试：" + keyPrefix);
+        }
+        stats(keyPrefix).staleServed(shadows.size());
+        return new Loaded<>(shadows, true);
+    }
+
+    // 将缓存反序列化为对象，空值代表数据不存在
+    private <R> R toResult(String keyPrefix, String key, byte[] bytes, Class<R> type, long ttlMillis) {
+        if (cacheCodecs.isNull(bytes)) {
+            return null;
         }
+        R result = cacheCodecs.decode(bytes, type);
+        putLocalRemaining(keyPrefix, key, result, ttlMillis);
         return result;
     }
 }
@@ -0,0 +1,51 @@
+package com.qqdp.utils;
+
+import java.util.List;
+
+/**
+ * 缓存数据的序列化方式
+ * <br>
+ * 所有写入 redis 缓存的对象都通过 {@link CacheCodecs} 选择具体的实现进行序列化，
+ * 数据头中记录了序列化方式的 id，因此读取时不依赖当前配置，可以通过滚动发布切换序列化方式
+ */
+public interface CacheCodec {
+
+    /**
+     * 序列化方式的 id，写入数据头中，不能重复
+     */
+    byte id();
+
+    /**
+     * 序列化
+     *
+     * @param value 数据
+     * @return 序列化后的字节
+     */
+    byte[] encode(Object value);
+
+    /**
+     * 反序列化
+     *
+     * @param bytes  序列化后的字节
+     * @param offset 数据起始位置，跳过数据头
+     * @param type   数据类型
+     */
+    <T> T decode(byte[] bytes, int offset, Class<T> type);
+
+    /**
+     * 反序列化为集合
+     *
+     * @param bytes  序列化后的字节
+     * @param offset 数据起始位置，跳过数据头
+     * @param type   集合元素类型
+     */
+    <T> List<T> decodeList(byte[] bytes, int offset, Class<T> type);
+
+    /**
+     * 将反序列化得到的无类型数据（如 {@link RedisData#getData()}）转换为指定类型
+     *
+     * @param value 无类型数据
+     * @param type  数据类型
+     */
+    <T> T convert(Object value, Class<T> type);
+}
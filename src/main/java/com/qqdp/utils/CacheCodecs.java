@@ -0,0 +1,138 @@
+package com.qqdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * 缓存序列化方式的选择与数据头处理
+ * <p>
+ * 数据格式：
+ * <br>
+ * json：不带数据头，与原有缓存数据及未升级的节点兼容
+ * <br>
+ * 其他：魔数(1byte) + 序列化方式 id(1byte) + 版本号(1byte) + 数据
+ * <p>
+ * 读取时根据数据头选择反序列化方式，与当前配置的写入方式无关。切换序列化方式时，
+ * 先发布能识别数据头的版本，再修改 qqdp.cache.codec 配置，新旧数据可以同时被读取。
+ * <br>
+ * 空字节数组代表空值缓存，用于解决缓存穿透问题。
+ */
+@Component
+public class CacheCodecs {
+    // 数据头魔数，0xC1 不会出现在 UTF-8 编码中，因此可以与没有数据头的 json 区分
+    private static final byte MAGIC = (byte) 0xC1;
+    // 数据格式版本号
+    private static final byte VERSION = 1;
+    // 数据头长度
+    private static final int HEADER_LENGTH = 3;
+
+    private static final CacheCodec JSON = new JsonCacheCodec();
+    private static final CacheCodec SMILE = new SmileCacheCodec();
+
+    // 写入时使用的序列化方式
+    private final CacheCodec writer;
+
+    public CacheCodecs(@Value("${qqdp.cache.codec:json}") String codec) {
+        this.writer = "smile".equalsIgnoreCase(codec) ? SMILE : JSON;
+    }
+
+    /**
+     * 序列化，非 json 格式会添加数据头
+     *
+     * @param value 数据
+     * @return
+     */
+    public byte[] encode(Object value) {
+        byte[] body = writer.encode(value);
+        if (writer == JSON) {
+            return body;
+        }
+        byte[] bytes = new byte[HEADER_LENGTH + body.length];
+        bytes[0] = MAGIC;
+        bytes[1] = writer.id();
+        bytes[2] = VERSION;
+        System.arraycopy(body, 0, bytes, HEADER_LENGTH, body.length);
+        return bytes;
+    }
+
+    /**
+     * 反序列化，空值缓存返回 null
+     *
+     * @param bytes 序列化后的字节
+     * @param type  数据类型
+     * @return
+     */
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        if (isNull(bytes)) {
+            return null;
+        }
+        return codecOf(bytes).decode(bytes, offsetOf(bytes), type);
+    }
+
+    /**
+     * 反序列化为集合，空值缓存返回 null
+     *
+     * @param bytes 序列化后的字节
+     * @param type  集合元素类型
+     * @return
+     */
+    public <T> List<T> decodeList(byte[] bytes, Class<T> type) {
+        if (isNull(bytes)) {
+            return null;
+        }
+        return codecOf(bytes).decodeList(bytes, offsetOf(bytes), type);
+    }
+
+    /**
+     * 反序列化逻辑过期的数据，并将其中的 data 转换为指定类型
+     *
+     * @param bytes 序列化后的字节
+     * @param type  data 的数据类型
+     * @return
+     */
+    public RedisData decodeLogical(byte[] bytes, Class<?> type) {
+        if (isNull(bytes)) {
+            return null;
+        }
+        CacheCodec codec = codecOf(bytes);
+        RedisData redisData = codec.decode(bytes, offsetOf(bytes), RedisData.class);
+        if (redisData.getData() != null) {
+            redisData.setData(codec.convert(redisData.getData(), type));
+        }
+        return redisData;
+    }
+
+    /**
+     * 是否是空值缓存
+     */
+    public boolean isNull(byte[] bytes) {
+        return bytes == null || bytes.length == 0;
+    }
+
+    private boolean hasHeader(byte[] bytes) {
+        return bytes.length >= HEADER_LENGTH && bytes[0] == MAGIC;
+    }
+
+    private int offsetOf(byte[] bytes) {
+        return hasHeader(bytes) ? HEADER_LENGTH : 0;
+    }
+
+    private CacheCodec codecOf(byte[] bytes) {
+        if (!hasHeader(bytes)) {
+            return JSON;
+        }
+        if (bytes[2] > VERSION) {
+            throw new IllegalStateException("不支持的缓存数据版本：" + bytes[2]);
+        }
+        switch (bytes[1]) {
+            case JsonCacheCodec.ID:
+                return JSON;
+            case SmileCacheCodec.ID:
+                return SMILE;
+            default:
+                throw new IllegalStateException("未知的缓存序列化方式：" + bytes[1]);
+        }
+    }
+}
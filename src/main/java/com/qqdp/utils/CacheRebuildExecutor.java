@@ -0,0 +1,122 @@
+package com.qqdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 缓存重建线程池
+ * <p>
+ * 1) 有界队列，队列满时直接丢弃任务并计数，调用方继续返回旧数据，不会阻塞请求线程
+ * <br>
+ * 2) 同一个 key 同时只会有一个重建任务，重复提交直接忽略
+ * <br>
+ * 3) 任务异常会被记录并计数，而不是抛到无人处理的 Future 中
+ * <br>
+ * 4) 统计队列长度、重建耗时、失败次数等指标
+ */
+@Slf4j
+@Component
+public class CacheRebuildExecutor {
+
+    private final ThreadPoolExecutor executor;
+    // 正在重建或等待重建的 key
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    // 提交成功的任务数
+    private final LongAdder submitted = new LongAdder();
+    // 因重复提交而忽略的任务数
+    private final LongAdder deduplicated = new LongAdder();
+    // 因队列已满而丢弃的任务数
+    private final LongAdder rejected = new LongAdder();
+    // 执行成功的任务数
+    private final LongAdder succeeded = new LongAdder();
+    // 执行失败的任务数
+    private final LongAdder failed = new LongAdder();
+    // 重建总耗时
+    private final LongAdder totalMillis = new LongAdder();
+    // 重建最大耗时
+    private final LongAccumulator maxMillis = new LongAccumulator(Long::max, 0);
+
+    public CacheRebuildExecutor(@Value("${qqdp.cache.rebuild.threads:10}") int threads,
+                                @Value("${qqdp.cache.rebuild.queue-capacity:1000}") int queueCapacity) {
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                new NamedThreadFactory("cache-rebuild-", true),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * 提交重建任务
+     *
+     * @param key  缓存 key，同一个 key 同时只会有一个重建任务
+     * @param task 重建任务
+     * @return 是否提交成功
+     */
+    public boolean submit(String key, Runnable task) {
+        if (!pending.add(key)) {
+            deduplicated.increment();
+            return false;
+        }
+        try {
+            executor.execute(() -> run(key, task));
+            submitted.increment();
+            return true;
+        } catch (RejectedExecutionException e) {
+            pending.remove(key);
+            rejected.increment();
+            log.warn("缓存重建队列已满，丢弃重建任务：{}", key);
+            return false;
+        }
+    }
+
+    private void run(String key, Runnable task) {
+        long begin = System.currentTimeMillis();
+        try {
+            task.run();
+            succeeded.increment();
+        } catch (Exception e) {
+            failed.increment();
+            log.error("缓存重建失败：" + key, e);
+        } finally {
+            long cost = System.currentTimeMillis() - begin;
+            totalMillis.add(cost);
+            maxMillis.accumulate(cost);
+            pending.remove(key);
+        }
+    }
+
+    /**
+     * 获取线程池指标
+     *
+     * @return
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        long finished = succeeded.sum() + failed.sum();
+        map.put("queueDepth", executor.getQueue().size());
+        map.put("activeThreads", executor.getActiveCount());
+        map.put("submitted", submitted.sum());
+        map.put("deduplicated", deduplicated.sum());
+        map.put("rejected", rejected.sum());
+        map.put("succeeded", succeeded.sum());
+        map.put("failed", failed.sum());
+        map.put("avgMillis", finished == 0 ? 0 : totalMillis.sum() / finished);
+        map.put("maxMillis", maxMillis.get());
+        return map;
+    }
+
+    @PreDestroy
+    private void destroy() {
+        executor.shutdown();
+    }
+}
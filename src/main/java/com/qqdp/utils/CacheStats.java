@@ -0,0 +1,85 @@
+package com.qqdp.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按 key 前缀统计的缓存命中情况
+ * <br>
+ * 使用 LongAdder 计数，高并发下比 AtomicLong 竞争更小
+ */
+public class CacheStats {
+    // 本地缓存命中
+    private final LongAdder localHits = new LongAdder();
+    // 本地缓存未命中
+    private final LongAdder localMisses = new LongAdder();
+    // redis 命中
+    private final LongAdder redisHits = new LongAdder();
+    // redis 未命中
+    private final LongAdder redisMisses = new LongAdder();
+    // 被布隆过滤器拦截
+    private final LongAdder bloomRejects = new LongAdder();
+    // 查询数据库失败
+    private final LongAdder dbFailures = new LongAdder();
+    // 熔断器打开，未查询数据库
+    private final LongAdder breakerRejects = new LongAdder();
+    // 舱壁已满，未查询数据库
+    private final LongAdder bulkheadRejects = new LongAdder();
+    // 返回影子副本中的旧数据
+    private final LongAdder staleServed = new LongAdder();
+
+    public void localHit() {
+        localHits.increment();
+    }
+
+    public void localMiss() {
+        localMisses.increment();
+    }
+
+    public void redisHit() {
+        redisHits.increment();
+    }
+
+    public void redisMiss() {
+        redisMisses.increment();
+    }
+
+    public void bloomReject() {
+        bloomRejects.increment();
+    }
+
+    public void dbFailure() {
+        dbFailures.increment();
+    }
+
+    public void breakerReject() {
+        breakerRejects.increment();
+    }
+
+    public void bulkheadReject() {
+        bulkheadRejects.increment();
+    }
+
+    public void staleServed() {
+        staleServed.increment();
+    }
+
+    public void staleServed(long count) {
+        staleServed.add(count);
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("localHits", localHits.sum());
+        map.put("localMisses", localMisses.sum());
+        map.put("redisHits", redisHits.sum());
+        map.put("redisMisses", redisMisses.sum());
+        map.put("bloomRejects", bloomRejects.sum());
+        map.put("dbFailures", dbFailures.sum());
+        map.put("breakerRejects", breakerRejects.sum());
+        map.put("bulkheadRejects", bulkheadRejects.sum());
+        map.put("staleServed", staleServed.sum());
+        return map;
+    }
+}
@@ -0,0 +1,366 @@
+package com.qqdp.utils;
+
+import cn.hutool.core.exceptions.ExceptionUtil;
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.qqdp.entity.SeckillVoucher;
+import com.qqdp.entity.Shop;
+import com.qqdp.entity.ShopType;
+import com.qqdp.mapper.SeckillVoucherMapper;
+import com.qqdp.mapper.ShopMapper;
+import com.qqdp.mapper.ShopTypeMapper;
+import com.qqdp.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ibatis.cursor.Cursor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * 缓存预热
+ * <p>
+ * 启动时将店铺、店铺类型、店铺坐标及未结束的秒杀优惠券加载到 redis 并定时刷新过期时间，用户请求不再承担首次加载的开销。
+ * <br>
+ * 1) 每张表由一个线程通过 MyBatis 游标流式读取，不会一次性加载到内存，每读取一批交给写入线程池，
+ * 通过 pipeline 批量写入 redis，读取与写入并行
+ * <br>
+ * 2) 预热有时间预算，超过预算后停止读取，已写入的缓存仍然有效，未写入的数据按原来的方式在访问时加载；
+ * 店铺坐标只在全部读取完成后写入，避免不完整的坐标集合被当作已加载
+ * <br>
+ * 3) 启动时只写入不存在的 key，定时预热只刷新已存在的 key 的过期时间，不写入数据（包括店铺坐标）：
+ * 读取数据库与写入缓存之间数据可能被更新并删除缓存，覆盖写入会把旧数据写回缓存；
+ * 定时预热期间被删除的 key 保持不存在，在访问时重新加载
+ * <br>
+ * 4) 启动时的预热在 {@link ApplicationRunner} 中同步执行，完成（或超过预算）后 spring 才将应用标记为可以接收流量，
+ * 负载均衡通过 /warmup/ready 判断，新节点不会在缓存为空时接收请求
+ */
+@Slf4j
+@Component
+public class CacheWarmer implements ApplicationRunner {
+
+    private static final String SHOP = "shop";
+    private static final String SHOP_TYPE = "shopType";
+    private static final String SECKILL_VOUCHER = "seckillVoucher";
+
+    @Resource
+    private ShopMapper shopMapper;
+    @Resource
+    private ShopTypeMapper shopTypeMapper;
+    @Resource
+    private SeckillVoucherMapper seckillVoucherMapper;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    // 游标需要在事务中遍历，保证读取期间连接不被释放
+    @Resource
+    private TransactionTemplate transactionTemplate;
+
+    // 是否开启预热
+    @Value("${qqdp.warmup.enabled:true}")
+    private boolean enabled;
+    // 写入 redis 的线程数
+    @Value("${qqdp.warmup.threads:4}")
+    private int threads;
+    // 每批写入的条数
+    @Value("${qqdp.warmup.batch-size:500}")
+    private int batchSize;
+    // 每次预热的时间预算
+    @Value("${qqdp.warmup.budget-millis:30000}")
+    private long budgetMillis;
+
+    // 每张表一个读取线程
+    private ExecutorService readers;
+    // 写入线程池，队列满时由读取线程写入，限制读取速度
+    private ExecutorService writers;
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    // 最近一次预热的各个任务的进度
+    private volatile Map<String, Progress> progress = Collections.emptyMap();
+    private volatile LocalDateTime lastStartTime;
+    private volatile long lastMillis;
+    private final LongAdder runs = new LongAdder();
+
+    private static class Progress {
+        private volatile String status = "RUNNING";
+        private final LongAdder rows = new LongAdder();
+        private final LongAdder batches = new LongAdder();
+        private volatile long millis;
+        private volatile String error;
+    }
+
+    // 预热任务，返回是否在预算内完成
+    private interface Task {
+        boolean warm(Progress progress, long deadline) throws Exception;
+    }
+
+    @PostConstruct
+    private void init() {
+        readers = Executors.newFixedThreadPool(3, new NamedThreadFactory("cache-warmup-reader-", true));
+        writers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 2), new NamedThreadFactory("cache-warmup-writer-", true),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    @PreDestroy
+    private void destroy() {
+        readers.shutdownNow();
+        writers.shutdownNow();
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (enabled) {
+            warmUp();
+        }
+    }
+
+    /**
+     * 定时预热，只刷新已存在的缓存的过期时间，并加载新增的秒杀券库存
+     */
+    @Scheduled(initialDelayString = "${qqdp.warmup.interval-millis:1800000}",
+            fixedDelayString = "${qqdp.warmup.interval-millis:1800000}")
+    public void scheduledWarmUp() {
+        if (enabled) {
+            warmUp(true);
+        }
+    }
+
+    /**
+     * 并行预热所有数据，最多等待时间预算
+     *
+     * @return 是否全部在预算内完成，已有预热在执行时返回 false
+     */
+    public boolean warmUp() {
+        return warmUp(false);
+    }
+
+    /**
+     * 并行预热所有数据，最多等待时间预算
+     *
+     * @param refreshOnly true 时只刷新已存在的缓存的过期时间，false 时写入不存在的缓存
+     * @return 是否全部在预算内完成，已有预热在执行时返回 false
+     */
+    private boolean warmUp(boolean refreshOnly) {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            long begin = System.currentTimeMillis();
+            long deadline = begin + budgetMillis;
+            Map<String, Progress> current = new LinkedHashMap<>();
+            current.put(SHOP, new Progress());
+            current.put(SHOP_TYPE, new Progress());
+            current.put(SECKILL_VOUCHER, new Progress());
+            progress = current;
+            lastStartTime = LocalDateTime.now();
+            runs.increment();
+
+            List<Future<?>> futures = new ArrayList<>();
+            futures.add(readers.submit(() -> execute(SHOP, current.get(SHOP), deadline,
+                    (p, d) -> warmShops(p, d, refreshOnly))));
+            futures.add(readers.submit(() -> execute(SHOP_TYPE, current.get(SHOP_TYPE), deadline,
+                    (p, d) -> warmShopTypes(p, d, refreshOnly))));
+            futures.add(readers.submit(() -> execute(SECKILL_VOUCHER, current.get(SECKILL_VOUCHER), deadline,
+                    (p, d) -> warmSeckillVouchers(p, d, refreshOnly))));
+            // 读取线程到达截止时间后自行停止，这里多等待一点时间让其记录状态
+            await(futures, deadline + 1000);
+
+            lastMillis = System.currentTimeMillis() - begin;
+            boolean done = current.values().stream().allMatch(p -> "DONE".equals(p.status));
+            log.info("缓存预热{}，耗时 {}ms，{}", done ? "完成" : "未全部完成", lastMillis, describe(current));
+            return done;
+        } finally {
+            running.set(false);
+        }
+    }
+
+    private void execute(String name, Progress progress, long deadline, Task task) {
+        long begin = System.currentTimeMillis();
+        try {
+            progress.status = task.warm(progress, deadline) ? "DONE" : "TIMEOUT";
+        } catch (Exception e) {
+            progress.status = "FAILED";
+            progress.error = ExceptionUtil.getRootCauseMessage(e);
+            log.warn("预热 {} 失败：{}", name, progress.error);
+        } finally {
+            progress.millis = System.currentTimeMillis() - begin;
+        }
+    }
+
+    // 店铺缓存按批写入，坐标在全部读取后按类型写入；定时预热不写入坐标，不会用读取时的快照覆盖更新后的坐标
+    private boolean warmShops(Progress progress, long deadline, boolean refreshOnly) {
+        Map<Long, List<RedisGeoCommands.GeoLocation<String>>> locations = new HashMap<>();
+        Boolean done = transactionTemplate.execute(status -> scan(shopMapper.scanAll(), deadline, batch -> {
+            Map<String, Shop> values = new HashMap<>(batch.size() * 4 / 3 + 1);
+            batch.forEach(shop -> values.put(RedisConstants.CACHE_SHOP_KEY + shop.getId(), shop));
+            return () -> {
+                write(values, refreshOnly);
+                progress.rows.add(batch.size());
+                progress.batches.increment();
+            };
+        }, shop -> {
+            if (!refreshOnly) {
+                locations.computeIfAbsent(shop.getTypeId(), typeId -> new ArrayList<>()).add(
+                        new RedisGeoCommands.GeoLocation<>(shop.getId().toString(), new Point(shop.getX(), shop.getY())));
+            }
+        }));
+        if (!Boolean.TRUE.equals(done)) {
+            return false;
+        }
+        locations.forEach((typeId, list) -> {
+            String key = RedisConstants.SHOP_GEO_KEY + typeId;
+            for (int i = 0; i < list.size(); i += batchSize) {
+                stringRedisTemplate.opsForGeo().add(key, list.subList(i, Math.min(i + batchSize, list.size())));
+            }
+        });
+        return true;
+    }
+
+    // 店铺类型整个列表存储在一个 key 中
+    private boolean warmShopTypes(Progress progress, long deadline, boolean refreshOnly) {
+        List<ShopType> types = new ArrayList<>();
+        Boolean done = transactionTemplate.execute(status -> scan(shopTypeMapper.scanAll(), deadline,
+                batch -> () -> { }, types::add));
+        if (!Boolean.TRUE.equals(done)) {
+            return false;
+        }
+        write(Collections.singletonMap(RedisConstants.CACHE_SHOP_TYPE_KEY, types), refreshOnly);
+        progress.rows.add(types.size());
+        progress.batches.increment();
+        return true;
+    }
+
+    // 秒杀库存及元数据，已加载的库存不会被覆盖
+    private boolean warmSeckillVouchers(Progress progress, long deadline, boolean refreshOnly) {
+        Boolean done = transactionTemplate.execute(status -> scan(seckillVoucherMapper.scanActive(LocalDateTime.now()),
+                deadline, batch -> {
+                    Map<String, SeckillVoucher> values = new HashMap<>(batch.size() * 4 / 3 + 1);
+                    batch.forEach(voucher -> values.put(RedisConstants.CACHE_SECKILL_VOUCHER_KEY + voucher.getVoucherId(), voucher));
+                    return () -> {
+                        batch.forEach(seckillVoucherService::loadSeckillMeta);
+                        write(values, refreshOnly);
+                        progress.rows.add(batch.size());
+                        progress.batches.increment();
+                    };
+                }, voucher -> { }));
+        return Boolean.TRUE.equals(done);
+    }
+
+    // 写入不存在的缓存，或只刷新已存在的缓存的过期时间
+    private void write(Map<String, ?> values, boolean refreshOnly) {
+        if (refreshOnly) {
+            cacheClient.expireBatch(values.keySet(), RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        } else {
+            cacheClient.setBatchIfAbsent(values, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * 遍历游标，每一行交给 onRow，每 batchSize 行生成一个写入任务交给写入线程池，全部写入完成后返回
+     *
+     * @param cursor   游标
+     * @param deadline 截止时间，超过后停止读取
+     * @param writer   根据一批数据生成写入任务
+     * @param onRow    每一行的回调
+     * @return 是否在截止时间前全部读取并写入完成
+     */
+    private <T> boolean scan(Cursor<T> cursor, long deadline,
+                             Function<List<T>, Runnable> writer, Consumer<T> onRow) {
+        List<Future<?>> writes = new ArrayList<>();
+        try (Cursor<T> rows = cursor) {
+            List<T> batch = new ArrayList<>(batchSize);
+            for (T row : rows) {
+                onRow.accept(row);
+                batch.add(row);
+                if (batch.size() < batchSize) {
+                    continue;
+                }
+                writes.add(writers.submit(writer.apply(batch)));
+                batch = new ArrayList<>(batchSize);
+                if (System.currentTimeMillis() > deadline) {
+                    return false;
+                }
+            }
+            if (!batch.isEmpty()) {
+                writes.add(writers.submit(writer.apply(batch)));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return await(writes, deadline);
+    }
+
+    // 等待任务完成，写入失败时抛出异常
+    private boolean await(List<Future<?>> futures, long deadline) {
+        try {
+            for (Future<?> future : futures) {
+                future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            }
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private String describe(Map<String, Progress> current) {
+        StringBuilder sb = new StringBuilder();
+        current.forEach((name, p) -> sb.append(name).append(' ').append(p.status)
+                .append(' ').append(p.rows.sum()).append(" 条 ").append(p.millis).append("ms；"));
+        return sb.toString();
+    }
+
+    /**
+     * 获取最近一次预热的进度及耗时
+     *
+     * @return
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> tasks = new LinkedHashMap<>();
+        progress.forEach((name, p) -> {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("status", p.status);
+            map.put("rows", p.rows.sum());
+            map.put("batches", p.batches.sum());
+            map.put("millis", p.millis);
+            if (p.error != null) {
+                map.put("error", p.error);
+            }
+            tasks.put(name, map);
+        });
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("enabled", enabled);
+        map.put("running", running.get());
+        map.put("runs", runs.sum());
+        map.put("lastStartTime", lastStartTime);
+        map.put("lastMillis", lastMillis);
+        map.put("budgetMillis", budgetMillis);
+        map.put("tasks", tasks);
+        return map;
+    }
+}
@@ -0,0 +1,137 @@
+package com.qqdp.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 熔断器
+ * <p>
+ * 关闭：正常调用，按固定时间窗口统计调用次数及失败次数（异常或超过慢调用阈值），
+ * 窗口内调用次数达到最小值且失败率达到阈值时打开
+ * <br>
+ * 打开：拒绝所有调用，由调用方降级，经过一段时间后进入半开
+ * <br>
+ * 半开：只放行一个试探调用，成功则关闭，失败则重新打开
+ * <p>
+ * 只在查询数据库时使用，调用频率不高，直接加锁
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    // 打开熔断器的失败率
+    private final double failureRate;
+    // 窗口内至少调用多少次才计算失败率
+    private final int minimumCalls;
+    // 统计窗口
+    private final long windowMillis;
+    // 超过该时间的调用视为失败
+    private final long slowCallMillis;
+    // 打开后经过多长时间进入半开
+    private final long openMillis;
+
+    private State state = State.CLOSED;
+    private long windowStart = System.currentTimeMillis();
+    private int calls;
+    private int failures;
+    private long openedAt;
+    // 半开时是否已有试探调用
+    private boolean probing;
+    private long opens;
+
+    public CircuitBreaker(double failureRate, int minimumCalls, long windowMillis, long slowCallMillis, long openMillis) {
+        this.failureRate = failureRate;
+        this.minimumCalls = minimumCalls;
+        this.windowMillis = windowMillis;
+        this.slowCallMillis = slowCallMillis;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * 判断是否允许调用，允许时调用结束后必须调用 {@link #record(boolean, long)}
+     *
+     * @return
+     */
+    public synchronized boolean allow() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() - openedAt < openMillis) {
+                return false;
+            }
+            state = State.HALF_OPEN;
+            probing = false;
+        }
+        // 半开，只放行一个试探调用
+        if (probing) {
+            return false;
+        }
+        probing = true;
+        return true;
+    }
+
+    /**
+     * 记录调用结果
+     *
+     * @param success       是否成功
+     * @param elapsedMillis 调用耗时
+     */
+    public synchronized void record(boolean success, long elapsedMillis) {
+        boolean failed = !success || elapsedMillis >= slowCallMillis;
+        long now = System.currentTimeMillis();
+        if (state == State.HALF_OPEN) {
+            probing = false;
+            if (failed) {
+                open(now);
+            } else {
+                state = State.CLOSED;
+                resetWindow(now);
+            }
+            return;
+        }
+        if (state == State.OPEN) {
+            // 打开前已经开始的调用
+            return;
+        }
+        if (now - windowStart >= windowMillis) {
+            resetWindow(now);
+        }
+        calls++;
+        if (failed) {
+            failures++;
+        }
+        if (calls >= minimumCalls && failures >= calls * failureRate) {
+            open(now);
+        }
+    }
+
+    private void open(long now) {
+        state = State.OPEN;
+        openedAt = now;
+        opens++;
+    }
+
+    private void resetWindow(long now) {
+        windowStart = now;
+        calls = 0;
+        failures = 0;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized Map<String, Object> snapshot() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("state", state);
+        map.put("calls", calls);
+        map.put("failures", failures);
+        map.put("opens", opens);
+        return map;
+    }
+}
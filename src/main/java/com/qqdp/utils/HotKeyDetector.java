@@ -0,0 +1,301 @@
+package com.qqdp.utils;
+
+import cn.hutool.core.exceptions.ExceptionUtil;
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 热点 key 探测
+ * <p>
+ * 1) 按采样率记录 key 的访问次数到 Count-Min Sketch：depth 行 width 列的计数器，
+ * 每行用不同的哈希函数选一个计数器加 1，取各行的最小值作为估计值，只会高估不会低估，内存固定
+ * <br>
+ * 2) 估计值较大的 key 只放入并发的待合并集合，请求线程不加锁；定时任务从 Count-Min Sketch 重新估计
+ * 待合并的 key 与原有候选，保留 top-K 并更新进入 top-K 的门槛。定时将所有计数减半（衰减），只反映最近一段时间的访问频率
+ * <br>
+ * 3) 访问频率超过阈值的 key 晋升为热点，一段时间内由 {@link CacheClient} 缓存在本地，
+ * 晋升的 key 写入 redis 的 zset 并发布到所有节点，其他节点无需自己统计到阈值即可在本地缓存，
+ * 单个 key 的访问压力不再集中在 redis 的一个分片上
+ */
+@Slf4j
+@Component
+public class HotKeyDetector {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    // 是否开启热点 key 探测
+    @Value("${qqdp.cache.hot-key.enabled:true}")
+    private boolean enabled;
+    // 采样率，每 n 次访问记录一次
+    @Value("${qqdp.cache.hot-key.sample-rate:4}")
+    private int sampleRate;
+    // Count-Min Sketch 的行数及列数
+    @Value("${qqdp.cache.hot-key.depth:4}")
+    private int depth;
+    @Value("${qqdp.cache.hot-key.width:4096}")
+    private int width;
+    // 保留访问频率最高的 key 数
+    @Value("${qqdp.cache.hot-key.top-k:20}")
+    private int topK;
+    // 每个衰减周期内的访问次数超过该值时晋升为热点
+    @Value("${qqdp.cache.hot-key.threshold:1000}")
+    private long threshold;
+    // 衰减周期，每个周期所有计数减半
+    @Value("${qqdp.cache.hot-key.decay-millis:10000}")
+    private long decayMillis;
+    // 晋升的持续时间，期间仍是热点时续期
+    @Value("${qqdp.cache.hot-key.promote-seconds:30}")
+    private long promoteSeconds;
+    // 热点数据在本地缓存的时间
+    @Value("${qqdp.cache.hot-key.ttl-millis:2000}")
+    private long ttlMillis;
+
+    private AtomicLongArray counters;
+    // top-K 候选，key -> 估计的访问次数（采样后），只在定时任务及 snapshot 中加锁访问
+    private final Map<String, Long> candidates = new HashMap<>();
+    // 估计值超过门槛、等待合并到 top-K 的 key，请求线程只做无锁的读取与写入
+    private final Map<String, Boolean> pending = new ConcurrentHashMap<>();
+    // 进入 top-K 需要超过的估计值，top-K 未满时为 0
+    private volatile long floor;
+    // 热点 key -> 晋升的截止时间
+    private final Map<String, Long> hotKeys = new ConcurrentHashMap<>();
+    // 待同步到 redis 的晋升
+    private final Queue<String> promotions = new ConcurrentLinkedQueue<>();
+
+    private final LongAdder sampled = new LongAdder();
+    private final LongAdder promoted = new LongAdder();
+
+    public HotKeyDetector(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @PostConstruct
+    private void init() {
+        counters = new AtomicLongArray(depth * width);
+        // 其他节点晋升的热点，消息格式为 截止时间:key
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            hotKeys.merge(StrUtil.subAfter(body, ":", false),
+                    Long.valueOf(StrUtil.subBefore(body, ":", false)), Math::max);
+        }, new ChannelTopic(RedisConstants.CACHE_HOT_KEY_CHANNEL));
+    }
+
+    /**
+     * 记录一次访问
+     *
+     * @param key
+     */
+    public void record(String key) {
+        if (!enabled || ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+            return;
+        }
+        sampled.increment();
+        // 1.每行选一个计数器加 1，两个哈希值组合出 depth 个哈希函数
+        int h1 = spread(key.hashCode());
+        int h2 = spread(h1 ^ 0x9E3779B9);
+        long estimate = Long.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            int index = i * width + ((h1 + i * h2) & Integer.MAX_VALUE) % width;
+            estimate = Math.min(estimate, counters.incrementAndGet(index));
+        }
+        // 2.放入待合并集合，已在集合中时只有一次无锁读取；集合大小有上限，避免长尾 key 在门槛为 0 时占满内存
+        if (estimate > floor && !pending.containsKey(key) && pending.size() < topK * 16) {
+            pending.put(key, Boolean.TRUE);
+        }
+        // 3.超过阈值，晋升为热点，快到期时续期
+        if (estimate * sampleRate >= threshold) {
+            long now = System.currentTimeMillis();
+            long promoteMillis = promoteSeconds * 1000;
+            Long until = hotKeys.get(key);
+            if (until == null || until - now < promoteMillis / 2) {
+                hotKeys.put(key, now + promoteMillis);
+                promotions.add(key);
+            }
+        }
+    }
+
+    /**
+     * 判断是否为热点 key
+     *
+     * @param key
+     * @return
+     */
+    public boolean isHot(String key) {
+        if (!enabled) {
+            return false;
+        }
+        Long until = hotKeys.get(key);
+        return until != null && until > System.currentTimeMillis();
+    }
+
+    /**
+     * 热点数据在本地缓存的时间
+     *
+     * @return
+     */
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    /**
+     * 将待合并的 key 合并到 top-K：重新估计所有候选的访问次数，保留最大的 topK 个，并更新门槛
+     */
+    private synchronized void fold() {
+        for (Iterator<String> it = pending.keySet().iterator(); it.hasNext(); ) {
+            candidates.put(it.next(), 0L);
+            it.remove();
+        }
+        candidates.replaceAll((key, estimate) -> estimate(key));
+        candidates.values().removeIf(estimate -> estimate == 0);
+        if (candidates.size() > topK) {
+            List<Map.Entry<String, Long>> entries = new ArrayList<>(candidates.entrySet());
+            entries.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+            entries.subList(topK, entries.size()).forEach(entry -> candidates.remove(entry.getKey()));
+        }
+        floor = candidates.size() < topK ? 0 : Collections.min(candidates.values());
+    }
+
+    // 估计 key 的访问次数（采样后），不计数
+    private long estimate(String key) {
+        int h1 = spread(key.hashCode());
+        int h2 = spread(h1 ^ 0x9E3779B9);
+        long estimate = Long.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            estimate = Math.min(estimate, counters.get(i * width + ((h1 + i * h2) & Integer.MAX_VALUE) % width));
+        }
+        return estimate;
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        return h ^ h >>> 16;
+    }
+
+    /**
+     * 合并 top-K 候选，同步晋升的热点到 redis 及所有节点
+     */
+    @Scheduled(fixedDelay = 1000)
+    public void publish() {
+        if (!pending.isEmpty()) {
+            fold();
+        }
+        if (promotions.isEmpty()) {
+            return;
+        }
+        Set<String> keys = new HashSet<>();
+        for (String key = promotions.poll(); key != null; key = promotions.poll()) {
+            keys.add(key);
+        }
+        try {
+            byte[] zsetKey = RedisConstants.CACHE_HOT_KEY.getBytes(StandardCharsets.UTF_8);
+            byte[] channel = RedisConstants.CACHE_HOT_KEY_CHANNEL.getBytes(StandardCharsets.UTF_8);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (String key : keys) {
+                    Long until = hotKeys.get(key);
+                    if (until == null) {
+                        continue;
+                    }
+                    connection.zSetCommands().zAdd(zsetKey, until, key.getBytes(StandardCharsets.UTF_8));
+                    connection.publish(channel, (until + ":" + key).getBytes(StandardCharsets.UTF_8));
+                }
+                return null;
+            });
+            promoted.add(keys.size());
+        } catch (Exception e) {
+            // 只在本节点生效
+            log.warn("同步热点 key 失败：{}", ExceptionUtil.getRootCauseMessage(e));
+        }
+    }
+
+    /**
+     * 衰减计数，清除过期的热点，并从 redis 加载其他节点晋升的热点（包括本节点启动前晋升的）
+     */
+    @Scheduled(fixedDelayString = "${qqdp.cache.hot-key.decay-millis:10000}")
+    public void decay() {
+        if (!enabled) {
+            return;
+        }
+        for (int i = 0; i < counters.length(); i++) {
+            long value = counters.get(i);
+            if (value != 0) {
+                counters.set(i, value >> 1);
+            }
+        }
+        // 计数减半后重新估计候选
+        fold();
+        long now = System.currentTimeMillis();
+        hotKeys.values().removeIf(until -> until <= now);
+        try {
+            stringRedisTemplate.opsForZSet().removeRangeByScore(RedisConstants.CACHE_HOT_KEY, 0, now);
+            Set<ZSetOperations.TypedTuple<String>> tuples = stringRedisTemplate.opsForZSet()
+                    .rangeByScoreWithScores(RedisConstants.CACHE_HOT_KEY, now, Double.MAX_VALUE);
+            if (tuples != null) {
+                for (ZSetOperations.TypedTuple<String> tuple : tuples) {
+                    hotKeys.merge(tuple.getValue(), tuple.getScore().longValue(), Math::max);
+                }
+            }
+        } catch (Exception e) {
+            log.warn("加载热点 key 失败：{}", ExceptionUtil.getRootCauseMessage(e));
+        }
+    }
+
+    /**
+     * 获取访问频率最高的 key 及当前的热点
+     *
+     * @return
+     */
+    public Map<String, Object> snapshot() {
+        List<Map<String, Object>> top = new ArrayList<>();
+        fold();
+        synchronized (this) {
+            candidates.entrySet().stream()
+                    .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                    .forEach(entry -> {
+                        Map<String, Object> item = new LinkedHashMap<>();
+                        item.put("key", entry.getKey());
+                        // 最近一个衰减周期左右的估计访问次数
+                        item.put("frequency", entry.getValue() * sampleRate);
+                        top.add(item);
+                    });
+        }
+        long now = System.currentTimeMillis();
+        Map<String, Long> hot = new TreeMap<>();
+        hotKeys.forEach((key, until) -> {
+            if (until > now) {
+                hot.put(key, until - now);
+            }
+        });
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("enabled", enabled);
+        map.put("sampled", sampled.sum());
+        map.put("promoted", promoted.sum());
+        map.put("topK", top);
+        // 热点 key -> 剩余的晋升时间（毫秒）
+        map.put("hotKeys", hot);
+        return map;
+    }
+}
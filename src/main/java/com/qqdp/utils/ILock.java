@@ -1,7 +1,12 @@
 package com.qqdp.utils;
 
+import java.util.concurrent.TimeUnit;
+
 public interface ILock {
 
+    // 默认实现轮询获取锁的间隔
+    long POLL_MILLIS = 50;
+
     /**
      * 尝试获取锁
      * @param timeSec   锁持有的超时时间
@@ -9,6 +14,60 @@ public interface ILock {
      */
     boolean tryLock(long timeSec);
 
+    /**
+     * 在等待时间内尝试获取锁
+     * <br>
+     * 默认实现每隔一段时间重试，实现类可以通过释放锁的通知及时唤醒等待的线程
+     * @param waitTime  最长等待时间，小于等于 0 时只尝试一次
+     * @param leaseTime 锁持有的超时时间
+     * @param unit      时间单位
+     * @return          获取锁是否成功
+     * @throws InterruptedException 等待时被中断
+     */
+    default boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException {
+        long timeSec = Math.max(1, unit.toSeconds(leaseTime));
+        long deadline = deadline(waitTime, unit);
+        while (!tryLock(timeSec)) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            Thread.sleep(Math.min(remaining, POLL_MILLIS));
+        }
+        return true;
+    }
+
+    /**
+     * 等待的截止时间，永久等待时不会溢出
+     * @param waitTime  最长等待时间
+     * @param unit      时间单位
+     * @return          截止的毫秒时间戳
+     */
+    static long deadline(long waitTime, TimeUnit unit) {
+        long now = System.currentTimeMillis();
+        long wait = unit.toMillis(waitTime);
+        return wait >= Long.MAX_VALUE - now ? Long.MAX_VALUE : now + wait;
+    }
+
+    /**
+     * 获取锁，获取不到时一直等待，等待期间不响应中断，获取后恢复中断状态
+     */
+    default void lock() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (tryLock(Long.MAX_VALUE, 30, TimeUnit.SECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     /**
      * 释放锁
      */
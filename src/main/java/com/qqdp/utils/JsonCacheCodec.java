@@ -0,0 +1,43 @@
+package com.qqdp.utils;
+
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * json 序列化，使用 hutool 的 JSONUtil，与原有缓存数据格式一致
+ */
+public class JsonCacheCodec implements CacheCodec {
+
+    public static final byte ID = 1;
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, int offset, Class<T> type) {
+        return JSONUtil.toBean(toStr(bytes, offset), type);
+    }
+
+    @Override
+    public <T> List<T> decodeList(byte[] bytes, int offset, Class<T> type) {
+        return JSONUtil.toList(JSONUtil.parseArray(toStr(bytes, offset)), type);
+    }
+
+    @Override
+    public <T> T convert(Object value, Class<T> type) {
+        return JSONUtil.toBean(JSONUtil.parseObj(value), type);
+    }
+
+    private String toStr(byte[] bytes, int offset) {
+        return new String(bytes, offset, bytes.length - offset, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,72 @@
+package com.qqdp.utils;
+
+import java.lang.annotation.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 接口限流，标注在 controller 的方法上，由 {@link RateLimitInterceptor} 在进入方法前检查
+ * <br>
+ * 同一个方法可以标注多条规则（如按手机号和按 IP），全部通过才放行；
+ * 按 IP、用户、手机号的顺序检查，与标注的顺序无关
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Repeatable(RateLimit.List.class)
+@Documented
+public @interface RateLimit {
+
+    /**
+     * 规则名称，用于 redis 的 key 及指标统计，同一个名称的规则共用计数
+     */
+    String name();
+
+    /**
+     * 限流算法
+     */
+    Algorithm algorithm() default Algorithm.SLIDING_WINDOW;
+
+    /**
+     * 按什么维度限流
+     */
+    KeyType key() default KeyType.USER;
+
+    /**
+     * 每个周期允许的请求数
+     */
+    int limit();
+
+    /**
+     * 周期
+     */
+    long period();
+
+    TimeUnit unit() default TimeUnit.SECONDS;
+
+    /**
+     * GCRA 允许的突发请求数，在平均速率之外最多可以连续通过的请求数
+     */
+    int burst() default 0;
+
+    enum Algorithm {
+        // 滑动窗口日志：记录窗口内每个请求的时间，任意一个周期内不超过 limit 次
+        SLIDING_WINDOW,
+        // 通用信元速率算法：只记录理论到达时间，请求按 period / limit 的间隔均匀通过
+        GCRA
+    }
+
+    enum KeyType {
+        // 登录用户，未登录时按 IP
+        USER,
+        // 客户端 IP
+        IP,
+        // 请求参数中的手机号，没有时按 IP
+        PHONE
+    }
+
+    @Target(ElementType.METHOD)
+    @Retention(RetentionPolicy.RUNTIME)
+    @Documented
+    @interface List {
+        RateLimit[] value();
+    }
+}
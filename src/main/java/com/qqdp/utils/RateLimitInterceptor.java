@@ -0,0 +1,135 @@
+package com.qqdp.utils;
+
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
+import com.qqdp.dto.Result;
+import com.qqdp.dto.UserDTO;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 按 {@link RateLimit} 注解限流的拦截器，在登录拦截器之后执行，可以取到登录用户
+ * <p>
+ * 部署在 nginx 等反向代理之后时，请求的来源地址是代理的地址，客户端 IP 需要从 X-Forwarded-For 或 X-Real-IP 中获取。
+ * 这两个请求头可以被客户端伪造，因此只信任来自配置的代理的请求头。
+ */
+public class RateLimitInterceptor implements HandlerInterceptor {
+
+    private final RateLimiter rateLimiter;
+    // 信任的代理，IP 或 IPv4 网段（CIDR）
+    private final String[] trustedProxies;
+    // 方法 -> 限流规则，没有规则时为空数组
+    private final Map<Method, RateLimit[]> rules = new ConcurrentHashMap<>();
+
+    public RateLimitInterceptor(RateLimiter rateLimiter, String[] trustedProxies) {
+        this.rateLimiter = rateLimiter;
+        this.trustedProxies = trustedProxies;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        if (!(handler instanceof HandlerMethod)) {
+            return true;
+        }
+        RateLimit[] limits = rules.computeIfAbsent(((HandlerMethod) handler).getMethod(), method -> {
+            Set<RateLimit> set = AnnotatedElementUtils.findMergedRepeatableAnnotations(method, RateLimit.class);
+            RateLimit[] array = set.toArray(new RateLimit[0]);
+            Arrays.sort(array, Comparator.comparingInt(RateLimitInterceptor::order));
+            return array;
+        });
+        for (RateLimit limit : limits) {
+            long wait = rateLimiter.tryAcquire(limit, resolve(limit.key(), request));
+            if (wait > 0) {
+                // 超过限流，返回 429 及需要等待的秒数
+                response.setStatus(429);
+                response.setHeader("Retry-After", String.valueOf((wait + 999) / 1000));
+                response.setContentType("application/json;charset=UTF-8");
+                response.getWriter().write(JSONUtil.toJsonStr(Result.fail("操作太频繁，请稍后再试~")));
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 规则的检查顺序：每条规则通过时都会消耗配额，被后面的规则拒绝时前面消耗的配额不会退还，
+     * 因此先检查范围最广的 IP 规则，IP 超限时不会消耗手机号、用户的配额（如手机号每分钟只有 1 次）
+     *
+     * @param limit
+     * @return
+     */
+    private static int order(RateLimit limit) {
+        switch (limit.key()) {
+            case IP:
+                return 0;
+            case USER:
+                return 1;
+            default:
+                return 2;
+        }
+    }
+
+    // 限流维度的值
+    private String resolve(RateLimit.KeyType type, HttpServletRequest request) {
+        if (type == RateLimit.KeyType.USER) {
+            UserDTO user = UserHolder.getUser();
+            if (user != null) {
+                return "user:" + user.getId();
+            }
+        } else if (type == RateLimit.KeyType.PHONE) {
+            String phone = request.getParameter("phone");
+            if (StrUtil.isNotBlank(phone)) {
+                return "phone:" + phone;
+            }
+        }
+        return "ip:" + clientIp(request);
+    }
+
+    /**
+     * 获取客户端 IP：来源地址是信任的代理时，从 X-Forwarded-For 的右侧向左跳过信任的代理，
+     * 第一个不是信任的代理的地址即客户端 IP；没有 X-Forwarded-For 时取 X-Real-IP
+     *
+     * @param request
+     * @return
+     */
+    private String clientIp(HttpServletRequest request) {
+        String remote = request.getRemoteAddr();
+        if (!isTrusted(remote)) {
+            return remote;
+        }
+        List<String> forwarded = StrUtil.split(request.getHeader("X-Forwarded-For"), ',', true, true);
+        for (int i = forwarded.size() - 1; i >= 0; i--) {
+            if (!isTrusted(forwarded.get(i)) || i == 0) {
+                return forwarded.get(i);
+            }
+        }
+        String realIp = StrUtil.trim(request.getHeader("X-Real-IP"));
+        return StrUtil.isNotBlank(realIp) ? realIp : remote;
+    }
+
+    private boolean isTrusted(String ip) {
+        for (String proxy : trustedProxies) {
+            if (proxy.contains("/")) {
+                // 网段只支持 IPv4
+                if (ip.indexOf(':') < 0 && NetUtil.isInRange(ip, proxy)) {
+                    return true;
+                }
+            } else if (proxy.equals(ip)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
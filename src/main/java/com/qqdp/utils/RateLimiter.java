@@ -0,0 +1,162 @@
+package com.qqdp.utils;
+
+import cn.hutool.core.exceptions.ExceptionUtil;
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 基于 redis 的分布式限流，每次判断只执行一次 lua 脚本
+ * <p>
+ * 1) 滑动窗口日志：zset 记录窗口内每个请求的时间，精确限制任意一个周期内的请求数，内存与 limit 成正比，适合 limit 较小的规则
+ * <br>
+ * 2) GCRA：只保存一个理论到达时间，请求按平均间隔通过，允许一定的突发，内存为常数
+ * <p>
+ * 被拒绝时脚本返回需要等待的时间，在本地记录该 key 的解禁时间，解禁前的请求直接在本地拒绝，
+ * 不访问 redis。等待时间由 redis 计算，解禁前一定会被拒绝，因此本地拒绝不会误伤正常请求。
+ * <p>
+ * redis 不可用时放行，限流只用于防刷，不影响正常业务。
+ */
+@Slf4j
+@Component
+public class RateLimiter {
+
+    private static final DefaultRedisScript<Long> SLIDING_WINDOW_SCRIPT;
+    private static final DefaultRedisScript<Long> GCRA_SCRIPT;
+
+    static {
+        SLIDING_WINDOW_SCRIPT = new DefaultRedisScript<>();
+        SLIDING_WINDOW_SCRIPT.setLocation(new ClassPathResource("sliding_window.lua"));
+        SLIDING_WINDOW_SCRIPT.setResultType(Long.class);
+        GCRA_SCRIPT = new DefaultRedisScript<>();
+        GCRA_SCRIPT.setLocation(new ClassPathResource("gcra.lua"));
+        GCRA_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    // 是否开启限流
+    @Value("${qqdp.rate-limit.enabled:true}")
+    private boolean enabled;
+    // 本地最多记录的被拒绝 key 数，超过时不再记录，由 redis 判断
+    @Value("${qqdp.rate-limit.local-max-keys:100000}")
+    private int localMaxKeys;
+
+    // 滑动窗口中请求的唯一标识，节点前缀 + 自增序号
+    private final String memberPrefix = UUID.randomUUID().toString(true) + "-";
+    private final AtomicLong sequence = new AtomicLong();
+
+    // 被拒绝的 key -> 解禁时间
+    private final Map<String, Long> blockedUntil = new ConcurrentHashMap<>();
+    // 规则名称 -> 指标
+    private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+
+    private static class Stats {
+        private final LongAdder allowed = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder rejectedLocally = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+    }
+
+    public RateLimiter(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /**
+     * 判断请求是否可以通过
+     *
+     * @param rule 限流规则
+     * @param id   限流维度的值，用户 id、IP 或手机号
+     * @return 通过返回 0，拒绝返回需要等待的毫秒数
+     */
+    public long tryAcquire(RateLimit rule, String id) {
+        if (!enabled) {
+            return 0;
+        }
+        Stats ruleStats = stats.computeIfAbsent(rule.name(), name -> new Stats());
+        String key = RedisConstants.RATE_LIMIT_KEY + rule.name() + ":" + id;
+        // 1.本地记录的解禁时间之前直接拒绝
+        long now = System.currentTimeMillis();
+        Long until = blockedUntil.get(key);
+        if (until != null) {
+            if (now < until) {
+                ruleStats.rejectedLocally.increment();
+                return until - now;
+            }
+            blockedUntil.remove(key, until);
+        }
+        // 2.执行限流脚本
+        Long wait;
+        try {
+            long periodMillis = rule.unit().toMillis(rule.period());
+            if (rule.algorithm() == RateLimit.Algorithm.GCRA) {
+                long interval = Math.max(1, periodMillis / rule.limit());
+                wait = stringRedisTemplate.execute(GCRA_SCRIPT, Collections.singletonList(key),
+                        String.valueOf(interval), String.valueOf(interval * rule.burst()));
+            } else {
+                wait = stringRedisTemplate.execute(SLIDING_WINDOW_SCRIPT, Collections.singletonList(key),
+                        String.valueOf(rule.limit()), String.valueOf(periodMillis),
+                        memberPrefix + sequence.incrementAndGet());
+            }
+        } catch (Exception e) {
+            ruleStats.errors.increment();
+            log.warn("限流规则 {} 执行失败，放行：{}", rule.name(), ExceptionUtil.getRootCauseMessage(e));
+            return 0;
+        }
+        if (wait == null || wait <= 0) {
+            ruleStats.allowed.increment();
+            return 0;
+        }
+        // 3.被拒绝，记录解禁时间
+        ruleStats.rejected.increment();
+        if (blockedUntil.size() < localMaxKeys) {
+            blockedUntil.put(key, System.currentTimeMillis() + wait);
+        }
+        return wait;
+    }
+
+    /**
+     * 定时清除已解禁的 key
+     */
+    @Scheduled(fixedDelay = 10_000)
+    public void purge() {
+        long now = System.currentTimeMillis();
+        blockedUntil.entrySet().removeIf(entry -> entry.getValue() <= now);
+    }
+
+    /**
+     * 获取各个规则的通过、拒绝次数
+     *
+     * @return
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> rules = new TreeMap<>();
+        stats.forEach((name, ruleStats) -> {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("allowed", ruleStats.allowed.sum());
+            map.put("rejected", ruleStats.rejected.sum());
+            // 本地拒绝的请求没有访问 redis
+            map.put("rejectedLocally", ruleStats.rejectedLocally.sum());
+            map.put("errors", ruleStats.errors.sum());
+            rules.put(name, map);
+        });
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("enabled", enabled);
+        map.put("blockedKeys", blockedUntil.size());
+        map.put("rules", rules);
+        return map;
+    }
+}
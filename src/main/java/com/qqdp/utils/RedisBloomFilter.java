@@ -0,0 +1,236 @@
+package com.qqdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 布隆过滤器，用于解决缓存穿透问题
+ * <p>
+ * 数据持久化在 redis 的 bitmap 中，所有节点共享；每个节点在内存中保存一份相同的位数组，
+ * 查询时只读本地位数组，不需要访问 redis。新增数据时同时写本地、写 redis，
+ * 并通过发布订阅通知其他节点更新本地位数组。
+ * <p>
+ * 布隆过滤器判断不存在的数据一定不存在，判断存在的数据可能不存在（误判），
+ * 在加载完成前一律判断为存在，不会误拦截正常的请求。
+ * <p>
+ * 构建完成后写入一个完成标记，只有标记存在时才认为 redis 中的位数组是完整的；
+ * 构建中途宕机、或构建前 {@link #add(Object)} 只写入了部分位时，标记不存在，需要从数据库重新构建。
+ * <p>
+ * 位数组大小 m = -n * ln(p) / (ln2)^2，哈希函数个数 k = m / n * ln2，
+ * 其中 n 为预计数据量，p 为期望误判率。
+ */
+public class RedisBloomFilter {
+    // 过滤器名称
+    private final String name;
+    // redis 中的 key
+    private final String key;
+    // 构建完成标记的 key
+    private final String readyKey;
+    // 位数组长度
+    private final long numBits;
+    // 哈希函数个数
+    private final int numHashes;
+    // 本地位数组
+    private final AtomicLongArray words;
+    // 是否加载完成
+    private volatile boolean ready;
+
+    private final RedisTemplate<String, byte[]> redisTemplate;
+
+    public RedisBloomFilter(String name, long expectedInsertions, double fpp,
+                            RedisTemplate<String, byte[]> redisTemplate) {
+        this.name = name;
+        this.key = RedisConstants.BLOOM_FILTER_KEY + name;
+        this.readyKey = RedisConstants.BLOOM_FILTER_READY_KEY + name;
+        this.numBits = Math.max(64, (long) (-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2))));
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / expectedInsertions * Math.log(2)));
+        this.words = new AtomicLongArray((int) ((numBits + 63) >>> 6));
+        this.redisTemplate = redisTemplate;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * 判断数据是否可能存在
+     *
+     * @param id 数据 id
+     * @return false 表示一定不存在
+     */
+    public boolean mightContain(Object id) {
+        if (!ready) {
+            return true;
+        }
+        for (long index : indexes(id)) {
+            if ((words.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 新增数据，同时写入本地与 redis
+     *
+     * @param id 数据 id
+     */
+    public void add(Object id) {
+        long[] indexes = indexes(id);
+        for (long index : indexes) {
+            setLocal(index);
+        }
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (long index : indexes) {
+                connection.stringCommands().setBit(rawKey, index, true);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 只写入本地位数组，用于接收其他节点新增数据的通知
+     *
+     * @param id 数据 id
+     */
+    public void addLocal(Object id) {
+        for (long index : indexes(id)) {
+            setLocal(index);
+        }
+    }
+
+    /**
+     * 从 redis 中加载位数组，只有存在构建完成标记时才加载
+     *
+     * @return redis 中是否已存在构建完成的过滤器，false 时需要从数据库重新构建
+     */
+    public boolean load() {
+        if (!Boolean.TRUE.equals(redisTemplate.hasKey(readyKey))) {
+            return false;
+        }
+        byte[] bitmap = redisTemplate.opsForValue().get(key);
+        if (bitmap == null) {
+            return false;
+        }
+        for (int i = 0; i < bitmap.length; i++) {
+            if (bitmap[i] == 0) {
+                continue;
+            }
+            for (int j = 0; j < 8; j++) {
+                // redis 中 offset 0 是第一个字节的最高位
+                if ((bitmap[i] & (0x80 >>> j)) != 0) {
+                    long index = ((long) i << 3) + j;
+                    if (index < numBits) {
+                        setLocal(index);
+                    }
+                }
+            }
+        }
+        ready = true;
+        return true;
+    }
+
+    /**
+     * 将一批数据写入本地位数组，全部写入后调用 {@link #flush()} 同步到 redis
+     *
+     * @param ids 数据 id
+     */
+    public void putAll(Collection<?> ids) {
+        ids.forEach(this::addLocal);
+    }
+
+    /**
+     * 将本地位数组与 redis 中的位数组按位或合并，不会覆盖其他节点在此期间新增的数据，
+     * 合并完成后写入构建完成标记
+     */
+    public void flush() {
+        byte[] bitmap = new byte[(int) ((numBits + 7) >>> 3)];
+        for (long index = 0; index < numBits; index++) {
+            if ((words.get((int) (index >>> 6)) & (1L << index)) != 0) {
+                bitmap[(int) (index >>> 3)] |= (byte) (0x80 >>> (index & 7));
+            }
+        }
+        String tmpKey = key + ":tmp:" + System.nanoTime();
+        redisTemplate.opsForValue().set(tmpKey, bitmap, 10, TimeUnit.MINUTES);
+        redisTemplate.execute((RedisCallback<Object>) connection -> connection.stringCommands().bitOp(
+                RedisStringCommands.BitOperation.OR,
+                key.getBytes(StandardCharsets.UTF_8),
+                key.getBytes(StandardCharsets.UTF_8),
+                tmpKey.getBytes(StandardCharsets.UTF_8)));
+        redisTemplate.delete(tmpKey);
+        redisTemplate.opsForValue().set(readyKey,
+                String.valueOf(System.currentTimeMillis()).getBytes(StandardCharsets.UTF_8));
+        ready = true;
+    }
+
+    /**
+     * 过滤器的指标：内存占用、位数组填充率、理论误判率，
+     * 以及用一批一定不存在的 id（负数）实际测得的误判率
+     *
+     * @return
+     */
+    public Map<String, Object> snapshot() {
+        long bitCount = 0;
+        for (int i = 0; i < words.length(); i++) {
+            bitCount += Long.bitCount(words.get(i));
+        }
+        double fillRatio = (double) bitCount / numBits;
+        int probes = 10000;
+        int positives = 0;
+        for (int i = 1; i <= probes; i++) {
+            if (mightContain(-i)) {
+                positives++;
+            }
+        }
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("ready", ready);
+        map.put("numBits", numBits);
+        map.put("numHashes", numHashes);
+        map.put("memoryBytes", (numBits + 7) >>> 3);
+        map.put("fillRatio", fillRatio);
+        // 估算已插入的数据量 n = -m / k * ln(1 - X / m)
+        map.put("approximateCount", Math.round(-(double) numBits / numHashes * Math.log(1 - fillRatio)));
+        // 理论误判率 (X / m)^k
+        map.put("expectedFpp", Math.pow(fillRatio, numHashes));
+        map.put("measuredFpp", (double) positives / probes);
+        return map;
+    }
+
+    private void setLocal(long index) {
+        int i = (int) (index >>> 6);
+        long mask = 1L << index;
+        long old;
+        do {
+            old = words.get(i);
+            if ((old & mask) != 0) {
+                return;
+            }
+        } while (!words.compareAndSet(i, old, old | mask));
+    }
+
+    // 双重哈希计算 k 个位置：h1 + i * h2
+    private long[] indexes(Object id) {
+        long[] hash = MurmurHash.hash128(id.toString().getBytes(StandardCharsets.UTF_8));
+        long[] indexes = new long[numHashes];
+        long combined = hash[0];
+        for (int i = 0; i < numHashes; i++) {
+            indexes[i] = (combined & Long.MAX_VALUE) % numBits;
+            combined += hash[1];
+        }
+        return indexes;
+    }
+}
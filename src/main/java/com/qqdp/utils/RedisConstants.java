@@ -10,18 +10,53 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final String CACHE_SHOP_TYPE_KEY = "cache:shop-type:list";
     public static final String CACHE_SECKILL_VOUCHER_KEY = "cache:seckill:voucher:";
+    // 目前没有修改用户信息的接口，用户缓存不会被主动删除，依靠较短的过期时间保证最终一致
+    public static final Long CACHE_USER_TTL = 5L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_BLOG_TTL = 10L;
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String CACHE_REBUILT_CHANNEL = "cache:rebuilt";
+    public static final String CACHE_HOT_KEY = "cache:hot:keys";
+    public static final String CACHE_HOT_KEY_CHANNEL = "cache:hot";
+    public static final String CACHE_SHADOW_KEY = "cache:shadow:";
+
+    public static final String BLOOM_FILTER_KEY = "bloom:";
+    public static final String BLOOM_FILTER_ADD_CHANNEL = "bloom:add";
+    public static final String BLOOM_FILTER_READY_KEY = "bloom:ready:";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_ORDER_COUNT_KEY = "seckill:order:count:";
+    public static final String SECKILL_ORDER_BITMAP_KEY = "seckill:order:bitmap:";
+    public static final String SECKILL_META_KEY = "seckill:meta:";
+    public static final String SECKILL_ORDER_STREAM_KEY = "stream.orders:";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final String SECKILL_ORDER_DLQ_KEY = "stream.orders.dlq";
+    public static final String SECKILL_PERSISTED_KEY = "seckill:persisted:";
+    public static final String SECKILL_STATE_CHANNEL = "seckill:state";
+    public static final String SECKILL_ORDER_STATUS_KEY = "seckill:order:status:";
+    public static final String SECKILL_ORDER_STATUS_CHANNEL = "seckill:order:status";
+    public static final String SECKILL_ORDER_EXPIRE_KEY = "seckill:order:expire";
+    public static final String SECKILL_RESTORED_KEY = "seckill:restored:";
+    public static final String SECKILL_ADMISSION_KEY = "seckill:admission:";
+    public static final String SECKILL_TICKET_KEY = "seckill:ticket:";
+    public static final String SECKILL_TICKET_SEQ_KEY = "seckill:ticket:seq:";
+    public static final String SECKILL_TICKET_SERVED_KEY = "seckill:ticket:served:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String BLOG_USER_KEY = "blog:user:";
     public static final String BLOG_VIEW_KEY = "blog:view:";
     public static final String FEED_KEY = "feed:";
+    public static final String ID_WORKER_KEY = "id:worker:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
     public static final String USER_SIGN_KEY = "user:sign:";
 
     public static final String USER_FOLLOWS_KEY = "user:follow:";
+
+    public static final String RATE_LIMIT_KEY = "rate:limit:";
 }
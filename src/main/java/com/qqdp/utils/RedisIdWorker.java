@@ -1,11 +1,28 @@
 package com.qqdp.utils;
 
+import cn.hutool.core.exceptions.ExceptionUtil;
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Redis 实现全局唯一 Id，类似雪花算法
@@ -33,7 +50,14 @@ import java.time.format.DateTimeFormatter;
  * 时间戳：31bit，以秒为单位，可以使用69年
  * <br>
  * 序列号：32bit，秒内的计数器，支持每秒产生2^32个不同ID
+ * <p></p>
+ * 号段模式：每次 INCRBY step 从 redis 预留一段序列号，在本地通过 AtomicLong 无锁发放，
+ * 当前号段使用过半时异步预取下一段（双缓冲），生成 id 基本不需要访问 redis。
+ * 序列号仍按天计数，日期变化时丢弃本地的号段。号段之间的序列号不连续，节点重启后未发放的序列号作废。
+ * <p></p>
+ * 配置在 qqdp.id.snowflake.prefixes 中的业务使用 {@link SnowflakeIdWorker}，完全不访问 redis。
  */
+@Slf4j
 @Component
 public class RedisIdWorker {
     /**
@@ -46,13 +70,85 @@ public class RedisIdWorker {
      */
     private static final int COUNT_BITS = 32;
 
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    // 一段序列号 [cursor, end]
+    private static class Segment {
+        private final String date;
+        private final AtomicLong cursor;
+        private final long end;
+
+        private Segment(String date, long begin, long end) {
+            this.date = date;
+            this.cursor = new AtomicLong(begin);
+            this.end = end;
+        }
+    }
+
+    // 每个业务的双缓冲
+    private static class SegmentBuffer {
+        private volatile Segment current;
+        private volatile Segment next;
+        private final AtomicBoolean loading = new AtomicBoolean();
+    }
+
+    // 缓存当天的日期及起止时间，避免每次格式化日期
+    private static class Day {
+        private final String date;
+        // 当天开始、结束的秒数，与时间戳的计算方式一致
+        private final long begin;
+        private final long end;
+
+        private Day(LocalDate date) {
+            this.date = date.format(DATE_FORMATTER);
+            this.begin = date.atStartOfDay().toEpochSecond(ZoneOffset.UTC);
+            this.end = begin + 24 * 3600;
+        }
+    }
+
     private StringRedisTemplate stringRedisTemplate;
 
+    // 生成方式：redis 每个 id 自增一次，segment 号段模式
+    @Value("${qqdp.id.mode:redis}")
+    private String mode;
+    // 每个号段的序列号数量
+    @Value("${qqdp.id.segment.step:1000}")
+    private long step;
+    // 使用雪花算法的业务前缀，多个以逗号隔开
+    @Value("${qqdp.id.snowflake.prefixes:}")
+    private String snowflakePrefixes;
+    private Set<String> snowflakes = Collections.emptySet();
+
+    @Resource
+    private SnowflakeIdWorker snowflakeIdWorker;
+
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+    private volatile Day day;
+    // 异步预取下一个号段
+    private final ExecutorService prefetchExecutor =
+            Executors.newSingleThreadExecutor(new NamedThreadFactory("id-segment-", true));
+
     public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
         this.stringRedisTemplate = stringRedisTemplate;
     }
 
+    @PostConstruct
+    private void init() {
+        snowflakes = new HashSet<>(StrUtil.splitTrim(snowflakePrefixes, ","));
+    }
+
+    @PreDestroy
+    private void destroy() {
+        prefetchExecutor.shutdownNow();
+    }
+
     public long nextId(String keyPrefix) {
+        if (snowflakes.contains(keyPrefix)) {
+            return snowflakeIdWorker.nextId();
+        }
+        if ("segment".equals(mode)) {
+            return nextSegmentId(keyPrefix);
+        }
         // 1.生成时间戳
         LocalDateTime now = LocalDateTime.now();
         long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
@@ -60,7 +156,7 @@ public class RedisIdWorker {
 
         // 2.生成序列号
         // 2.1.获取当前日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        String date = now.format(DATE_FORMATTER);
         // 2.2.自增长
         // 采取这种格式的 key，后期方便统计某年某月某天的总量
         long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
@@ -68,4 +164,106 @@ public class RedisIdWorker {
         // 3.拼接并返回
         return timestamp << COUNT_BITS | count;
     }
+
+    /**
+     * 号段模式生成 id，id 的组成与逐个自增时相同
+     *
+     * @param keyPrefix 业务前缀
+     * @return
+     */
+    private long nextSegmentId(String keyPrefix) {
+        SegmentBuffer buffer = buffers.computeIfAbsent(keyPrefix, k -> new SegmentBuffer());
+        while (true) {
+            // 1.生成时间戳，与 LocalDateTime.now().toEpochSecond(ZoneOffset.UTC) 相同
+            long nowMillis = System.currentTimeMillis();
+            long nowSecond = nowMillis / 1000
+                    + ZoneId.systemDefault().getRules().getOffset(Instant.ofEpochMilli(nowMillis)).getTotalSeconds();
+            Day today = today(nowSecond);
+
+            // 2.从当前号段获取序列号
+            Segment segment = buffer.current;
+            if (segment != null && segment.date.equals(today.date)) {
+                long count = segment.cursor.getAndIncrement();
+                if (count <= segment.end) {
+                    // 2.1.当前号段使用过半，预取下一段
+                    if (segment.end - count < step / 2 && buffer.next == null) {
+                        prefetch(keyPrefix, buffer, today.date);
+                    }
+                    return (nowSecond - BEGIN_TIMESTAMP) << COUNT_BITS | count;
+                }
+            }
+            // 3.当前号段用完或日期变化，切换到下一段
+            switchSegment(keyPrefix, buffer, segment, today.date);
+        }
+    }
+
+    private synchronized void switchSegment(String keyPrefix, SegmentBuffer buffer, Segment used, String date) {
+        if (buffer.current != used) {
+            // 其他线程已切换
+            return;
+        }
+        Segment next = buffer.next;
+        buffer.next = null;
+        // 预取的号段属于前一天时丢弃
+        buffer.current = next != null && next.date.equals(date) ? next : allocate(keyPrefix, date);
+    }
+
+    private void prefetch(String keyPrefix, SegmentBuffer buffer, String date) {
+        if (!buffer.loading.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            prefetchExecutor.execute(() -> {
+                try {
+                    if (buffer.next == null) {
+                        buffer.next = allocate(keyPrefix, date);
+                    }
+                } catch (Exception e) {
+                    // 预取失败时，号段用完后同步获取
+                    log.warn("预取 id 号段失败：{}", ExceptionUtil.getRootCauseMessage(e));
+                } finally {
+                    buffer.loading.set(false);
+                }
+            });
+        } catch (Exception e) {
+            buffer.loading.set(false);
+        }
+    }
+
+    // 从 redis 预留一段序列号 INCRBY icr:keyPrefix:date step
+    private Segment allocate(String keyPrefix, String date) {
+        Long end = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, step);
+        return new Segment(date, end - step + 1, end);
+    }
+
+    /**
+     * 获取各业务的生成方式、当前号段及雪花算法的指标
+     *
+     * @return
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("mode", mode);
+        map.put("snowflakePrefixes", snowflakes);
+        Map<String, Object> segments = new LinkedHashMap<>();
+        buffers.forEach((keyPrefix, buffer) -> {
+            Segment current = buffer.current;
+            Map<String, Object> state = new LinkedHashMap<>();
+            state.put("remaining", current == null ? 0 : Math.max(0, current.end - current.cursor.get() + 1));
+            state.put("prefetched", buffer.next != null);
+            segments.put(keyPrefix, state);
+        });
+        map.put("segments", segments);
+        map.put("snowflake", snowflakeIdWorker.snapshot());
+        return map;
+    }
+
+    private Day today(long nowSecond) {
+        Day today = day;
+        if (today == null || nowSecond < today.begin || nowSecond >= today.end) {
+            today = new Day(LocalDate.ofEpochDay(Math.floorDiv(nowSecond, 24 * 3600)));
+            day = today;
+        }
+        return today;
+    }
 }
@@ -0,0 +1,102 @@
+package com.qqdp.utils;
+
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 创建可以阻塞等待的分布式锁
+ * <p>
+ * 锁释放时向该锁的频道发布消息，等待的线程订阅频道，收到消息后立即重新竞争锁，
+ * 锁的交接只需要一次往返，不需要按固定间隔轮询 redis。
+ * 同一个锁在本节点只订阅一次，第一个线程开始等待时订阅，最后一个线程结束等待时取消订阅。
+ */
+@Component
+public class RedisLocks {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    // 频道 -> 订阅
+    private final Map<String, Subscription> subscriptions = new HashMap<>();
+
+    /**
+     * 锁频道的订阅，本节点等待同一个锁的线程共用
+     */
+    static class Subscription {
+        private final ChannelTopic topic;
+        private final MessageListener listener;
+        // 等待的线程数
+        private int refs;
+        // 每次收到释放的消息时唤醒当前的所有等待者，并换成新的门闩
+        private volatile CountDownLatch latch = new CountDownLatch(1);
+
+        private Subscription(String channel) {
+            this.topic = new ChannelTopic(channel);
+            this.listener = (message, pattern) -> signal();
+        }
+
+        private void signal() {
+            CountDownLatch current = latch;
+            latch = new CountDownLatch(1);
+            current.countDown();
+        }
+
+        /**
+         * 竞争锁之前获取，竞争失败后在其上等待，竞争期间发布的消息不会丢失
+         *
+         * @return
+         */
+        CountDownLatch latch() {
+            return latch;
+        }
+    }
+
+    /**
+     * 获取可重入锁，等待的线程被唤醒后同时竞争
+     *
+     * @param name 锁名称
+     * @return
+     */
+    public ILock getLock(String name) {
+        return new RedisReentrantLock(stringRedisTemplate, name, this, false);
+    }
+
+    /**
+     * 获取公平的可重入锁，等待的线程按开始等待的顺序获取锁
+     *
+     * @param name 锁名称
+     * @return
+     */
+    public ILock getFairLock(String name) {
+        return new RedisReentrantLock(stringRedisTemplate, name, this, true);
+    }
+
+    synchronized Subscription subscribe(String channel) {
+        Subscription subscription = subscriptions.get(channel);
+        if (subscription == null) {
+            subscription = new Subscription(channel);
+            listenerContainer.addMessageListener(subscription.listener, subscription.topic);
+            subscriptions.put(channel, subscription);
+        }
+        subscription.refs++;
+        return subscription;
+    }
+
+    synchronized void unsubscribe(String channel, Subscription subscription) {
+        if (--subscription.refs > 0) {
+            return;
+        }
+        subscriptions.remove(channel);
+        listenerContainer.removeMessageListener(subscription.listener, subscription.topic);
+    }
+}
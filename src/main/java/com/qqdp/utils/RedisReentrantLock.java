@@ -0,0 +1,268 @@
+package com.qqdp.utils;
+
+import cn.hutool.core.exceptions.ExceptionUtil;
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.NamedThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * 利用 Redis 的 hash 实现可重入的分布式锁，并由看门狗自动续期
+ * <br>
+ * 可重入：hash 的 field 为持有者标识（节点 + 线程），value 为重入次数，
+ * 同一个线程重复获取时次数加 1，释放时减 1，减到 0 才删除锁，嵌套调用不会死锁
+ * <br>
+ * 看门狗：持有锁期间，所有锁共用的定时任务每隔 1/3 有效时间为锁续期，业务执行时间超过有效时间也不会丢失锁；
+ * 节点宕机后不再续期，锁在有效时间后自动释放，因此可以使用较短的有效时间，快速故障转移
+ * <br>
+ * 阻塞等待：通过 {@link RedisLocks} 创建的锁在释放时发布消息，等待的线程收到消息后立即重新竞争；
+ * 每次最多等待锁的剩余有效时间，锁过期未释放或消息丢失时也能继续竞争。
+ * 公平锁的等待线程在 redis 中排队，按开始等待的顺序获取锁，同一个锁名称不能混用公平与非公平的方式
+ * <br>
+ * 与 {@link SimpleRedisLock} 使用相同的 key 前缀和不同的数据类型，同一个锁名称不能混用
+ */
+@Slf4j
+public class RedisReentrantLock implements ILock {
+
+    // 分布式锁标志的 id 前缀，用于区分分布式系统不同的主机
+    private static final String ID_PREFIX = UUID.randomUUID().toString(true) + "-";
+    // 分布式锁的 key 前缀
+    private static final String KEY_PREFIX = "lock:";
+    // 本节点未持有锁时释放使用的有效时间
+    private static final long DEFAULT_LEASE_MILLIS = 30_000;
+    // 公平锁的等待者超过该时间未重新竞争则移出队列，等待者每 1/3 的时间重新竞争一次
+    private static final long FAIR_STALE_MILLIS = 15_000;
+
+    private static final DefaultRedisScript<Long> LOCK_SCRIPT;
+    private static final DefaultRedisScript<Long> FAIR_LOCK_SCRIPT;
+    private static final DefaultRedisScript<Long> FAIR_UNQUEUE_SCRIPT;
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+
+    static {
+        LOCK_SCRIPT = new DefaultRedisScript<>();
+        LOCK_SCRIPT.setLocation(new ClassPathResource("reentrant_lock.lua"));
+        LOCK_SCRIPT.setResultType(Long.class);
+        FAIR_LOCK_SCRIPT = new DefaultRedisScript<>();
+        FAIR_LOCK_SCRIPT.setLocation(new ClassPathResource("fair_lock.lua"));
+        FAIR_LOCK_SCRIPT.setResultType(Long.class);
+        FAIR_UNQUEUE_SCRIPT = new DefaultRedisScript<>();
+        FAIR_UNQUEUE_SCRIPT.setLocation(new ClassPathResource("fair_unqueue.lua"));
+        FAIR_UNQUEUE_SCRIPT.setResultType(Long.class);
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("reentrant_unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("reentrant_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+    }
+
+    // 所有锁共用的看门狗线程
+    private static final ScheduledExecutorService WATCHDOG =
+            Executors.newScheduledThreadPool(2, new NamedThreadFactory("lock-watchdog-", true));
+    // 本节点持有的锁 key -> 续期任务
+    private static final Map<String, Renewal> RENEWALS = new ConcurrentHashMap<>();
+
+    // 续期任务，同一时间一个锁在本节点只会由一个线程持有
+    private static class Renewal {
+        private final String owner;
+        private final long leaseMillis;
+        // 本节点的重入次数
+        private int holds;
+        private ScheduledFuture<?> future;
+
+        private Renewal(String owner, long leaseMillis) {
+            this.owner = owner;
+            this.leaseMillis = leaseMillis;
+        }
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    // 分布式锁的 key
+    private final String key;
+    // 释放锁的通知频道
+    private final String channel;
+    // 公平锁的等待队列及等待者的存活期限
+    private final String queueKey;
+    private final String aliveKey;
+    // 为 null 时不订阅释放的通知，等待时按固定间隔重试
+    private final RedisLocks locks;
+    private final boolean fair;
+
+    public RedisReentrantLock(StringRedisTemplate stringRedisTemplate, String key) {
+        this(stringRedisTemplate, key, null, false);
+    }
+
+    RedisReentrantLock(StringRedisTemplate stringRedisTemplate, String key, RedisLocks locks, boolean fair) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.key = KEY_PREFIX + key;
+        this.channel = this.key + ":released";
+        this.queueKey = this.key + ":queue";
+        this.aliveKey = this.key + ":alive";
+        this.locks = locks;
+        this.fair = fair;
+    }
+
+    @Override
+    public boolean tryLock(long timeSec) {
+        long leaseMillis = TimeUnit.SECONDS.toMillis(timeSec);
+        if (acquire(leaseMillis) != null) {
+            // 只尝试一次，不在队列中等待
+            leaveQueue();
+            return false;
+        }
+        startRenewal(leaseMillis);
+        return true;
+    }
+
+    @Override
+    public boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException {
+        long leaseMillis = unit.toMillis(leaseTime);
+        long deadline = ILock.deadline(waitTime, unit);
+        // 1.先尝试一次，锁空闲时不需要订阅
+        Long ttl = acquire(leaseMillis);
+        if (ttl == null) {
+            startRenewal(leaseMillis);
+            return true;
+        }
+        if (deadline <= System.currentTimeMillis()) {
+            leaveQueue();
+            return false;
+        }
+        // 2.订阅释放的通知，收到通知或等待锁的剩余有效时间后重新竞争
+        RedisLocks.Subscription subscription = locks == null ? null : locks.subscribe(channel);
+        boolean acquired = false;
+        try {
+            while (true) {
+                // 竞争前获取门闩，竞争失败后到开始等待前发布的通知不会丢失
+                CountDownLatch latch = subscription == null ? null : subscription.latch();
+                ttl = acquire(leaseMillis);
+                if (ttl == null) {
+                    acquired = true;
+                    startRenewal(leaseMillis);
+                    return true;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                long wait = Math.min(remaining, ttl > 0 ? ttl : remaining);
+                if (fair) {
+                    // 定期重新竞争，刷新在队列中的存活期限
+                    wait = Math.min(wait, FAIR_STALE_MILLIS / 3);
+                }
+                if (latch == null) {
+                    Thread.sleep(Math.min(wait, POLL_MILLIS));
+                } else {
+                    latch.await(wait, TimeUnit.MILLISECONDS);
+                }
+            }
+        } finally {
+            if (!acquired) {
+                leaveQueue();
+            }
+            if (subscription != null) {
+                locks.unsubscribe(channel, subscription);
+            }
+        }
+    }
+
+    // 获取锁，成功返回 null，失败返回锁的剩余有效时间
+    private Long acquire(long leaseMillis) {
+        if (!fair) {
+            return stringRedisTemplate.execute(LOCK_SCRIPT, Collections.singletonList(key),
+                    owner(), String.valueOf(leaseMillis));
+        }
+        return stringRedisTemplate.execute(FAIR_LOCK_SCRIPT, Arrays.asList(key, queueKey, aliveKey, channel),
+                owner(), String.valueOf(leaseMillis), String.valueOf(FAIR_STALE_MILLIS));
+    }
+
+    // 放弃等待时离开公平锁的队列，锁空闲时通知后面的等待者，不阻塞后面的等待者
+    private void leaveQueue() {
+        if (!fair) {
+            return;
+        }
+        try {
+            stringRedisTemplate.execute(FAIR_UNQUEUE_SCRIPT, Arrays.asList(key, queueKey, aliveKey, channel), owner());
+        } catch (Exception e) {
+            // 未删除的等待者在存活期限后被移出队列
+            log.warn("离开锁 {} 的等待队列失败：{}", key, ExceptionUtil.getRootCauseMessage(e));
+        }
+    }
+
+    @Override
+    public void unlock() {
+        String owner = owner();
+        // 重入时释放后仍持有锁，重置为获取时的有效时间
+        Renewal renewal = RENEWALS.get(key);
+        long leaseMillis = renewal != null && renewal.owner.equals(owner) ? renewal.leaseMillis : DEFAULT_LEASE_MILLIS;
+        // 先停止续期再释放，释放失败时锁在有效时间后自动过期
+        stopRenewal(owner);
+        Long result = stringRedisTemplate.execute(UNLOCK_SCRIPT, Arrays.asList(key, channel),
+                owner, String.valueOf(leaseMillis));
+        if (result == null) {
+            log.warn("释放锁 {} 失败，锁已过期或不属于当前线程", key);
+        }
+    }
+
+    private String owner() {
+        return ID_PREFIX + Thread.currentThread().getId();
+    }
+
+    // 首次获取时开始续期，重入时只增加次数
+    private void startRenewal(long leaseMillis) {
+        String owner = owner();
+        RENEWALS.compute(key, (k, renewal) -> {
+            if (renewal == null || !renewal.owner.equals(owner)) {
+                if (renewal != null) {
+                    // 上一个持有者的锁已过期但未释放
+                    renewal.future.cancel(false);
+                }
+                renewal = new Renewal(owner, leaseMillis);
+                long period = Math.max(leaseMillis / 3, 1);
+                Renewal current = renewal;
+                renewal.future = WATCHDOG.scheduleWithFixedDelay(() -> renew(current),
+                        period, period, TimeUnit.MILLISECONDS);
+            }
+            renewal.holds++;
+            return renewal;
+        });
+    }
+
+    // 重入次数减到 0 时停止续期
+    private void stopRenewal(String owner) {
+        RENEWALS.computeIfPresent(key, (k, renewal) -> {
+            if (!renewal.owner.equals(owner)) {
+                return renewal;
+            }
+            if (--renewal.holds > 0) {
+                return renewal;
+            }
+            renewal.future.cancel(false);
+            return null;
+        });
+    }
+
+    private void renew(Renewal renewal) {
+        try {
+            Long success = stringRedisTemplate.execute(RENEW_SCRIPT, Collections.singletonList(key),
+                    renewal.owner, String.valueOf(renewal.leaseMillis));
+            if (success == null || success == 0) {
+                // 锁已不属于自己，停止续期
+                log.warn("锁 {} 已丢失，停止续期", key);
+                renewal.future.cancel(false);
+                RENEWALS.remove(key, renewal);
+            }
+        } catch (Exception e) {
+            // redis 暂时不可用，下次继续续期
+            log.warn("锁 {} 续期失败：{}", key, ExceptionUtil.getRootCauseMessage(e));
+        }
+    }
+}
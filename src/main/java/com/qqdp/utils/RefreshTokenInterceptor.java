@@ -1,10 +1,9 @@
 package com.qqdp.utils;
 
 import cn.hutool.core.util.StrUtil;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.qqdp.dto.UserDTO;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -14,15 +13,15 @@ import java.util.concurrent.TimeUnit;
 /**
  * 自动刷新 token 有效时间的拦截器
  */
-public class RefreshTokenInterceptor implements HandlerInterceptor {
+public class RefreshTokenInterceptor implements AsyncHandlerInterceptor {
 
     private StringRedisTemplate stringRedisTemplate;
 
-    // JSON工具
-    private static final ObjectMapper mapper = new ObjectMapper();
+    private CacheClient cacheClient;
 
-    public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate) {
+    public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate, CacheClient cacheClient) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.cacheClient = cacheClient;
     }
 
     @Override
@@ -38,11 +37,7 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
             return true;
         }
         String key = RedisConstants.LOGIN_USER_KEY + token;
-        String userStr = stringRedisTemplate.opsForValue().get(key);
-        if (StrUtil.isBlank(userStr)) {
-            return true;
-        }
-        user = mapper.readValue(userStr, UserDTO.class);
+        user = cacheClient.get(key, UserDTO.class);
 
         if (user != null) {
             // 将用户信息保存在 ThreadLocal
@@ -54,6 +49,12 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         return true;
     }
 
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        // 异步请求（如长轮询）挂起后当前线程不会执行 afterCompletion，需要在这里移除 ThreadLocal
+        UserHolder.removeUser();
+    }
+
     @Override
     public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) throws Exception {
         // 要及时移除 ThreadLocal，防止内存泄漏
@@ -0,0 +1,402 @@
+package com.qqdp.utils;
+
+import cn.hutool.core.exceptions.ExceptionUtil;
+import com.qqdp.dto.SeckillTicket;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands.Limit;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 秒杀准入控制（排队）
+ * <p>
+ * 1) 每个优惠券按配置的速率发放下单令牌，令牌桶保存在 redis 中，所有节点共享；
+ * 每个节点一次从 redis 中取一小批令牌在本地发放，大部分请求不需要访问 redis
+ * <br>
+ * 2) 没有获得令牌的用户领取排队号，按排队号轮询，定时任务按令牌速率依次放行；
+ * 已有用户在排队时，新来的用户也需要排队，保证先来先得
+ * <br>
+ * 3) 订单消息队列积压时按积压程度降低放行速率，积压超过上限时直接拒绝，
+ * 避免秒杀请求占满 tomcat 线程和 redis 连接，影响店铺、博客等其他接口
+ * <p>
+ * 同一个优惠券的令牌桶、排队号等 key 带有相同的 hash tag，在 redis 集群中位于同一个 slot，可以在一个脚本中操作
+ */
+@Slf4j
+@Component
+public class SeckillAdmission {
+
+    public enum Decision {
+        // 获得下单资格
+        ADMITTED,
+        // 需要排队
+        QUEUED,
+        // 系统繁忙，直接拒绝
+        SHED
+    }
+
+    private static final DefaultRedisScript<Long> TOKEN_BUCKET_SCRIPT;
+    private static final DefaultRedisScript<List> TICKET_SCRIPT;
+    private static final DefaultRedisScript<List> RELEASE_SCRIPT;
+
+    static {
+        TOKEN_BUCKET_SCRIPT = new DefaultRedisScript<>();
+        TOKEN_BUCKET_SCRIPT.setLocation(new ClassPathResource("token_bucket.lua"));
+        TOKEN_BUCKET_SCRIPT.setResultType(Long.class);
+        TICKET_SCRIPT = new DefaultRedisScript<>();
+        TICKET_SCRIPT.setLocation(new ClassPathResource("seckill_ticket.lua"));
+        TICKET_SCRIPT.setResultType(List.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("seckill_release.lua"));
+        RELEASE_SCRIPT.setResultType(List.class);
+    }
+
+    // 升级前未分片的消息队列，仍有消费者在消费
+    private static final String LEGACY_ORDER_STREAM = "stream.orders";
+
+    // 本地的令牌及排队状态
+    private static class Gate {
+        // 本地剩余的令牌
+        private final AtomicLong tokens = new AtomicLong();
+        // 同一时间只有一个线程从 redis 获取令牌
+        private final ReentrantLock refillLock = new ReentrantLock();
+        // 是否有用户在排队，由定时任务更新
+        private volatile boolean queueing;
+        // 最近一次请求的时间，长时间没有请求的优惠券不再执行定时任务
+        private volatile long lastAccess = System.currentTimeMillis();
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    // 是否开启准入控制
+    @Value("${qqdp.seckill.admission.enabled:false}")
+    private boolean enabled;
+    // 每个优惠券每秒放行的请求数
+    @Value("${qqdp.seckill.admission.rate:1000}")
+    private long rate;
+    // 令牌桶容量，允许的突发请求数
+    @Value("${qqdp.seckill.admission.burst:2000}")
+    private long burst;
+    // 每次从 redis 中获取的令牌数
+    @Value("${qqdp.seckill.admission.local-batch:20}")
+    private long localBatch;
+    // 排队号的有效时间
+    @Value("${qqdp.seckill.admission.ticket-ttl-seconds:600}")
+    private long ticketTtlSeconds;
+    // 订单消息队列积压超过该值时开始降低放行速率
+    @Value("${qqdp.seckill.admission.lag-low-water:10000}")
+    private long lagLowWater;
+    // 订单消息队列积压超过该值时直接拒绝
+    @Value("${qqdp.seckill.admission.lag-high-water:100000}")
+    private long lagHighWater;
+    @Value("${qqdp.seckill.stream.shards:4}")
+    private int streamShards;
+
+    private final Map<Long, Gate> gates = new ConcurrentHashMap<>();
+    // 订单消息队列的积压数量，由定时任务更新
+    private volatile long lag;
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+
+    public SeckillAdmission(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 判断请求能否直接下单
+     *
+     * @param voucherId 优惠券 id
+     * @return
+     */
+    public Decision admit(Long voucherId) {
+        if (!enabled) {
+            return Decision.ADMITTED;
+        }
+        // 1.积压超过上限，直接拒绝
+        if (lag >= lagHighWater) {
+            shed.increment();
+            return Decision.SHED;
+        }
+        Gate gate = gate(voucherId);
+        // 2.已有用户在排队，新来的用户也需要排队
+        if (gate.queueing) {
+            queued.increment();
+            return Decision.QUEUED;
+        }
+        // 3.获取令牌
+        if (tryAcquire(gate, voucherId)) {
+            admitted.increment();
+            return Decision.ADMITTED;
+        }
+        queued.increment();
+        return Decision.QUEUED;
+    }
+
+    /**
+     * 领取排队号，同一个用户重复领取时返回原来的排队号
+     *
+     * @param voucherId 优惠券 id
+     * @param userId    用户 id
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public SeckillTicket enqueue(Long voucherId, Long userId) {
+        List<Long> result = stringRedisTemplate.execute(TICKET_SCRIPT,
+                Arrays.asList(key(RedisConstants.SECKILL_TICKET_KEY, voucherId),
+                        key(RedisConstants.SECKILL_TICKET_SEQ_KEY, voucherId),
+                        key(RedisConstants.SECKILL_TICKET_SERVED_KEY, voucherId)),
+                userId.toString(), String.valueOf(ticketTtlSeconds));
+        gate(voucherId).queueing = true;
+        return new SeckillTicket(voucherId, result.get(0), Math.max(0, result.get(0) - result.get(1)));
+    }
+
+    /**
+     * 查询排队进度，轮到该用户时返回 null 并作废排队号，用户可以下单
+     *
+     * @param voucherId 优惠券 id
+     * @param userId    用户 id
+     * @param ticket    排队号
+     * @return 仍需排队时返回排队进度
+     */
+    public SeckillTicket poll(Long voucherId, Long userId, Long ticket) {
+        gate(voucherId);
+        String ticketKey = key(RedisConstants.SECKILL_TICKET_KEY, voucherId);
+        Object owned = stringRedisTemplate.opsForHash().get(ticketKey, userId.toString());
+        if (owned == null || !ticket.toString().equals(owned)) {
+            // 排队号不存在或已使用，重新排队
+            return enqueue(voucherId, userId);
+        }
+        String served = stringRedisTemplate.opsForValue().get(key(RedisConstants.SECKILL_TICKET_SERVED_KEY, voucherId));
+        long position = ticket - (served == null ? 0 : Long.parseLong(served));
+        if (position > 0) {
+            return new SeckillTicket(voucherId, ticket, position);
+        }
+        // 轮到该用户，作废排队号
+        if (stringRedisTemplate.opsForHash().delete(ticketKey, userId.toString()) == 0) {
+            // 并发轮询时只有一个请求可以下单
+            return enqueue(voucherId, userId);
+        }
+        admitted.increment();
+        return null;
+    }
+
+    /**
+     * 定时按令牌速率放行排队的用户，并更新订单消息队列的积压数量
+     */
+    @Scheduled(fixedDelayString = "${qqdp.seckill.admission.tick-millis:200}")
+    public void tick() {
+        if (!enabled || gates.isEmpty()) {
+            return;
+        }
+        try {
+            lag = queryLag();
+            long now = System.currentTimeMillis();
+            for (Iterator<Map.Entry<Long, Gate>> it = gates.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Long, Gate> entry = it.next();
+                Gate gate = entry.getValue();
+                if (now - gate.lastAccess > TimeUnit.SECONDS.toMillis(ticketTtlSeconds)) {
+                    it.remove();
+                    continue;
+                }
+                release(entry.getKey(), gate);
+            }
+        } catch (Exception e) {
+            log.warn("秒杀排队放行失败：{}", ExceptionUtil.getRootCauseMessage(e));
+        }
+    }
+
+    // 按令牌速率放行排队的用户，读取排队人数、获取令牌、INCRBY served 在一个脚本中完成，
+    // 每个节点都会执行，分开执行时多个节点会读到相同的排队人数而重复放行
+    @SuppressWarnings("unchecked")
+    private void release(Long voucherId, Gate gate) {
+        // 先使用本地剩余的令牌，未使用的放回
+        long local = drainLocal(gate, localBatch);
+        List<Long> result;
+        try {
+            result = stringRedisTemplate.execute(RELEASE_SCRIPT,
+                    Arrays.asList(key(RedisConstants.SECKILL_ADMISSION_KEY, voucherId),
+                            key(RedisConstants.SECKILL_TICKET_SEQ_KEY, voucherId),
+                            key(RedisConstants.SECKILL_TICKET_SERVED_KEY, voucherId)),
+                    String.valueOf(rate * rateFactor()), String.valueOf(burst), String.valueOf(local));
+        } catch (RuntimeException e) {
+            gate.tokens.addAndGet(local);
+            throw e;
+        }
+        gate.tokens.addAndGet(result.get(1));
+        // 本次没有放行任何人时说明没有用户在排队，或令牌已用完
+        gate.queueing = result.get(0) > 0 || isWaiting(voucherId);
+    }
+
+    // 是否还有用户在排队
+    private boolean isWaiting(Long voucherId) {
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(Arrays.asList(
+                key(RedisConstants.SECKILL_TICKET_SEQ_KEY, voucherId),
+                key(RedisConstants.SECKILL_TICKET_SERVED_KEY, voucherId)));
+        if (values == null || values.get(0) == null) {
+            return false;
+        }
+        return Long.parseLong(values.get(0)) > (values.get(1) == null ? 0 : Long.parseLong(values.get(1)));
+    }
+
+    private boolean tryAcquire(Gate gate, Long voucherId) {
+        if (drainLocal(gate, 1) == 1) {
+            return true;
+        }
+        // 本地令牌用完，由一个线程从 redis 获取一批令牌，其他线程排队
+        if (!gate.refillLock.tryLock()) {
+            return false;
+        }
+        try {
+            if (drainLocal(gate, 1) == 1) {
+                return true;
+            }
+            long granted = acquire(voucherId, localBatch);
+            if (granted <= 0) {
+                return false;
+            }
+            gate.tokens.addAndGet(granted - 1);
+            return true;
+        } finally {
+            gate.refillLock.unlock();
+        }
+    }
+
+    // 从本地取出最多 count 个令牌
+    private long drainLocal(Gate gate, long count) {
+        while (true) {
+            long tokens = gate.tokens.get();
+            long taken = Math.min(tokens, count);
+            if (taken <= 0) {
+                return 0;
+            }
+            if (gate.tokens.compareAndSet(tokens, tokens - taken)) {
+                return taken;
+            }
+        }
+    }
+
+    // 从 redis 的令牌桶中获取令牌
+    private long acquire(Long voucherId, long count) {
+        Long granted = stringRedisTemplate.execute(TOKEN_BUCKET_SCRIPT,
+                Collections.singletonList(key(RedisConstants.SECKILL_ADMISSION_KEY, voucherId)),
+                String.valueOf(rate * rateFactor()), String.valueOf(burst), String.valueOf(count));
+        return granted == null ? 0 : granted;
+    }
+
+    // 放行速率的系数，积压越多速率越低
+    private double rateFactor() {
+        if (lag <= lagLowWater) {
+            return 1;
+        }
+        return Math.max(0.01, 1 - (double) (lag - lagLowWater) / Math.max(1, lagHighWater - lagLowWater));
+    }
+
+    // 同一个优惠券的 key 带有相同的 hash tag
+    private static String key(String prefix, Long voucherId) {
+        return prefix + "{" + voucherId + "}";
+    }
+
+    /**
+     * 订单消息队列的积压数量，即消费者组中已投递未确认（pending）及尚未投递的消息数之和，
+     * 消息队列的长度包含已确认但未清理的消息，不能作为积压数量
+     * <br>
+     * 未投递的消息数取 XINFO GROUPS 的 lag（redis 7.0 及以上）；没有 lag 时从最后投递的消息开始 XRANGE 统计，
+     * 超过上限后不再统计
+     */
+    private long queryLag() {
+        long total = 0;
+        List<String> streams = new ArrayList<>(streamShards + 1);
+        for (int shard = 0; shard < streamShards; shard++) {
+            streams.add(RedisConstants.SECKILL_ORDER_STREAM_KEY + shard);
+        }
+        streams.add(LEGACY_ORDER_STREAM);
+        for (String stream : streams) {
+            if (total >= lagHighWater) {
+                break;
+            }
+            if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(stream))) {
+                continue;
+            }
+            StreamInfo.XInfoGroup group = stringRedisTemplate.opsForStream().groups(stream).stream()
+                    .filter(g -> RedisConstants.SECKILL_ORDER_GROUP.equals(g.groupName()))
+                    .findFirst().orElse(null);
+            if (group == null) {
+                // 消费者组还未创建，所有消息都未投递
+                Long size = stringRedisTemplate.opsForStream().size(stream);
+                total += size == null ? 0 : size;
+                continue;
+            }
+            total += group.pendingCount();
+            Object undelivered = group.getRaw().get("lag");
+            if (undelivered instanceof Long) {
+                total += (Long) undelivered;
+            } else {
+                total += countUndelivered(stream, group.lastDeliveredId(), lagHighWater - total);
+            }
+        }
+        return total;
+    }
+
+    // 统计最后投递的消息之后的消息数，最多统计 limit 条
+    private long countUndelivered(String stream, String lastDeliveredId, long limit) {
+        if (limit <= 0) {
+            return 0;
+        }
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(stream,
+                Range.rightUnbounded(Range.Bound.inclusive(lastDeliveredId)),
+                Limit.limit().count((int) Math.min(limit + 1, Integer.MAX_VALUE)));
+        if (records == null || records.isEmpty()) {
+            return 0;
+        }
+        // 包含最后投递的消息本身
+        return records.get(0).getId().getValue().equals(lastDeliveredId) ? records.size() - 1 : records.size();
+    }
+
+    private Gate gate(Long voucherId) {
+        Gate gate = gates.computeIfAbsent(voucherId, k -> new Gate());
+        gate.lastAccess = System.currentTimeMillis();
+        return gate;
+    }
+
+    /**
+     * 获取准入控制的指标
+     *
+     * @return
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("enabled", enabled);
+        map.put("lag", lag);
+        map.put("admitted", admitted.sum());
+        map.put("queued", queued.sum());
+        map.put("shed", shed.sum());
+        Map<Long, Object> vouchers = new LinkedHashMap<>();
+        gates.forEach((voucherId, gate) -> {
+            Map<String, Object> state = new LinkedHashMap<>();
+            state.put("localTokens", gate.tokens.get());
+            state.put("queueing", gate.queueing);
+            vouchers.put(voucherId, state);
+        });
+        map.put("vouchers", vouchers);
+        return map;
+    }
+}
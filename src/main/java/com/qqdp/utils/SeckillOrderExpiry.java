@@ -0,0 +1,296 @@
+package com.qqdp.utils;
+
+import cn.hutool.core.exceptions.ExceptionUtil;
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.thread.ThreadUtil;
+import com.qqdp.entity.VoucherOrder;
+import com.qqdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 超时未支付的秒杀订单自动取消
+ * <p>
+ * 1) 订单写入数据库后加入 redis 的延时队列（zset，分数为到期时间）持久化，同时加入本节点内存中的分层时间轮，
+ * 时间轮添加任务为 O(1)，每个任务只占一个链表节点，可以容纳数百万个定时任务
+ * <br>
+ * 2) 到期的订单按批处理：一个事务中将未支付的订单改为已取消，并归还数据库库存；
+ * 然后通过 lua 脚本归还 redis 库存及用户的购买资格，订单记录到用户所在段的已归还集合中，保证只归还一次，
+ * 再将订单状态改为已取消并通知长轮询的用户，最后从延时队列删除订单。延时队列是全局的 key，与各段的 key 不在同一个 slot，因此不在脚本中删除
+ * <br>
+ * 3) 节点宕机后时间轮中的任务丢失，定时扫描延时队列中已超时一段时间的订单补偿处理，
+ * 多个节点同时处理同一个订单时，数据库行锁及延时队列的删除保证只取消、归还一次
+ */
+@Slf4j
+@Component
+public class SeckillOrderExpiry {
+
+    private static final DefaultRedisScript<Long> RESTORE_SCRIPT;
+
+    static {
+        RESTORE_SCRIPT = new DefaultRedisScript<>();
+        RESTORE_SCRIPT.setLocation(new ClassPathResource("seckill_restore.lua"));
+        RESTORE_SCRIPT.setResultType(Long.class);
+    }
+
+    // 已归还订单集合的过期时间，需大于订单从延时队列中删除失败后重试的间隔
+    private static final long RESTORED_TTL_SECONDS = TimeUnit.DAYS.toSeconds(1);
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    @Lazy
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private SeckillStock seckillStock;
+    @Resource
+    private SeckillStates seckillStates;
+    @Resource
+    private SeckillOrderStatus seckillOrderStatus;
+
+    // 是否开启超时取消
+    @Value("${qqdp.seckill.expiry.enabled:false}")
+    private boolean enabled;
+    // 下单后多长时间未支付自动取消
+    @Value("${qqdp.seckill.expiry.pay-timeout-minutes:15}")
+    private long payTimeoutMinutes;
+    // 时间轮每个槽的时间
+    @Value("${qqdp.seckill.expiry.tick-millis:1000}")
+    private long tickMillis;
+    // 时间轮每层的槽数
+    @Value("${qqdp.seckill.expiry.wheel-size:512}")
+    private int wheelSize;
+    // 每批处理的订单数
+    @Value("${qqdp.seckill.expiry.batch-size:500}")
+    private int batchSize;
+    // 延时队列中超时超过该时间的订单由定时扫描处理
+    @Value("${qqdp.seckill.expiry.sweep-grace-millis:60000}")
+    private long sweepGraceMillis;
+
+    private TimingWheel<Task> wheel;
+    // 到期待处理的订单
+    private final BlockingQueue<Task> expired = new LinkedBlockingQueue<>();
+    private ScheduledExecutorService ticker;
+    private ExecutorService worker;
+    private volatile boolean running;
+
+    private final LongAdder scheduled = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    private final LongAdder swept = new LongAdder();
+
+    // 延时任务，与延时队列中的元素 订单id:优惠券id:用户id 对应
+    private static class Task {
+        private final long orderId;
+        private final long voucherId;
+        private final long userId;
+
+        private Task(long orderId, long voucherId, long userId) {
+            this.orderId = orderId;
+            this.voucherId = voucherId;
+            this.userId = userId;
+        }
+
+        private static Task parse(String member) {
+            String[] parts = member.split(":");
+            return new Task(Long.parseLong(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+        }
+
+        private String member() {
+            return orderId + ":" + voucherId + ":" + userId;
+        }
+    }
+
+    public SeckillOrderExpiry(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        running = true;
+        wheel = new TimingWheel<>(tickMillis, wheelSize, System.currentTimeMillis());
+        ticker = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("order-expiry-tick-", true));
+        ticker.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        worker = Executors.newSingleThreadExecutor(new NamedThreadFactory("order-expiry-", true));
+        worker.submit(this::work);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        if (ticker != null) {
+            ticker.shutdownNow();
+            worker.shutdownNow();
+        }
+    }
+
+    /**
+     * 订单写入数据库后开始计时，加入延时队列及时间轮
+     *
+     * @param orders 订单
+     */
+    public void schedule(List<VoucherOrder> orders) {
+        if (!enabled || orders.isEmpty()) {
+            return;
+        }
+        long timeout = TimeUnit.MINUTES.toMillis(payTimeoutMinutes);
+        List<Task> tasks = new ArrayList<>(orders.size());
+        long[] deadlines = new long[orders.size()];
+        for (int i = 0; i < orders.size(); i++) {
+            VoucherOrder order = orders.get(i);
+            tasks.add(new Task(order.getId(), order.getVoucherId(), order.getUserId()));
+            deadlines[i] = order.getCreateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli() + timeout;
+        }
+        try {
+            // ZADD seckill:order:expire deadline orderId:voucherId:userId
+            byte[] key = RedisConstants.SECKILL_ORDER_EXPIRE_KEY.getBytes(StandardCharsets.UTF_8);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (int i = 0; i < tasks.size(); i++) {
+                    connection.zSetCommands().zAdd(key, deadlines[i], tasks.get(i).member().getBytes(StandardCharsets.UTF_8));
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            // 未写入延时队列的订单不会被取消，与开启前的行为一致
+            log.warn("订单加入延时队列失败：{}", ExceptionUtil.getRootCauseMessage(e));
+            return;
+        }
+        synchronized (this) {
+            for (int i = 0; i < tasks.size(); i++) {
+                if (!wheel.add(deadlines[i], tasks.get(i))) {
+                    expired.add(tasks.get(i));
+                }
+            }
+        }
+        scheduled.add(tasks.size());
+    }
+
+    private void tick() {
+        try {
+            synchronized (this) {
+                wheel.advance(System.currentTimeMillis(), expired::add);
+            }
+        } catch (Exception e) {
+            log.error("推进时间轮异常", e);
+        }
+    }
+
+    // 批量处理到期的订单
+    private void work() {
+        while (running) {
+            List<Task> batch = new ArrayList<>(batchSize);
+            try {
+                batch.add(expired.take());
+                expired.drainTo(batch, batchSize - 1);
+                expire(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                // 处理失败的订单仍在延时队列中，由定时扫描重试
+                log.warn("取消超时订单失败：{}", ExceptionUtil.getRootCauseMessage(e));
+                ThreadUtil.sleep(1000);
+            }
+        }
+    }
+
+    /**
+     * 定时扫描延时队列中超时未处理的订单，包括宕机节点时间轮中的订单及处理失败的订单
+     */
+    @Scheduled(initialDelayString = "${qqdp.seckill.expiry.sweep-interval-millis:60000}",
+            fixedDelayString = "${qqdp.seckill.expiry.sweep-interval-millis:60000}")
+    public void sweep() {
+        if (!running) {
+            return;
+        }
+        try {
+            // ZRANGEBYSCORE seckill:order:expire 0 now-grace LIMIT 0 batchSize
+            Set<String> members = stringRedisTemplate.opsForZSet().rangeByScore(RedisConstants.SECKILL_ORDER_EXPIRE_KEY,
+                    0, System.currentTimeMillis() - sweepGraceMillis, 0, batchSize);
+            if (members == null || members.isEmpty()) {
+                return;
+            }
+            List<Task> tasks = new ArrayList<>(members.size());
+            members.forEach(member -> tasks.add(Task.parse(member)));
+            swept.add(tasks.size());
+            expire(tasks);
+        } catch (Exception e) {
+            log.warn("扫描延时队列失败：{}", ExceptionUtil.getRootCauseMessage(e));
+        }
+    }
+
+    // 取消未支付的订单，归还数据库及 redis 的库存，已支付的订单只从延时队列中删除
+    private void expire(List<Task> tasks) {
+        List<Long> orderIds = new ArrayList<>(tasks.size());
+        tasks.forEach(task -> orderIds.add(task.orderId));
+        // 1.在一个事务中取消未支付的订单并归还数据库库存，返回所有已取消的订单
+        Set<Long> cancelledIds = new HashSet<>(voucherOrderService.cancelUnpaidOrders(orderIds));
+        // 2.已取消的订单归还 redis 库存及购买资格，已经归还过的订单不再归还
+        Set<Long> restored = new HashSet<>();
+        for (Task task : tasks) {
+            if (!cancelledIds.contains(task.orderId)) {
+                continue;
+            }
+            int home = seckillStock.homeSegment(task.userId);
+            Long success = stringRedisTemplate.execute(RESTORE_SCRIPT,
+                    Arrays.asList(seckillStock.restoredKey(task.voucherId, home),
+                            seckillStock.metaKey(task.voucherId, home),
+                            seckillStock.stockKey(task.voucherId, home),
+                            seckillStock.orderKey(task.voucherId, home),
+                            seckillStock.orderCountKey(task.voucherId, home),
+                            seckillStock.orderBitmapKey(task.voucherId, home)),
+                    String.valueOf(task.orderId), String.valueOf(task.userId),
+                    String.valueOf(seckillStock.bitmapOffset(task.userId)), String.valueOf(RESTORED_TTL_SECONDS));
+            if (success != null && success == 1) {
+                cancelled.increment();
+                restored.add(task.voucherId);
+            }
+        }
+        // 3.写入并通知已取消的状态，长轮询不会再从 redis 读到取消前的下单成功
+        Map<Long, Long> cancelledOrders = new HashMap<>();
+        tasks.stream().filter(task -> cancelledIds.contains(task.orderId))
+                .forEach(task -> cancelledOrders.put(task.orderId, task.userId));
+        seckillOrderStatus.cancelled(cancelledOrders);
+        // 4.所有订单从延时队列中删除，删除失败时由定时扫描重试，已归还的订单不会重复归还
+        stringRedisTemplate.opsForZSet().remove(RedisConstants.SECKILL_ORDER_EXPIRE_KEY,
+                tasks.stream().map(Task::member).toArray());
+        // 5.库存已补充，清除所有节点已售完的状态
+        restored.forEach(seckillStates::reset);
+    }
+
+    /**
+     * 获取待取消的订单数及取消次数
+     *
+     * @return
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("enabled", enabled);
+        synchronized (this) {
+            map.put("timers", wheel == null ? 0 : wheel.size());
+        }
+        map.put("expired", expired.size());
+        map.put("scheduled", scheduled.sum());
+        map.put("cancelled", cancelled.sum());
+        map.put("swept", swept.sum());
+        return map;
+    }
+}
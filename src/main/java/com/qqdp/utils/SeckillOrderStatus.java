@@ -0,0 +1,311 @@
+package com.qqdp.utils;
+
+import cn.hutool.core.exceptions.ExceptionUtil;
+import cn.hutool.json.JSONArray;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.qqdp.dto.Result;
+import com.qqdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * 秒杀订单的处理状态
+ * <p>
+ * 秒杀接口只返回订单 id，订单由消息队列的消费线程异步写入数据库。
+ * 秒杀脚本写入消息队列后将状态设为处理中，消费线程写入成功或转入死信队列后更新状态，
+ * 并通过发布订阅将完整的状态通知所有节点，状态在 redis 中短时间过期。
+ * <p>
+ * 用户通过长轮询查询状态：请求挂起在本节点，状态变化时立即返回，超时返回处理中，
+ * 避免客户端循环请求。状态已过期时由调用方查询数据库。
+ */
+@Slf4j
+@Component
+public class SeckillOrderStatus {
+
+    public enum Status {
+        // 处理中
+        PENDING,
+        // 已写入数据库
+        SUCCESS,
+        // 处理失败
+        FAILED,
+        // 超时未支付，已取消
+        CANCELLED
+    }
+
+    // 超时取消的原因
+    public static final String CANCELLED_REASON = "订单超时未支付，已取消";
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    // 状态的过期时间
+    @Value("${qqdp.seckill.order-status.ttl-seconds:600}")
+    private long ttlSeconds;
+    // 长轮询的超时时间
+    @Value("${qqdp.seckill.order-status.long-poll-millis:30000}")
+    private long longPollMillis;
+    // 每个节点最多挂起的请求数，超过时直接返回当前状态
+    @Value("${qqdp.seckill.order-status.max-waiters:10000}")
+    private int maxWaiters;
+
+    // 等待状态变化的请求，订单 id -> 请求
+    private final Map<Long, List<Waiter>> waiters = new ConcurrentHashMap<>();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final LongAdder notified = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+
+    private static class Waiter {
+        private final Long userId;
+        private final DeferredResult<Result> result;
+
+        private Waiter(Long userId, DeferredResult<Result> result) {
+            this.userId = userId;
+            this.result = result;
+        }
+    }
+
+    public SeckillOrderStatus(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @PostConstruct
+    private void init() {
+        // 订阅状态变化，消息为 json 数组，每个元素包含订单 id、用户 id、状态及失败原因，
+        // 直接通知等待的请求，不需要在监听线程中查询 redis
+        listenerContainer.addMessageListener((message, pattern) -> {
+            JSONArray entries = JSONUtil.parseArray(new String(message.getBody(), StandardCharsets.UTF_8));
+            for (int i = 0; i < entries.size(); i++) {
+                JSONObject entry = entries.getJSONObject(i);
+                Long orderId = entry.getLong("orderId");
+                List<Waiter> list = waiters.get(orderId);
+                if (list == null) {
+                    continue;
+                }
+                Map<String, Object> status = of(orderId, Status.valueOf(entry.getStr("status")), entry.getStr("reason"));
+                for (Waiter waiter : list) {
+                    if (waiter.userId.equals(entry.getLong("userId")) && waiter.result.setResult(Result.ok(status))) {
+                        notified.increment();
+                    }
+                }
+            }
+        }, new ChannelTopic(RedisConstants.SECKILL_ORDER_STATUS_CHANNEL));
+    }
+
+    /**
+     * 订单已写入数据库
+     *
+     * @param orders 订单
+     */
+    public void success(List<VoucherOrder> orders) {
+        save(orders.stream().map(order -> message(order.getId(), order.getUserId(), Status.SUCCESS, null))
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * 订单超时未支付，已取消
+     *
+     * @param orders 订单 id -> 用户 id
+     */
+    public void cancelled(Map<Long, Long> orders) {
+        List<Map<String, Object>> messages = new ArrayList<>(orders.size());
+        orders.forEach((orderId, userId) -> messages.add(message(orderId, userId, Status.CANCELLED, CANCELLED_REASON)));
+        save(messages);
+    }
+
+    // 通过 pipeline 批量写入订单状态，并发布状态变化的消息
+    private void save(List<Map<String, Object>> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Map<String, Object> message : messages) {
+                    byte[] key = (RedisConstants.SECKILL_ORDER_STATUS_KEY + message.get("orderId"))
+                            .getBytes(StandardCharsets.UTF_8);
+                    Map<byte[], byte[]> value = new HashMap<>();
+                    message.forEach((field, v) -> {
+                        if (v != null && !"orderId".equals(field)) {
+                            value.put(field.getBytes(StandardCharsets.UTF_8), v.toString().getBytes(StandardCharsets.UTF_8));
+                        }
+                    });
+                    connection.hashCommands().hMSet(key, value);
+                    connection.keyCommands().expire(key, ttlSeconds);
+                }
+                return null;
+            });
+            publish(messages);
+        } catch (Exception e) {
+            // 状态只用于通知用户，写入失败不影响下单
+            log.warn("写入订单状态失败：{}", ExceptionUtil.getRootCauseMessage(e));
+        }
+    }
+
+    /**
+     * 订单处理失败
+     *
+     * @param orderId 订单 id
+     * @param userId  用户 id
+     * @param reason  失败原因
+     */
+    public void failed(Long orderId, Long userId, String reason) {
+        try {
+            String key = RedisConstants.SECKILL_ORDER_STATUS_KEY + orderId;
+            Map<String, String> value = new HashMap<>();
+            value.put("userId", userId.toString());
+            value.put("status", Status.FAILED.name());
+            value.put("reason", reason);
+            stringRedisTemplate.opsForHash().putAll(key, value);
+            stringRedisTemplate.expire(key, ttlSeconds, TimeUnit.SECONDS);
+            publish(Collections.singletonList(message(orderId, userId, Status.FAILED, reason)));
+        } catch (Exception e) {
+            log.warn("写入订单状态失败：{}", ExceptionUtil.getRootCauseMessage(e));
+        }
+    }
+
+    /**
+     * 查询 redis 中的订单状态
+     *
+     * @param orderId 订单 id
+     * @param userId  用户 id，只能查询自己的订单
+     * @return 状态不存在或不属于该用户时返回 null
+     */
+    public Map<String, Object> query(Long orderId, Long userId) {
+        Map<Object, Object> value = stringRedisTemplate.opsForHash().entries(RedisConstants.SECKILL_ORDER_STATUS_KEY + orderId);
+        if (value.isEmpty() || !userId.toString().equals(value.get("userId"))) {
+            return null;
+        }
+        return of(orderId, Status.valueOf((String) value.get("status")), (String) value.get("reason"));
+    }
+
+    /**
+     * 订单已写入消息队列，状态设为处理中
+     * <br>
+     * 消费线程可能已经写入了成功状态，因此只在没有状态时写入
+     *
+     * @param orderId 订单 id
+     * @param userId  用户 id
+     */
+    public void pending(Long orderId, Long userId) {
+        try {
+            byte[] key = (RedisConstants.SECKILL_ORDER_STATUS_KEY + orderId).getBytes(StandardCharsets.UTF_8);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                connection.hashCommands().hSet(key, "userId".getBytes(StandardCharsets.UTF_8),
+                        userId.toString().getBytes(StandardCharsets.UTF_8));
+                connection.hashCommands().hSetNX(key, "status".getBytes(StandardCharsets.UTF_8),
+                        Status.PENDING.name().getBytes(StandardCharsets.UTF_8));
+                connection.keyCommands().expire(key, ttlSeconds);
+                return null;
+            });
+        } catch (Exception e) {
+            // 状态只用于通知用户，写入失败时由调用方查询数据库
+            log.warn("写入订单状态失败：{}", ExceptionUtil.getRootCauseMessage(e));
+        }
+    }
+
+    /**
+     * 等待订单状态变化，已有状态时立即返回，超时返回处理中
+     *
+     * @param orderId 订单 id
+     * @param userId  用户 id
+     * @return
+     */
+    public DeferredResult<Result> watch(Long orderId, Long userId) {
+        DeferredResult<Result> result = new DeferredResult<>(longPollMillis);
+        // 挂起的请求过多时直接返回当前状态，由客户端稍后重试
+        if (waiting.incrementAndGet() > maxWaiters) {
+            waiting.decrementAndGet();
+            result.setResult(Result.ok(current(orderId, userId)));
+            return result;
+        }
+        Waiter waiter = new Waiter(userId, result);
+        result.onTimeout(() -> {
+            timeouts.increment();
+            result.setResult(Result.ok(of(orderId, Status.PENDING, null)));
+        });
+        result.onCompletion(() -> {
+            waiting.decrementAndGet();
+            waiters.computeIfPresent(orderId, (id, list) -> {
+                list.remove(waiter);
+                return list.isEmpty() ? null : list;
+            });
+        });
+        // 先登记再查询，避免查询之后、登记之前的通知丢失
+        waiters.computeIfAbsent(orderId, id -> new CopyOnWriteArrayList<>()).add(waiter);
+        Map<String, Object> status = query(orderId, userId);
+        if (status != null && status.get("status") != Status.PENDING) {
+            result.setResult(Result.ok(status));
+        }
+        return result;
+    }
+
+    /**
+     * 获取挂起的请求数及通知、超时次数
+     *
+     * @return
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("waiting", waiting.get());
+        map.put("notified", notified.sum());
+        map.put("timeouts", timeouts.sum());
+        return map;
+    }
+
+    private Map<String, Object> current(Long orderId, Long userId) {
+        Map<String, Object> status = query(orderId, userId);
+        return status == null ? of(orderId, Status.PENDING, null) : status;
+    }
+
+    /**
+     * 返回给用户的订单状态
+     *
+     * @param orderId 订单 id
+     * @param status  状态
+     * @param reason  失败原因
+     * @return
+     */
+    public static Map<String, Object> of(Long orderId, Status status, String reason) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("orderId", orderId);
+        map.put("status", status);
+        if (reason != null) {
+            map.put("reason", reason);
+        }
+        return map;
+    }
+
+    // 状态变化的消息
+    private static Map<String, Object> message(Long orderId, Long userId, Status status, String reason) {
+        Map<String, Object> map = new HashMap<>();
+        map.put("orderId", orderId);
+        map.put("userId", userId);
+        map.put("status", status.name());
+        map.put("reason", reason);
+        return map;
+    }
+
+    private void publish(List<Map<String, Object>> messages) {
+        stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_ORDER_STATUS_CHANNEL, JSONUtil.toJsonStr(messages));
+    }
+}
@@ -0,0 +1,193 @@
+package com.qqdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 秒杀优惠券的本地状态：已售完、未开始、已结束
+ * <p>
+ * 秒杀时被拒绝的请求远多于成功的请求，这些请求直接根据内存中的状态返回，
+ * 既不查询优惠券，也不执行 lua 脚本。状态变化时通过发布订阅通知所有节点。
+ * <p>
+ * 已售完的状态每隔一段时间放行一个请求到 redis 复核，库存被补充后该请求会下单成功并清除所有节点的状态，
+ * 因此即使错过了补充库存的通知，也只会多拒绝一小段时间。
+ */
+@Component
+public class SeckillStates {
+
+    public enum State {
+        SOLD_OUT("库存不足~"),
+        NOT_STARTED("秒杀活动还未开始~"),
+        ENDED("秒杀活动已结束~");
+
+        private final String message;
+
+        State(String message) {
+            this.message = message;
+        }
+    }
+
+    private static class Entry {
+        private final State state;
+        // 状态的失效时间，用于未开始的状态
+        private final long until;
+        // 已售完时下一次放行请求复核的时间
+        private final AtomicLong nextCheck;
+
+        private Entry(State state, long until, long nextCheck) {
+            this.state = state;
+            this.until = until;
+            this.nextCheck = new AtomicLong(nextCheck);
+        }
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    // 已售完时放行请求复核的间隔
+    @Value("${qqdp.seckill.state.recheck-millis:1000}")
+    private long recheckMillis;
+
+    private final Map<Long, Entry> states = new ConcurrentHashMap<>();
+    // 根据本地状态直接拒绝的请求数
+    private final LongAdder rejected = new LongAdder();
+
+    public SeckillStates(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @PostConstruct
+    private void init() {
+        // 订阅状态变化，消息格式为 优惠券id:状态:失效时间，状态为空表示清除
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split(":", -1);
+            Long voucherId = Long.valueOf(parts[0]);
+            if (StrUtil.isEmpty(parts[1])) {
+                states.remove(voucherId);
+            } else {
+                putLocal(voucherId, State.valueOf(parts[1]), Long.parseLong(parts[2]));
+            }
+        }, new ChannelTopic(RedisConstants.SECKILL_STATE_CHANNEL));
+    }
+
+    /**
+     * 根据本地状态判断是否直接拒绝请求
+     *
+     * @param voucherId 优惠券 id
+     * @return 拒绝的原因，null 表示需要继续校验
+     */
+    public String reject(Long voucherId) {
+        Entry entry = states.get(voucherId);
+        if (entry == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (now >= entry.until) {
+            // 活动已开始，状态失效
+            states.remove(voucherId, entry);
+            return null;
+        }
+        if (entry.state == State.SOLD_OUT) {
+            long nextCheck = entry.nextCheck.get();
+            // 每个复核间隔只放行一个请求
+            if (now >= nextCheck && entry.nextCheck.compareAndSet(nextCheck, now + recheckMillis)) {
+                return null;
+            }
+        }
+        rejected.increment();
+        return entry.state.message;
+    }
+
+    /**
+     * 已售完
+     *
+     * @param voucherId 优惠券 id
+     */
+    public void soldOut(Long voucherId) {
+        update(voucherId, State.SOLD_OUT, Long.MAX_VALUE);
+    }
+
+    /**
+     * 未开始，开始后状态自动失效
+     *
+     * @param voucherId   优惠券 id
+     * @param beginMillis 开始时间的毫秒时间戳
+     */
+    public void notStarted(Long voucherId, long beginMillis) {
+        update(voucherId, State.NOT_STARTED, beginMillis);
+    }
+
+    /**
+     * 已结束
+     *
+     * @param voucherId 优惠券 id
+     */
+    public void ended(Long voucherId) {
+        update(voucherId, State.ENDED, Long.MAX_VALUE);
+    }
+
+    /**
+     * 下单成功，若本地为已售完状态说明库存已被补充，清除所有节点的状态
+     *
+     * @param voucherId 优惠券 id
+     */
+    public void available(Long voucherId) {
+        Entry entry = states.get(voucherId);
+        if (entry != null && entry.state == State.SOLD_OUT) {
+            reset(voucherId);
+        }
+    }
+
+    /**
+     * 清除所有节点的状态，补充库存或修改活动时间后调用
+     *
+     * @param voucherId 优惠券 id
+     */
+    public void reset(Long voucherId) {
+        states.remove(voucherId);
+        stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_STATE_CHANNEL, voucherId + "::");
+    }
+
+    /**
+     * 获取本地状态及拒绝的请求数
+     *
+     * @return
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        Map<Long, State> current = new LinkedHashMap<>();
+        states.forEach((voucherId, entry) -> current.put(voucherId, entry.state));
+        map.put("states", current);
+        map.put("rejected", rejected.sum());
+        return map;
+    }
+
+    // 状态变化时更新本地并通知其他节点
+    private void update(Long voucherId, State state, long until) {
+        Entry entry = states.get(voucherId);
+        if (entry != null && entry.state == state) {
+            return;
+        }
+        putLocal(voucherId, state, until);
+        stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_STATE_CHANNEL, voucherId + ":" + state + ":" + until);
+    }
+
+    private void putLocal(Long voucherId, State state, long until) {
+        states.put(voucherId, new Entry(state, until, System.currentTimeMillis() + recheckMillis));
+    }
+}
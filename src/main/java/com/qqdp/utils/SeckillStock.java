@@ -0,0 +1,281 @@
+package com.qqdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 秒杀库存在 redis 中的存储方式
+ * <p>
+ * 默认每个优惠券一个库存 key 和一个已下单用户集合，所有请求都竞争同一个 key。
+ * 开启分段库存后，库存平均拆分为 N 段，每段有自己的库存 key 和已下单用户集合：
+ * <br>
+ * 1) 用户按 id 哈希固定到一段，一人一单只需校验这一段的用户集合
+ * <br>
+ * 2) 秒杀脚本只操作用户所在的段，该段已售完时从相邻的段借用一个库存到该段后重试
+ * <p>
+ * redis 集群中一个 lua 脚本只能操作同一个 slot 的 key，因此每段的所有 key 都带有相同的 hash tag，
+ * 取该段所在的订单消息队列分片的 key（{@link #streamKey(Long, int)}），脚本扣减库存的同时可以写入消息队列。
+ * 同一个优惠券的各段按段号依次分配到不同的分片，段数不超过分片数时各段位于不同的 slot，
+ * 可以分布在 redis 集群的不同节点上，单个优惠券的吞吐量随段数增加，上限为分片数。
+ * 借用库存跨越两个 slot，不是原子操作，节点在借出与归入之间宕机时会少卖一个库存，但不会超卖。
+ * 修改段数或分片数前需要清空已加载的秒杀库存。
+ * <p>
+ * 每个优惠券还有一个元数据 hash，保存开始时间、结束时间、每人限购数量及总库存，
+ * 元数据在每段各复制一份，与该段的 key 位于同一个 slot，
+ * lua 脚本根据元数据完成所有校验，一次 redis 往返即可完成秒杀。
+ * <p>
+ * 一人一单有两种记录方式，保存在元数据中，首次加载后不再改变：
+ * <br>
+ * 1) set：已下单用户 id 的集合，每个用户约占 50~70 字节，适合购买人数少的优惠券
+ * <br>
+ * 2) bitmap：以用户 id 为偏移量的位图，每个用户 id 占 1 位，内存只与最大的用户 id 有关，
+ * 1000 万用户约 1.2MB，适合购买人数多的优惠券；分段时每段只保存余数相同的用户 id，偏移量为 id / 段数。
+ * 用户 id 超出位图范围时仍使用集合
+ */
+@Component
+public class SeckillStock {
+
+    private static final DefaultRedisScript<Long> BORROW_SCRIPT;
+
+    static {
+        BORROW_SCRIPT = new DefaultRedisScript<>();
+        BORROW_SCRIPT.setLocation(new ClassPathResource("seckill_borrow.lua"));
+        BORROW_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    public static final String DEDUPE_SET = "set";
+    public static final String DEDUPE_BITMAP = "bitmap";
+
+    // 库存段数，1 表示不分段
+    private final int segments;
+    // 订单消息队列分片数
+    private final int shards;
+
+    // 一人一单的记录方式：set、bitmap、auto
+    @Value("${qqdp.seckill.dedupe.mode:set}")
+    private String dedupeMode;
+    // auto 时库存达到该值的优惠券使用位图
+    @Value("${qqdp.seckill.dedupe.bitmap-min-stock:100000}")
+    private int bitmapMinStock;
+
+    public SeckillStock(StringRedisTemplate stringRedisTemplate,
+                        @Value("${qqdp.seckill.stock.segments:1}") int segments,
+                        @Value("${qqdp.seckill.stream.shards:4}") int shards) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.segments = Math.max(segments, 1);
+        this.shards = Math.max(shards, 1);
+    }
+
+    public int getSegments() {
+        return segments;
+    }
+
+    /**
+     * 用户所在的段
+     *
+     * @param userId 用户 id
+     * @return
+     */
+    public int homeSegment(Long userId) {
+        return Math.floorMod(userId.hashCode(), segments);
+    }
+
+    /**
+     * 段所在的订单消息队列分片，段 0 与优惠券的默认分片相同
+     *
+     * @param voucherId 优惠券 id
+     * @param segment   段号
+     * @return
+     */
+    public String streamKey(Long voucherId, int segment) {
+        return RedisConstants.SECKILL_ORDER_STREAM_KEY + Math.floorMod(voucherId.hashCode() + segment, shards);
+    }
+
+    // 段内所有 key 的格式：前缀{消息队列分片}:优惠券id[:段号]，与消息队列分片位于同一个 slot
+    private String segmentKey(String prefix, Long voucherId, int segment) {
+        String key = prefix + "{" + streamKey(voucherId, segment) + "}:" + voucherId;
+        return segments == 1 ? key : key + ":" + segment;
+    }
+
+    /**
+     * 库存 key
+     *
+     * @param voucherId 优惠券 id
+     * @param segment   段号
+     * @return
+     */
+    public String stockKey(Long voucherId, int segment) {
+        return segmentKey(RedisConstants.SECKILL_STOCK_KEY, voucherId, segment);
+    }
+
+    /**
+     * 已下单用户集合的 key
+     *
+     * @param voucherId 优惠券 id
+     * @param segment   段号
+     * @return
+     */
+    public String orderKey(Long voucherId, int segment) {
+        return segmentKey(RedisConstants.SECKILL_ORDER_KEY, voucherId, segment);
+    }
+
+    /**
+     * 元数据 hash 的 key，每段各一份
+     *
+     * @param voucherId 优惠券 id
+     * @param segment   段号
+     * @return
+     */
+    public String metaKey(Long voucherId, int segment) {
+        return segmentKey(RedisConstants.SECKILL_META_KEY, voucherId, segment);
+    }
+
+    /**
+     * 每人限购数量大于 1 时，记录用户已购买数量的 hash 的 key
+     *
+     * @param voucherId 优惠券 id
+     * @param segment   段号
+     * @return
+     */
+    public String orderCountKey(Long voucherId, int segment) {
+        return segmentKey(RedisConstants.SECKILL_ORDER_COUNT_KEY, voucherId, segment);
+    }
+
+    /**
+     * 已下单用户位图的 key
+     *
+     * @param voucherId 优惠券 id
+     * @param segment   段号
+     * @return
+     */
+    public String orderBitmapKey(Long voucherId, int segment) {
+        return segmentKey(RedisConstants.SECKILL_ORDER_BITMAP_KEY, voucherId, segment);
+    }
+
+    /**
+     * 已归还库存的订单集合的 key，保证超时取消的订单只归还一次
+     *
+     * @param voucherId 优惠券 id
+     * @param segment   段号
+     * @return
+     */
+    public String restoredKey(Long voucherId, int segment) {
+        return segmentKey(RedisConstants.SECKILL_RESTORED_KEY, voucherId, segment);
+    }
+
+    /**
+     * 用户在所在段位图中的偏移量。id 小于 2^31 时 {@link #homeSegment(Long)} 即 id 对段数取余，
+     * 同一段的用户 id / 段数 互不相同。偏移量不超过 2^31，位图最大 256MB
+     *
+     * @param userId 用户 id
+     * @return 不能使用位图时返回 -1
+     */
+    public long bitmapOffset(Long userId) {
+        if (userId < 0 || userId > Integer.MAX_VALUE) {
+            return -1;
+        }
+        return userId / segments;
+    }
+
+    /**
+     * 根据配置及库存选择一人一单的记录方式
+     *
+     * @param stock 库存
+     * @return
+     */
+    public String dedupeMode(int stock) {
+        if (DEDUPE_BITMAP.equals(dedupeMode) || DEDUPE_SET.equals(dedupeMode)) {
+            return dedupeMode;
+        }
+        return stock >= bitmapMinStock ? DEDUPE_BITMAP : DEDUPE_SET;
+    }
+
+    /**
+     * 加载库存及元数据，元数据写入后 lua 脚本才认为该段已加载，因此先写入库存
+     *
+     * @param voucherId 优惠券 id
+     * @param stock     库存
+     * @param begin     开始时间
+     * @param end       结束时间
+     * @param limit     每人限购数量
+     */
+    public void load(Long voucherId, int stock, LocalDateTime begin, LocalDateTime end, int limit) {
+        load(voucherId, stock);
+        Map<String, String> meta = new HashMap<>();
+        meta.put("begin", String.valueOf(toMillis(begin)));
+        meta.put("end", String.valueOf(toMillis(end)));
+        meta.put("limit", String.valueOf(limit));
+        meta.put("stock", String.valueOf(stock));
+        String dedupe = dedupeMode(stock);
+        for (int segment = 0; segment < segments; segment++) {
+            String metaKey = metaKey(voucherId, segment);
+            stringRedisTemplate.opsForHash().putAll(metaKey, meta);
+            // 一人一单的记录方式只在首次加载时写入，活动期间切换会导致已下单的用户可以再次下单
+            stringRedisTemplate.opsForHash().putIfAbsent(metaKey, "dedupe", dedupe);
+            // 活动结束一天后删除元数据
+            stringRedisTemplate.expireAt(metaKey, new Date(toMillis(end) + TimeUnit.DAYS.toMillis(1)));
+        }
+    }
+
+    private long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * 将库存加载到 redis，平均分配到各段，已加载的段不会被覆盖
+     *
+     * @param voucherId 优惠券 id
+     * @param stock     库存
+     */
+    public void load(Long voucherId, int stock) {
+        for (int segment = 0; segment < segments; segment++) {
+            int amount = stock / segments + (segment < stock % segments ? 1 : 0);
+            stringRedisTemplate.opsForValue().setIfAbsent(stockKey(voucherId, segment), String.valueOf(amount));
+        }
+    }
+
+    /**
+     * 从相邻的段借用一个库存到用户所在的段
+     *
+     * @param voucherId 优惠券 id
+     * @param from      借出库存的段
+     * @param to        用户所在的段
+     * @return 借出的段已售完时返回 false
+     */
+    public boolean borrow(Long voucherId, int from, int to) {
+        Long success = stringRedisTemplate.execute(BORROW_SCRIPT, Collections.singletonList(stockKey(voucherId, from)));
+        if (success == null || success == 0) {
+            return false;
+        }
+        stringRedisTemplate.opsForValue().increment(stockKey(voucherId, to));
+        return true;
+    }
+
+    /**
+     * 查询 redis 中的剩余库存，各段之和
+     *
+     * @param voucherId 优惠券 id
+     * @return 库存未加载时返回 null
+     */
+    public Long remaining(Long voucherId) {
+        List<String> keys = new ArrayList<>(segments);
+        for (int segment = 0; segment < segments; segment++) {
+            keys.add(stockKey(voucherId, segment));
+        }
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+        if (values == null || values.stream().allMatch(value -> value == null)) {
+            return null;
+        }
+        return values.stream().filter(value -> value != null).mapToLong(Long::parseLong).sum();
+    }
+}
@@ -0,0 +1,64 @@
+package com.qqdp.utils;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * 二进制序列化，使用 jackson 的 Smile 格式
+ * <br>
+ * Smile 是 json 的二进制形式，数字、时间以二进制存储，重复的属性名只存储一次引用，
+ * 与 json 相比数据更小，且反序列化不需要解析文本
+ */
+public class SmileCacheCodec implements CacheCodec {
+
+    public static final byte ID = 2;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper(new SmileFactory())
+            .registerModule(new JavaTimeModule())
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        try {
+            return MAPPER.writeValueAsBytes(value);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, int offset, Class<T> type) {
+        try {
+            return MAPPER.readValue(bytes, offset, bytes.length - offset, type);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public <T> List<T> decodeList(byte[] bytes, int offset, Class<T> type) {
+        try {
+            return MAPPER.readValue(bytes, offset, bytes.length - offset,
+                    MAPPER.getTypeFactory().constructCollectionType(List.class, type));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public <T> T convert(Object value, Class<T> type) {
+        return MAPPER.convertValue(value, type);
+    }
+}
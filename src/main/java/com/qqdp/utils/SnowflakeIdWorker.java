@@ -0,0 +1,252 @@
+package com.qqdp.utils;
+
+import cn.hutool.core.exceptions.ExceptionUtil;
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.util.RandomUtil;
+import cn.hutool.system.SystemUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 雪花算法生成全局唯一 Id，完全在内存中生成，不需要访问 redis
+ * <p></p>
+ * Id 组成部分，与 {@link RedisIdWorker} 相同的 31 位时间戳 + 32 位低位：
+ * <br>
+ * 符号位：1bit，永远为0
+ * <br>
+ * 时间戳：31bit，以秒为单位，使用 UTC 时间，不受时区和夏令时影响
+ * <br>
+ * 标志位：1bit，永远为1。redis 自增的序列号按天计数，不会达到 2^31，因此两种方式生成的 id 不会重复，
+ * 已有业务可以直接切换
+ * <br>
+ * worker id：9bit，最多 512 个节点
+ * <br>
+ * 序列号：22bit，每个节点每秒最多产生 2^22 个 id，用完后等待下一秒
+ * <p></p>
+ * worker id 在首次生成 id 时从 redis 租用（SET NX PX），定时续期。
+ * 续期失败超过租约时间的 2/3 后停止使用该 worker id，重新租用，保证其他节点租到同一个 worker id 时
+ * 本节点已不再使用，因此不会生成重复的 id。
+ * <p></p>
+ * 时钟回拨不超过配置的秒数时继续使用上一秒的序列号，超过时拒绝生成 id。
+ */
+@Slf4j
+@Component
+public class SnowflakeIdWorker {
+    /**
+     * 开始时间戳
+     * 2022-01-01 00:00:00
+     */
+    private static final long BEGIN_TIMESTAMP = 1640995200L;
+    private static final int COUNT_BITS = 32;
+    private static final int SEQUENCE_BITS = 22;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final int MAX_WORKERS = 1 << 9;
+    private static final long FLAG = 1L << 31;
+
+    // 续期 lua 脚本
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    // 释放 lua 脚本，与释放锁相同
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("worker_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    // worker id 的租约时间
+    @Value("${qqdp.id.snowflake.lease-millis:30000}")
+    private long leaseMillis;
+    // 允许的最大时钟回拨
+    @Value("${qqdp.id.snowflake.max-backward-seconds:5}")
+    private long maxBackwardSeconds;
+
+    // 节点标识，区分租约属于哪个节点
+    private final String owner = NetUtil.getLocalHostName() + ":" + SystemUtil.getCurrentPID()
+            + ":" + UUID.randomUUID().toString(true);
+    private volatile int workerId = -1;
+    // 租约的有效期，超过后不再使用当前的 worker id
+    private volatile long leaseValidUntil;
+    private ScheduledExecutorService heartbeatExecutor;
+
+    // 上一次生成 id 的时间戳及序列号，时间戳 << 22 | 序列号
+    private final AtomicLong state = new AtomicLong();
+
+    private final LongAdder generated = new LongAdder();
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder rollbacks = new LongAdder();
+    private final LongAdder renewFailures = new LongAdder();
+    private long lastSnapshotMillis = System.currentTimeMillis();
+    private long lastSnapshotCount;
+
+    public SnowflakeIdWorker(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (heartbeatExecutor == null) {
+            return;
+        }
+        heartbeatExecutor.shutdownNow();
+        // 释放租约，其他节点可以立即使用
+        int id = workerId;
+        if (id >= 0) {
+            try {
+                stringRedisTemplate.execute(RELEASE_SCRIPT,
+                        Collections.singletonList(RedisConstants.ID_WORKER_KEY + id), owner);
+            } catch (Exception e) {
+                log.warn("释放 worker id {} 失败：{}", id, ExceptionUtil.getRootCauseMessage(e));
+            }
+        }
+    }
+
+    public long nextId() {
+        long worker = currentWorker();
+        boolean waited = false;
+        while (true) {
+            long now = System.currentTimeMillis() / 1000 - BEGIN_TIMESTAMP;
+            long prev = state.get();
+            long last = prev >>> SEQUENCE_BITS;
+            long next;
+            if (now > last) {
+                // 1.新的一秒，序列号从 0 开始
+                next = now << SEQUENCE_BITS;
+            } else {
+                // 2.同一秒或时钟回拨，继续使用上一秒的序列号
+                if (last - now > maxBackwardSeconds) {
+                    throw new IllegalStateException("时钟回拨 " + (last - now) + " 秒，拒绝生成 id");
+                }
+                if ((prev & SEQUENCE_MASK) == SEQUENCE_MASK) {
+                    // 2.1.序列号用完，等待下一秒
+                    if (!waited) {
+                        waited = true;
+                        waits.increment();
+                    }
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                    continue;
+                }
+                next = prev + 1;
+            }
+            if (state.compareAndSet(prev, next)) {
+                if (now < last) {
+                    rollbacks.increment();
+                }
+                generated.increment();
+                // 3.拼接并返回
+                return (next >>> SEQUENCE_BITS) << COUNT_BITS | FLAG | worker << SEQUENCE_BITS | next & SEQUENCE_MASK;
+            }
+        }
+    }
+
+    private long currentWorker() {
+        int id = workerId;
+        if (id >= 0 && System.currentTimeMillis() < leaseValidUntil) {
+            return id;
+        }
+        return lease();
+    }
+
+    // 租用 worker id，从随机位置开始依次尝试 SET id:worker:n owner NX PX leaseMillis
+    private synchronized int lease() {
+        int id = workerId;
+        if (id >= 0 && System.currentTimeMillis() < leaseValidUntil) {
+            return id;
+        }
+        if (id >= 0 && renew()) {
+            return workerId;
+        }
+        int start = RandomUtil.randomInt(MAX_WORKERS);
+        for (int i = 0; i < MAX_WORKERS; i++) {
+            int candidate = (start + i) % MAX_WORKERS;
+            long begin = System.currentTimeMillis();
+            Boolean success = stringRedisTemplate.opsForValue().setIfAbsent(
+                    RedisConstants.ID_WORKER_KEY + candidate, owner, leaseMillis, TimeUnit.MILLISECONDS);
+            if (Boolean.TRUE.equals(success)) {
+                leaseValidUntil = begin + leaseMillis * 2 / 3;
+                workerId = candidate;
+                startHeartbeat();
+                log.info("租用 worker id {}", candidate);
+                return candidate;
+            }
+        }
+        throw new IllegalStateException("没有可用的 worker id");
+    }
+
+    // 续期租约，返回租约是否仍属于当前节点
+    private boolean renew() {
+        int id = workerId;
+        if (id < 0) {
+            return false;
+        }
+        long begin = System.currentTimeMillis();
+        try {
+            Long success = stringRedisTemplate.execute(RENEW_SCRIPT,
+                    Collections.singletonList(RedisConstants.ID_WORKER_KEY + id), owner, String.valueOf(leaseMillis));
+            if (success != null && success == 1) {
+                leaseValidUntil = begin + leaseMillis * 2 / 3;
+                return true;
+            }
+            // 租约已过期并被其他节点租用，下次生成 id 时重新租用
+            log.warn("worker id {} 的租约已失效", id);
+            workerId = -1;
+        } catch (Exception e) {
+            // redis 不可用，租约到期前继续使用
+            log.warn("续期 worker id {} 失败：{}", id, ExceptionUtil.getRootCauseMessage(e));
+        }
+        renewFailures.increment();
+        return false;
+    }
+
+    private void startHeartbeat() {
+        if (heartbeatExecutor != null) {
+            return;
+        }
+        heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("id-worker-lease-", true));
+        heartbeatExecutor.scheduleWithFixedDelay(this::renew, leaseMillis / 3, leaseMillis / 3, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 获取 worker id 及生成速率等指标
+     *
+     * @return
+     */
+    public synchronized Map<String, Object> snapshot() {
+        long now = System.currentTimeMillis();
+        long count = generated.sum();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("workerId", workerId);
+        map.put("generated", count);
+        // 距离上次查询的平均速率
+        map.put("idsPerSecond", (count - lastSnapshotCount) * 1000 / Math.max(1, now - lastSnapshotMillis));
+        map.put("waitNextSecond", waits.sum());
+        // 时钟回拨期间使用上一秒生成的 id 数
+        map.put("rollbackIds", rollbacks.sum());
+        map.put("renewFailures", renewFailures.sum());
+        lastSnapshotMillis = now;
+        lastSnapshotCount = count;
+        return map;
+    }
+}
@@ -0,0 +1,141 @@
+package com.qqdp.utils;
+
+import java.util.function.Consumer;
+
+/**
+ * 分层时间轮
+ * <p>
+ * 每层时间轮有 wheelSize 个槽，每个槽对应 tickMillis 的时间范围，一层覆盖 tickMillis * wheelSize 的时间，
+ * 超出范围的任务放入上一层（每槽的时间为下一层的总时间），需要时才创建。
+ * <br>
+ * 1) 添加任务：根据到期时间直接计算所在的槽，插入槽中的链表头部，O(1)
+ * <br>
+ * 2) 推进时间：每个 tick 取出第一层当前槽的全部任务；上层的时间推进到下一个槽时，
+ * 将该槽的任务重新添加到第一层（降级），已到期的任务交给回调处理
+ * <p>
+ * 每个任务只占一个链表节点，适合大量的定时任务。非线程安全，由调用方加锁。
+ *
+ * @param <T> 任务类型
+ */
+public class TimingWheel<T> {
+
+    private static class Timer<T> {
+        private final long deadline;
+        private final T task;
+        private Timer<T> next;
+
+        private Timer(long deadline, T task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+    }
+
+    // 每个槽的时间范围
+    private final long tickMillis;
+    private final int wheelSize;
+    // 本层覆盖的时间范围
+    private final long interval;
+    private final Timer<T>[] buckets;
+    // 当前时间，tickMillis 的整数倍
+    private long currentTime;
+    // 上一层时间轮
+    private TimingWheel<T> overflow;
+    // 第一层时间轮，降级的任务重新添加到第一层
+    private final TimingWheel<T> root;
+    // 任务数，只在第一层统计
+    private long size;
+
+    public TimingWheel(long tickMillis, int wheelSize, long startMillis) {
+        this(tickMillis, wheelSize, startMillis, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private TimingWheel(long tickMillis, int wheelSize, long startMillis, TimingWheel<T> root) {
+        this.tickMillis = tickMillis;
+        this.wheelSize = wheelSize;
+        this.interval = tickMillis * wheelSize;
+        this.buckets = new Timer[wheelSize];
+        this.currentTime = startMillis - startMillis % tickMillis;
+        this.root = root == null ? this : root;
+    }
+
+    /**
+     * 添加任务
+     *
+     * @param deadline 到期时间
+     * @param task     任务
+     * @return 已到期时返回 false，任务不会被添加
+     */
+    public boolean add(long deadline, T task) {
+        if (!add(new Timer<>(deadline, task))) {
+            return false;
+        }
+        size++;
+        return true;
+    }
+
+    private boolean add(Timer<T> timer) {
+        if (timer.deadline < currentTime + tickMillis) {
+            // 已到期
+            return false;
+        }
+        if (timer.deadline < currentTime + interval) {
+            // 在本层的范围内，放入对应的槽
+            int index = (int) ((timer.deadline / tickMillis) % wheelSize);
+            timer.next = buckets[index];
+            buckets[index] = timer;
+            return true;
+        }
+        // 超出本层的范围，放入上一层
+        if (overflow == null) {
+            overflow = new TimingWheel<>(interval, wheelSize, currentTime, root);
+        }
+        return overflow.add(timer);
+    }
+
+    /**
+     * 推进时间，到期的任务交给回调处理
+     *
+     * @param now     当前时间
+     * @param expired 到期任务的回调
+     */
+    public void advance(long now, Consumer<T> expired) {
+        while (currentTime + tickMillis <= now) {
+            long time = currentTime + tickMillis;
+            // 从第一层开始推进，上层的时间没有进入下一个槽时不需要继续
+            for (TimingWheel<T> wheel = this; wheel != null; wheel = wheel.overflow) {
+                long floor = time - time % wheel.tickMillis;
+                if (floor == wheel.currentTime) {
+                    break;
+                }
+                wheel.currentTime = floor;
+                wheel.flush(floor, expired);
+            }
+        }
+    }
+
+    // 取出当前槽的任务，重新添加到第一层，已到期的交给回调
+    private void flush(long time, Consumer<T> expired) {
+        int index = (int) ((time / tickMillis) % wheelSize);
+        Timer<T> timer = buckets[index];
+        buckets[index] = null;
+        while (timer != null) {
+            Timer<T> next = timer.next;
+            timer.next = null;
+            if (!root.add(timer)) {
+                root.size--;
+                expired.accept(timer.task);
+            }
+            timer = next;
+        }
+    }
+
+    /**
+     * 未到期的任务数
+     *
+     * @return
+     */
+    public long size() {
+        return size;
+    }
+}
@@ -0,0 +1,58 @@
+-- 获取公平的可重入锁，等待的线程按开始等待的顺序排队，只有队首可以获取锁
+-- 获取成功返回 nil，失败返回建议的等待时间（毫秒）
+-- KEYS[1] 锁，KEYS[2] 等待队列（zset，分数为开始等待的时间），KEYS[3] 等待者的存活期限（zset，分数为过期时间），
+-- KEYS[4] 释放锁的通知频道
+-- 使用了 time 命令，需要按命令复制
+redis.replicate_commands()
+-- 1.参数列表
+-- 1.1.持有者标识
+local owner = ARGV[1]
+-- 1.2.锁的有效时间（毫秒）
+local leaseTime = ARGV[2]
+-- 1.3.等待者超过该时间未重新竞争则移出队列（毫秒）
+local staleTime = tonumber(ARGV[3])
+
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+-- 2.移除已超时的等待者，防止宕机的节点一直占据队首
+local stale = redis.call('zrangebyscore', KEYS[3], '-inf', now)
+for i = 1, #stale do
+    redis.call('zrem', KEYS[2], stale[i])
+    redis.call('zrem', KEYS[3], stale[i])
+end
+-- 2.1.锁空闲时通知其他等待者，新的队首立即重新竞争
+if(#stale > 0 and redis.call('exists', KEYS[1]) == 0) then
+    redis.call('publish', KEYS[4], 1)
+end
+
+-- 3.由自己持有时重入
+if(redis.call('hexists', KEYS[1], owner) == 1) then
+    redis.call('hincrby', KEYS[1], owner, 1)
+    redis.call('pexpire', KEYS[1], leaseTime)
+    return nil
+end
+
+-- 4.锁不存在且没有人排队或自己在队首时获取锁
+if(redis.call('exists', KEYS[1]) == 0) then
+    local head = redis.call('zrange', KEYS[2], 0, 0)
+    if(head[1] == nil or head[1] == owner) then
+        redis.call('zrem', KEYS[2], owner)
+        redis.call('zrem', KEYS[3], owner)
+        redis.call('hincrby', KEYS[1], owner, 1)
+        redis.call('pexpire', KEYS[1], leaseTime)
+        return nil
+    end
+end
+
+-- 5.加入队尾，已在队列中时保持原位置，刷新存活期限
+redis.call('zadd', KEYS[2], 'NX', now, owner)
+redis.call('zadd', KEYS[3], now + staleTime, owner)
+redis.call('pexpire', KEYS[2], staleTime * 2)
+redis.call('pexpire', KEYS[3], staleTime * 2)
+local ttl = redis.call('pttl', KEYS[1])
+if(ttl < 0) then
+    -- 锁空闲但前面有人排队，由队首获取
+    return math.floor(staleTime / 3)
+end
+return ttl
@@ -0,0 +1,19 @@
+-- 放弃等待时离开公平锁的等待队列
+-- 锁空闲时通知其他等待者，新的队首立即重新竞争，而不是等到下一次定期重新竞争
+-- 返回 1 表示已离开队列，0 表示不在队列中
+-- KEYS[1] 锁，KEYS[2] 等待队列，KEYS[3] 等待者的存活期限，KEYS[4] 释放锁的通知频道
+-- 1.参数列表
+-- 1.1.持有者标识
+local owner = ARGV[1]
+
+-- 2.移出队列
+local removed = redis.call('zrem', KEYS[2], owner)
+redis.call('zrem', KEYS[3], owner)
+if(removed == 0) then
+    return 0
+end
+-- 3.锁空闲且还有人排队，通知等待的线程
+if(redis.call('exists', KEYS[1]) == 0 and redis.call('zcard', KEYS[2]) > 0) then
+    redis.call('publish', KEYS[4], 1)
+end
+return 1
@@ -0,0 +1,27 @@
+-- 通用信元速率算法（GCRA）限流，只保存下一个请求的理论到达时间（TAT）
+-- 通过返回 0，拒绝返回需要等待的时间（毫秒）
+-- 使用了 time 命令，需要按命令复制
+redis.replicate_commands()
+-- 1.参数列表
+-- 1.1.请求的平均间隔（毫秒），period / limit
+local interval = tonumber(ARGV[1])
+-- 1.2.允许提前到达的时间（毫秒），interval * burst
+local tolerance = tonumber(ARGV[2])
+
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+-- 2.理论到达时间，不存在或已过去时从当前时间开始
+local tat = tonumber(redis.call('get', KEYS[1]))
+if(tat == nil or tat < now) then
+    tat = now
+end
+-- 3.比理论到达时间提前太多，拒绝
+local allowAt = tat - tolerance
+if(now < allowAt) then
+    return allowAt - now
+end
+-- 4.通过，理论到达时间后移一个间隔，过期后等同于不存在
+local newTat = tat + interval
+redis.call('set', KEYS[1], newTat, 'PX', newTat - now)
+return 0
@@ -0,0 +1,16 @@
+-- 获取可重入锁，锁是一个 hash，field 为持有者标识，value 为重入次数
+-- 获取成功返回 nil，失败返回锁的剩余有效时间（毫秒）
+-- 1.参数列表
+-- 1.1.持有者标识
+local owner = ARGV[1]
+-- 1.2.锁的有效时间（毫秒）
+local leaseTime = ARGV[2]
+
+-- 2.锁不存在或由自己持有时，重入次数加 1 并重置有效时间 hincrby key owner 1
+if(redis.call('exists', KEYS[1]) == 0 or redis.call('hexists', KEYS[1], owner) == 1) then
+    redis.call('hincrby', KEYS[1], owner, 1)
+    redis.call('pexpire', KEYS[1], leaseTime)
+    return nil
+end
+-- 3.锁被其他人持有，返回剩余有效时间
+return redis.call('pttl', KEYS[1])
@@ -0,0 +1,5 @@
+-- 看门狗续期，锁仍由自己持有时重置有效时间，返回 1，否则返回 0
+if(redis.call('hexists', KEYS[1], ARGV[1]) == 1) then
+    return redis.call('pexpire', KEYS[1], ARGV[2])
+end
+return 0
@@ -0,0 +1,23 @@
+-- 释放可重入锁，重入次数减 1，减到 0 时删除锁
+-- 返回 nil 表示锁不属于自己，0 表示仍持有（重入），1 表示已释放
+-- KEYS[1] 锁，KEYS[2] 释放锁的通知频道
+-- 1.参数列表
+-- 1.1.持有者标识
+local owner = ARGV[1]
+-- 1.2.锁的有效时间（毫秒）
+local leaseTime = ARGV[2]
+
+-- 2.判断锁是否由自己持有，防止误删
+if(redis.call('hexists', KEYS[1], owner) == 0) then
+    return nil
+end
+-- 3.重入次数减 1 hincrby key owner -1
+if(redis.call('hincrby', KEYS[1], owner, -1) > 0) then
+    -- 仍持有锁，重置有效时间
+    redis.call('pexpire', KEYS[1], leaseTime)
+    return 0
+end
+-- 4.删除锁，通知等待的线程
+redis.call('del', KEYS[1])
+redis.call('publish', KEYS[2], 1)
+return 1
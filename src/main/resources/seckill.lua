@@ -3,7 +3,12 @@
 --- Created by Q.
 --- DateTime: 2023/2/21 10:18
 ---
--- 秒杀校验
+-- 秒杀校验，返回 {结果}，结果为：
+-- 0.下单成功 1.库存不足 2.超过限购数量 3.优惠券未加载 4.未开始（附带开始时间） 5.已结束
+-- 使用 redis 的时间判断活动时间，需要在写命令之前开启命令复制
+-- 所有 key 都属于用户所在的段，带有相同的 hash tag，在 redis 集群中位于同一个 slot
+redis.replicate_commands()
+
 -- 1.参数列表
 -- 1.1.优惠券id
 local voucherId = ARGV[1]
@@ -11,32 +16,75 @@ local voucherId = ARGV[1]
 local userId = ARGV[2]
 -- 1.3.订单id
 local orderId = ARGV[3]
+-- 1.4.用户在位图中的偏移量，-1 表示不能使用位图
+local offset = tonumber(ARGV[4])
 
 -- 2.数据key
--- 2.1.库存key
-local stockKey = 'seckill:stock:' .. voucherId
--- 2.2.订单key
-local orderKey = 'seckill:order:' .. voucherId
+-- 2.1.元数据key，保存开始时间、结束时间、每人限购数量，每段各一份
+local metaKey = KEYS[1]
+-- 2.2.库存key
+local stockKey = KEYS[2]
+-- 2.3.订单key
+local orderKey = KEYS[3]
+-- 2.4.消息队列key，该段所在的分片
+local streamKey = KEYS[4]
+-- 2.5.用户购买数量key，每人限购数量大于1时使用
+local orderCountKey = KEYS[5]
+-- 2.6.已下单用户位图key，元数据中的一人一单方式为 bitmap 时使用
+local orderBitmapKey = KEYS[6]
 
 -- 3.脚本业务
--- 3.1.判断库存是否充足 get stockKey
-if(tonumber(redis.call('get', stockKey)) <= 0) then
-    -- 3.2.库存不足，返回1
-    return 1
+-- 3.1.判断活动时间 hmget metaKey begin end limit dedupe
+local meta = redis.call('hmget', metaKey, 'begin', 'end', 'limit', 'dedupe')
+if(not meta[1]) then
+    -- 元数据未加载，返回3
+    return {3}
+end
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+if(now < tonumber(meta[1])) then
+    -- 未开始，返回4及开始时间
+    return {4, tonumber(meta[1])}
+end
+if(now > tonumber(meta[2])) then
+    -- 已结束，返回5
+    return {5}
+end
+-- 3.2.判断库存是否充足 get stockKey，库存未加载时视为不足
+local stock = tonumber(redis.call('get', stockKey))
+if(stock == nil or stock <= 0) then
+    -- 库存不足，返回1
+    return {1}
 end
--- 3.2.判断用户是否下单 SISMEMBER orderKey userId
-if(redis.call('sismember', orderKey, userId) == 1) then
-    -- 3.3.存在，说明是重复下单，返回2
-    return 2
+-- 3.3.判断用户是否超过限购数量
+local limit = tonumber(meta[3]) or 1
+if(limit <= 1 and meta[4] == 'bitmap' and offset >= 0) then
+    -- 一人一单（位图） SETBIT orderBitmapKey offset 1，返回原来的值
+    if(redis.call('setbit', orderBitmapKey, offset, 1) == 1) then
+        -- 已置位，说明是重复下单，返回2
+        return {2}
+    end
+elseif(limit <= 1) then
+    -- 一人一单 SISMEMBER orderKey userId
+    if(redis.call('sismember', orderKey, userId) == 1) then
+        -- 存在，说明是重复下单，返回2
+        return {2}
+    end
+    -- 下单（保存用户）sadd orderKey userId
+    redis.call('sadd', orderKey, userId)
+else
+    -- 一人多单 HINCRBY orderCountKey userId 1
+    if((tonumber(redis.call('hget', orderCountKey, userId)) or 0) >= limit) then
+        return {2}
+    end
+    redis.call('hincrby', orderCountKey, userId, 1)
 end
 -- 3.4.扣库存 incrby stockKey -1
 redis.call('incrby', stockKey, -1)
--- 3.5.下单（保存用户）sadd orderKey userId
-redis.call('sadd', orderKey, userId)
 
--- 3.6.发送消息到队列中， XADD stream.orders * k1 v1 k2 v2 ...
+-- 3.5.发送消息到队列中， XADD streamKey * k1 v1 k2 v2 ...
 -- 阻塞队列有许多问题，如 jvm 限制，数据无法保证可靠性等，
 -- 因此使用队列，实际业务一般会使用专门的 MQ 中间件而非 Redis
-redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
 
-return 0
\ No newline at end of file
+return {0}
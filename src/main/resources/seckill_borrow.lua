@@ -0,0 +1,12 @@
+-- 从相邻的段借用一个库存，返回 1 表示借出成功，由调用方归入用户所在的段
+-- 1.库存key
+local stockKey = KEYS[1]
+
+-- 2.库存未加载或已售完时不借出
+local stock = tonumber(redis.call('get', stockKey))
+if(stock == nil or stock <= 0) then
+    return 0
+end
+-- 3.扣减库存 incrby stockKey -1
+redis.call('incrby', stockKey, -1)
+return 1
@@ -0,0 +1,47 @@
+-- 按令牌速率放行排队的用户，读取排队人数、扣减令牌、增加已放行的排队号在一个脚本中完成，
+-- 所有节点的定时任务同时执行时不会重复放行，返回 {放行人数, 未使用的本地令牌数}
+-- 使用 redis 的时间计算补充的令牌，需要在写命令之前开启命令复制
+redis.replicate_commands()
+
+-- 1.参数列表
+-- 1.1.每秒补充的令牌数
+local rate = tonumber(ARGV[1])
+-- 1.2.桶的容量
+local burst = tonumber(ARGV[2])
+-- 1.3.调用方本地剩余的令牌数，优先使用
+local localTokens = tonumber(ARGV[3])
+
+-- 2.数据key，带有相同的 hash tag
+-- 2.1.令牌桶
+local bucketKey = KEYS[1]
+-- 2.2.最大的排队号
+local seqKey = KEYS[2]
+-- 2.3.已放行的排队号
+local servedKey = KEYS[3]
+
+-- 3.计算排队人数
+local waiting = (tonumber(redis.call('get', seqKey)) or 0) - (tonumber(redis.call('get', servedKey)) or 0)
+if(waiting <= 0) then
+    return {0, localTokens}
+end
+-- 4.先使用本地令牌
+local granted = math.min(waiting, localTokens)
+localTokens = localTokens - granted
+-- 5.不足时从令牌桶中获取，与 token_bucket.lua 相同
+if(granted < waiting) then
+    local time = redis.call('time')
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    local bucket = redis.call('hmget', bucketKey, 'tokens', 'ts')
+    local tokens = tonumber(bucket[1]) or burst
+    local ts = tonumber(bucket[2]) or now
+    tokens = math.min(burst, tokens + math.max(0, now - ts) * rate / 1000)
+    local taken = math.min(waiting - granted, math.floor(tokens))
+    granted = granted + taken
+    redis.call('hset', bucketKey, 'tokens', tostring(tokens - taken), 'ts', now)
+    redis.call('pexpire', bucketKey, math.ceil(burst / rate * 1000) + 1000)
+end
+-- 6.放行 incrby servedKey granted
+if(granted > 0) then
+    redis.call('incrby', servedKey, granted)
+end
+return {granted, localTokens}
@@ -0,0 +1,48 @@
+-- 取消超时未支付的订单后，归还 redis 中的库存及用户的购买资格
+-- 以订单加入该段已归还订单集合成功作为判断，同一个订单只会归还一次，返回 1 表示已归还
+-- 所有 key 都属于用户所在的段，在 redis 集群中位于同一个 slot，订单由调用方从全局的延时队列中删除
+-- 1.参数列表
+-- 1.1.订单id
+local orderId = ARGV[1]
+-- 1.2.用户id
+local userId = ARGV[2]
+-- 1.3.用户在位图中的偏移量，-1 表示不能使用位图
+local offset = tonumber(ARGV[3])
+-- 1.4.已归还订单集合的过期时间（秒）
+local restoredTtl = ARGV[4]
+
+-- 2.数据key
+-- 2.1.已归还订单集合key
+local restoredKey = KEYS[1]
+-- 2.2.元数据key
+local metaKey = KEYS[2]
+-- 2.3.库存key，归还到用户所在的段
+local stockKey = KEYS[3]
+-- 2.4.订单key
+local orderKey = KEYS[4]
+-- 2.5.用户购买数量key
+local orderCountKey = KEYS[5]
+-- 2.6.已下单用户位图key
+local orderBitmapKey = KEYS[6]
+
+-- 3.脚本业务
+-- 3.1.记录已归还的订单 sadd restoredKey orderId，已存在说明已经归还过
+if(redis.call('sadd', restoredKey, orderId) == 0) then
+    return 0
+end
+redis.call('expire', restoredKey, restoredTtl)
+-- 3.2.归还库存 incrby stockKey 1，库存未加载时不处理，加载时会从数据库读取已归还的库存
+if(redis.call('exists', stockKey) == 1) then
+    redis.call('incrby', stockKey, 1)
+end
+-- 3.3.归还用户的购买资格，与下单时的记录方式一致
+local meta = redis.call('hmget', metaKey, 'limit', 'dedupe')
+local limit = tonumber(meta[1]) or 1
+if(limit <= 1 and meta[2] == 'bitmap' and offset >= 0) then
+    redis.call('setbit', orderBitmapKey, offset, 0)
+elseif(limit <= 1) then
+    redis.call('srem', orderKey, userId)
+elseif(tonumber(redis.call('hincrby', orderCountKey, userId, -1)) <= 0) then
+    redis.call('hdel', orderCountKey, userId)
+end
+return 1
@@ -0,0 +1,25 @@
+-- 领取排队号，同一个用户重复领取时返回原来的排队号，返回 {排队号, 已放行的排队号}
+-- 1.参数列表
+-- 1.1.用户id
+local userId = ARGV[1]
+-- 1.2.排队号的有效时间（秒）
+local ttl = tonumber(ARGV[2])
+
+-- 2.数据key
+-- 2.1.用户与排队号的映射
+local ticketKey = KEYS[1]
+-- 2.2.最大的排队号
+local seqKey = KEYS[2]
+-- 2.3.已放行的排队号
+local servedKey = KEYS[3]
+
+local served = tonumber(redis.call('get', servedKey)) or 0
+local ticket = tonumber(redis.call('hget', ticketKey, userId))
+if(ticket == nil) then
+    ticket = redis.call('incr', seqKey)
+    redis.call('hset', ticketKey, userId, ticket)
+end
+redis.call('expire', ticketKey, ttl)
+redis.call('expire', seqKey, ttl)
+redis.call('expire', servedKey, ttl)
+return {ticket, served}
@@ -0,0 +1,26 @@
+-- 滑动窗口日志限流，zset 记录窗口内每个请求的时间
+-- 通过返回 0，拒绝返回需要等待的时间（毫秒）
+-- 使用了 time 命令，需要按命令复制
+redis.replicate_commands()
+-- 1.参数列表
+-- 1.1.窗口内允许的请求数
+local limit = tonumber(ARGV[1])
+-- 1.2.窗口大小（毫秒）
+local window = tonumber(ARGV[2])
+-- 1.3.本次请求的唯一标识
+local member = ARGV[3]
+
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+-- 2.删除窗口外的请求
+redis.call('zremrangebyscore', KEYS[1], '-inf', now - window)
+-- 3.窗口内的请求数未达到上限，记录本次请求
+if(redis.call('zcard', KEYS[1]) < limit) then
+    redis.call('zadd', KEYS[1], now, member)
+    redis.call('pexpire', KEYS[1], window)
+    return 0
+end
+-- 4.达到上限，等待最早的请求移出窗口
+local oldest = redis.call('zrange', KEYS[1], 0, 0, 'WITHSCORES')
+return math.max(tonumber(oldest[2]) + window - now, 1)
@@ -0,0 +1,28 @@
+-- 令牌桶，一次获取多个令牌，返回实际获取的数量
+-- 使用 redis 的时间计算补充的令牌，需要在写命令之前开启命令复制
+redis.replicate_commands()
+
+-- 1.参数列表
+-- 1.1.每秒补充的令牌数
+local rate = tonumber(ARGV[1])
+-- 1.2.桶的容量
+local burst = tonumber(ARGV[2])
+-- 1.3.请求的令牌数
+local requested = tonumber(ARGV[3])
+
+-- 2.计算当前令牌数 hmget key tokens ts
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+local bucket = redis.call('hmget', KEYS[1], 'tokens', 'ts')
+local tokens = tonumber(bucket[1]) or burst
+local ts = tonumber(bucket[2]) or now
+tokens = math.min(burst, tokens + math.max(0, now - ts) * rate / 1000)
+
+-- 3.扣减令牌
+local granted = math.min(requested, math.floor(tokens))
+tokens = tokens - granted
+redis.call('hset', KEYS[1], 'tokens', tostring(tokens), 'ts', now)
+-- 桶满之后数据就没有意义了，过期删除
+redis.call('pexpire', KEYS[1], math.ceil(burst / rate * 1000) + 1000)
+
+return granted
@@ -0,0 +1,13 @@
+-- 续期 worker id 的租约，租约仍属于当前节点时延长过期时间，返回 1，否则返回 0
+-- 1.参数列表
+-- 1.1.节点标识
+local owner = ARGV[1]
+-- 1.2.租约时间（毫秒）
+local ttl = ARGV[2]
+
+-- 2.判断租约是否属于当前节点 get key
+if(redis.call('get', KEYS[1]) == owner) then
+    -- 延长过期时间 pexpire key ttl
+    return redis.call('pexpire', KEYS[1], ttl)
+end
+return 0
@@ -0,0 +1,56 @@
+package com.qqdp;
+
+import com.qqdp.entity.Shop;
+import com.qqdp.utils.CacheCodec;
+import com.qqdp.utils.JsonCacheCodec;
+import com.qqdp.utils.SmileCacheCodec;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存序列化方式的基准测试，对比 json 与 smile 序列化、反序列化一个店铺的耗时
+ * <p>
+ * 运行：mvn -P benchmark test-compile exec:exec -Dbenchmark=CacheCodecBenchmark
+ * <br>
+ * 返回值由 JMH 消费，不会被 JIT 当作无用代码消除；每次测量在独立的 JVM 中运行，预热后再计时
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CacheCodecBenchmark {
+
+    @Param({"json", "smile"})
+    private String codecName;
+
+    private CacheCodec codec;
+    private Shop shop;
+    private byte[] bytes;
+
+    @Setup
+    public void setup() {
+        codec = "smile".equals(codecName) ? new SmileCacheCodec() : new JsonCacheCodec();
+        // 准备数据，模拟店铺详情
+        shop = new Shop().setId(1L).setName("103茶餐厅").setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关").setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192).setY(30.316078).setAvgPrice(80L)
+                .setSold(4215).setComments(3035).setScore(37).setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.now()).setUpdateTime(LocalDateTime.now());
+        bytes = codec.encode(shop);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return codec.encode(shop);
+    }
+
+    @Benchmark
+    public Shop decode() {
+        return codec.decode(bytes, 0, Shop.class);
+    }
+}
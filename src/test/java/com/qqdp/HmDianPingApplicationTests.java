@@ -1,19 +1,76 @@
 package com.qqdp;
 
+import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.qqdp.dto.UserDTO;
+import com.qqdp.entity.SeckillVoucher;
+import com.qqdp.entity.Shop;
+import com.qqdp.entity.VoucherOrder;
+import com.qqdp.service.ISeckillVoucherService;
+import com.qqdp.service.IVoucherOrderService;
+import com.qqdp.utils.CacheClient;
+import com.qqdp.utils.CacheCodec;
+import com.qqdp.utils.CacheCodecs;
+import com.qqdp.utils.CacheWarmer;
+import com.qqdp.utils.HotKeyDetector;
+import com.qqdp.utils.ILock;
+import com.qqdp.utils.JsonCacheCodec;
+import com.qqdp.utils.RateLimit;
+import com.qqdp.utils.RateLimiter;
+import com.qqdp.utils.RedisConstants;
+import com.qqdp.utils.RedisData;
+import com.qqdp.utils.RedisLocks;
+import com.qqdp.utils.RedisReentrantLock;
+import com.qqdp.utils.SeckillStock;
+import com.qqdp.utils.SimpleRedisLock;
+import com.qqdp.utils.SmileCacheCodec;
+import io.lettuce.core.cluster.SlotHash;
+import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.test.context.junit4.SpringRunner;
 
 import javax.annotation.Resource;
+import javax.sql.DataSource;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
-@SpringBootTest
+// 启动时的缓存预热需要 mysql 和 redis，由 testCacheWarmUp 单独执行
+@SpringBootTest(properties = "qqdp.warmup.enabled=false")
 @RunWith(SpringRunner.class)
 public class HmDianPingApplicationTests {
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisLocks redisLocks;
+    @Resource
+    private RateLimiter rateLimiter;
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+    @Resource
+    private CacheWarmer cacheWarmer;
+    @Resource
+    private CacheClient cacheClient;
 
     @Test
     public void testHyperLogLog(){
@@ -34,4 +91,392 @@ public class HmDianPingApplicationTests {
         System.out.println(stringRedisTemplate.opsForHyperLogLog().size("hll1"));
     }
 
+    @Test
+    public void testCacheCodec() {
+        // 准备数据，模拟店铺详情
+        Shop shop = new Shop().setId(1L).setName("103茶餐厅").setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关").setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192).setY(30.316078).setAvgPrice(80L)
+                .setSold(4215).setComments(3035).setScore(37).setOpenHours("10:00-22:00")
+                // json 中的时间精确到毫秒
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 3, 12, 0, 0));
+        UserDTO user = new UserDTO();
+        user.setId(1L);
+        user.setNickName("可可今天不吃肉");
+        user.setIcon("/imgs/icons/kkjtbcr.jpg");
+        user.setSignCount(3);
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(LocalDateTime.of(2022, 1, 3, 12, 0, 0));
+        redisData.setData(shop);
+        // 每种写入方式都能还原原数据
+        for (String name : new String[]{"json", "smile"}) {
+            CacheCodecs codecs = new CacheCodecs(name);
+            Assert.assertEquals(name, shop, codecs.decode(codecs.encode(shop), Shop.class));
+            Assert.assertEquals(name, user, codecs.decode(codecs.encode(user), UserDTO.class));
+            Assert.assertEquals(name, Arrays.asList(shop, shop),
+                    codecs.decodeList(codecs.encode(Arrays.asList(shop, shop)), Shop.class));
+            RedisData logical = codecs.decodeLogical(codecs.encode(redisData), Shop.class);
+            Assert.assertEquals(name, redisData.getExpireTime(), logical.getExpireTime());
+            Assert.assertEquals(name, shop, logical.getData());
+            Assert.assertNull(name, codecs.decode(new byte[0], Shop.class));
+        }
+        // 没有数据头的旧 json 缓存在切换为 smile 后仍能读取
+        CacheCodecs smile = new CacheCodecs("smile");
+        byte[] legacy = JSONUtil.toJsonStr(shop).getBytes(StandardCharsets.UTF_8);
+        Assert.assertEquals(shop, smile.decode(legacy, Shop.class));
+        Assert.assertEquals(user, smile.decode(JSONUtil.toJsonStr(user).getBytes(StandardCharsets.UTF_8), UserDTO.class));
+        Assert.assertArrayEquals(legacy, new CacheCodecs("json").encode(shop));
+        // 序列化、反序列化的耗时见 CacheCodecBenchmark
+        for (CacheCodec codec : new CacheCodec[]{new JsonCacheCodec(), new SmileCacheCodec()}) {
+            byte[] bytes = codec.encode(shop);
+            Assert.assertEquals(shop, codec.decode(bytes, 0, Shop.class));
+            System.out.println(codec.getClass().getSimpleName() + " 大小：" + bytes.length + " byte");
+        }
+    }
+
+    @Resource
+    private DataSource dataSource;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    // 需要本地的 redis，不可用时跳过
+    private void assumeRedis() {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) RedisConnection::ping);
+        } catch (Exception e) {
+            Assume.assumeNoException(e);
+        }
+    }
+
+    // 需要本地的 mysql，不可用时跳过
+    private void assumeMysql() {
+        try (Connection ignored = dataSource.getConnection()) {
+            // 连接可用
+        } catch (Exception e) {
+            Assume.assumeNoException(e);
+        }
+    }
+
+    @Test
+    public void testBatchOrderPersistence() {
+        assumeMysql();
+        // 准备数据，使用一个不会冲突的优惠券 id
+        long voucherId = 9_000_000_000L + System.currentTimeMillis() % 1_000_000;
+        SeckillVoucher voucher = new SeckillVoucher().setVoucherId(voucherId).setStock(1000000)
+                .setBeginTime(LocalDateTime.now()).setEndTime(LocalDateTime.now().plusDays(1));
+        seckillVoucherService.save(voucher);
+        long orderId = System.currentTimeMillis() << 20;
+        try {
+            // 逐条写入：每个订单一个事务，一次扣减库存、一次 insert
+            int single = 2000;
+            long begin = System.nanoTime();
+            for (int i = 0; i < single; i++) {
+                voucherOrderService.createVoucherOrder(new VoucherOrder().setId(orderId++).setUserId((long) i)
+                        .setVoucherId(voucherId).setStatus(1).setCreateTime(LocalDateTime.now()));
+            }
+            long singleNanos = System.nanoTime() - begin;
+            // 批量写入：每 200 个订单一个事务，一次扣减库存、一次多行 insert
+            int batch = 200;
+            int total = 20000;
+            begin = System.nanoTime();
+            for (int i = 0; i < total; i += batch) {
+                List<VoucherOrder> orders = new ArrayList<>(batch);
+                for (int j = 0; j < batch; j++) {
+                    orders.add(new VoucherOrder().setId(orderId++).setUserId((long) (i + j))
+                            .setVoucherId(voucherId).setStatus(1).setCreateTime(LocalDateTime.now()));
+                }
+                voucherOrderService.createVoucherOrders(orders);
+            }
+            long batchNanos = System.nanoTime() - begin;
+            System.out.println("逐条写入：" + single * 1_000_000_000L / singleNanos + " 单/秒，"
+                    + "批量写入：" + total * 1_000_000_000L / batchNanos + " 单/秒");
+            Assert.assertEquals(1000000 - single - total,
+                    seckillVoucherService.getById(voucherId).getStock().intValue());
+        } finally {
+            voucherOrderService.remove(new QueryWrapper<VoucherOrder>().eq("voucher_id", voucherId));
+            seckillVoucherService.removeById(voucherId);
+        }
+    }
+
+    @Test
+    public void testSeckillDedupeMemory() {
+        assumeRedis();
+        String setKey = "test:dedupe:set";
+        String bitmapKey = "test:dedupe:bitmap";
+        try {
+            for (int users : new int[]{1_000_000, 10_000_000}) {
+                stringRedisTemplate.delete(Arrays.asList(setKey, bitmapKey));
+                // 准备数据，用户 id 为 1 ~ users，所有用户都已下单
+                for (int i = 1; i <= users; i += 10000) {
+                    int from = i;
+                    stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                        for (int j = from; j < from + 10000 && j <= users; j += 1000) {
+                            byte[][] members = new byte[Math.min(1000, users - j + 1)][];
+                            for (int k = 0; k < members.length; k++) {
+                                members[k] = String.valueOf(j + k).getBytes(StandardCharsets.UTF_8);
+                            }
+                            connection.sAdd(setKey.getBytes(StandardCharsets.UTF_8), members);
+                        }
+                        return null;
+                    });
+                }
+                // 位图的 0 ~ users 位全部置位，第 0 位不使用
+                byte[] bitmap = new byte[users / 8 + 1];
+                Arrays.fill(bitmap, (byte) 0xFF);
+                stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                        connection.set(bitmapKey.getBytes(StandardCharsets.UTF_8), bitmap));
+                Assert.assertEquals(users, stringRedisTemplate.opsForSet().size(setKey).intValue());
+                // 校验耗时，每次一个 redis 往返
+                int times = 10000;
+                Random random = new Random();
+                long begin = System.nanoTime();
+                for (int i = 0; i < times; i++) {
+                    Assert.assertTrue(stringRedisTemplate.opsForSet()
+                            .isMember(setKey, String.valueOf(random.nextInt(users) + 1)));
+                }
+                long setNanos = (System.nanoTime() - begin) / times;
+                begin = System.nanoTime();
+                for (int i = 0; i < times; i++) {
+                    Assert.assertTrue(stringRedisTemplate.opsForValue().getBit(bitmapKey, random.nextInt(users) + 1));
+                }
+                long bitmapNanos = (System.nanoTime() - begin) / times;
+                // 位图每个用户 1 bit，远小于 set
+                Assert.assertTrue(memoryUsage(bitmapKey) < memoryUsage(setKey));
+                System.out.println(users + " 个用户，set：" + memoryUsage(setKey) / 1024 + " KB，"
+                        + setNanos / 1000 + " us/op；bitmap：" + memoryUsage(bitmapKey) / 1024 + " KB，"
+                        + bitmapNanos / 1000 + " us/op");
+            }
+        } finally {
+            stringRedisTemplate.delete(Arrays.asList(setKey, bitmapKey));
+        }
+    }
+
+    @Test
+    public void testSeckillKeySlots() {
+        // 秒杀脚本及归还脚本操作的 key 在 redis 集群中必须位于同一个 slot，不需要 redis
+        SeckillStock stock = new SeckillStock(stringRedisTemplate, 8, 4);
+        Set<Integer> segmentSlots = new HashSet<>();
+        for (long voucherId : new long[]{1L, 10L, 12345678L}) {
+            for (int segment = 0; segment < 8; segment++) {
+                int slot = SlotHash.getSlot(stock.streamKey(voucherId, segment));
+                for (String key : Arrays.asList(stock.metaKey(voucherId, segment), stock.stockKey(voucherId, segment),
+                        stock.orderKey(voucherId, segment), stock.orderCountKey(voucherId, segment),
+                        stock.orderBitmapKey(voucherId, segment), stock.restoredKey(voucherId, segment))) {
+                    Assert.assertEquals(key, slot, SlotHash.getSlot(key));
+                }
+                if (voucherId == 10L) {
+                    segmentSlots.add(slot);
+                }
+            }
+        }
+        // 段数超过分片数时，各段分布在所有分片上
+        Assert.assertEquals(4, segmentSlots.size());
+    }
+
+    // MEMORY USAGE key SAMPLES 0，统计集合的全部元素
+    private long memoryUsage(String key) {
+        Object usage = stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.execute("MEMORY",
+                "USAGE".getBytes(StandardCharsets.UTF_8), key.getBytes(StandardCharsets.UTF_8),
+                "SAMPLES".getBytes(StandardCharsets.UTF_8), "0".getBytes(StandardCharsets.UTF_8)));
+        return usage == null ? 0 : (Long) usage;
+    }
+
+    @Test
+    public void testLockContention() throws InterruptedException {
+        assumeRedis();
+        // 可重入：同一个线程可以重复获取
+        ILock reentrant = new RedisReentrantLock(stringRedisTemplate, "test:reentrant");
+        Assert.assertTrue(reentrant.tryLock(10));
+        Assert.assertTrue(reentrant.tryLock(10));
+        reentrant.unlock();
+        Assert.assertTrue(stringRedisTemplate.hasKey("lock:test:reentrant"));
+        reentrant.unlock();
+        Assert.assertFalse(stringRedisTemplate.hasKey("lock:test:reentrant"));
+        ILock simple = new SimpleRedisLock(stringRedisTemplate, "test:simple");
+        Assert.assertTrue(simple.tryLock(10));
+        Assert.assertFalse(simple.tryLock(10));
+        simple.unlock();
+
+        // 竞争：多个线程争抢同一个锁，获取失败时立即重试
+        int threads = 8;
+        int times = 200;
+        for (String name : new String[]{"SimpleRedisLock", "RedisReentrantLock"}) {
+            LongAdder attempts = new LongAdder();
+            // 只在持有锁时先读后写，互斥时不会丢失更新
+            AtomicInteger counter = new AtomicInteger();
+            CountDownLatch latch = new CountDownLatch(threads);
+            long begin = System.nanoTime();
+            for (int i = 0; i < threads; i++) {
+                new Thread(() -> {
+                    ILock lock = "SimpleRedisLock".equals(name)
+                            ? new SimpleRedisLock(stringRedisTemplate, "test:contention:simple")
+                            : new RedisReentrantLock(stringRedisTemplate, "test:contention:reentrant");
+                    for (int j = 0; j < times; j++) {
+                        do {
+                            attempts.increment();
+                        } while (!lock.tryLock(10));
+                        counter.set(counter.get() + 1);
+                        lock.unlock();
+                    }
+                    latch.countDown();
+                }).start();
+            }
+            latch.await();
+            long nanos = System.nanoTime() - begin;
+            Assert.assertEquals(name, threads * times, counter.get());
+            Assert.assertTrue(name, attempts.sum() >= threads * times);
+            System.out.println(name + "：" + threads * times * 1_000_000_000L / nanos + " 次/秒，平均每次获取尝试 "
+                    + attempts.sum() / (threads * times) + " 次");
+        }
+    }
+
+    @Test
+    public void testLockHandover() throws InterruptedException {
+        assumeRedis();
+        // 阻塞等待：轮询与释放通知唤醒的交接延迟，持有锁的时间相同
+        int threads = 8;
+        int times = 50;
+        String[] names = {"SimpleRedisLock", "RedisLocks.getLock", "RedisLocks.getFairLock"};
+        for (String name : names) {
+            LongAdder waitNanos = new LongAdder();
+            // 子线程中的断言失败不会使测试失败，记录成功获取的次数在主线程中断言
+            LongAdder acquired = new LongAdder();
+            AtomicInteger counter = new AtomicInteger();
+            CountDownLatch latch = new CountDownLatch(threads);
+            long begin = System.nanoTime();
+            for (int i = 0; i < threads; i++) {
+                new Thread(() -> {
+                    ILock lock = "SimpleRedisLock".equals(name)
+                            ? new SimpleRedisLock(stringRedisTemplate, "test:handover:simple")
+                            : "RedisLocks.getLock".equals(name)
+                            ? redisLocks.getLock("test:handover:reentrant")
+                            : redisLocks.getFairLock("test:handover:fair");
+                    try {
+                        for (int j = 0; j < times; j++) {
+                            long start = System.nanoTime();
+                            if (!lock.tryLock(30, 10, TimeUnit.SECONDS)) {
+                                continue;
+                            }
+                            waitNanos.add(System.nanoTime() - start);
+                            acquired.increment();
+                            try {
+                                counter.set(counter.get() + 1);
+                                Thread.sleep(1);
+                            } finally {
+                                lock.unlock();
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        latch.countDown();
+                    }
+                }).start();
+            }
+            latch.await();
+            long millis = (System.nanoTime() - begin) / 1_000_000;
+            Assert.assertEquals(name, threads * times, acquired.sum());
+            Assert.assertEquals(name, threads * times, counter.get());
+            System.out.println(name + "：" + threads * times + " 次获取耗时 " + millis + " ms，平均等待 "
+                    + waitNanos.sum() / (threads * times) / 1000 + " us");
+        }
+    }
+
+    @Test
+    public void testRateLimiter() {
+        assumeRedis();
+        for (RateLimit.Algorithm algorithm : RateLimit.Algorithm.values()) {
+            Map<String, Object> attributes = new HashMap<>();
+            attributes.put("name", "test:" + algorithm);
+            attributes.put("algorithm", algorithm);
+            attributes.put("limit", 10);
+            attributes.put("period", 60L);
+            attributes.put("burst", 9);
+            RateLimit rule = AnnotationUtils.synthesizeAnnotation(attributes, RateLimit.class, null);
+            String id = "user:" + System.nanoTime();
+            // 滑动窗口一个周期内最多 10 次，GCRA 允许 1 + 9 次突发
+            int allowed = 0;
+            long begin = System.nanoTime();
+            for (int i = 0; i < 10_000; i++) {
+                if (rateLimiter.tryAcquire(rule, id) == 0) {
+                    allowed++;
+                }
+            }
+            long nanos = System.nanoTime() - begin;
+            Assert.assertEquals(10, allowed);
+            System.out.println(algorithm + "：10000 次请求耗时 " + nanos / 1_000_000 + " ms，平均 "
+                    + nanos / 10_000 + " ns，" + rateLimiter.snapshot().get("rules"));
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testHotKeyDetector() {
+        // 一个热点 key 与大量长尾 key 混合访问，只在本地统计，不需要 redis
+        String hot = "cache:shop:hot-" + System.nanoTime();
+        Random random = new Random(1);
+        int times = 1_000_000;
+        long begin = System.nanoTime();
+        for (int i = 0; i < times; i++) {
+            hotKeyDetector.record(i % 10 == 0 ? hot : "cache:shop:" + random.nextInt(100_000));
+        }
+        long nanos = System.nanoTime() - begin;
+        Assert.assertTrue(hotKeyDetector.isHot(hot));
+        List<Map<String, Object>> top = (List<Map<String, Object>>) hotKeyDetector.snapshot().get("topK");
+        Assert.assertEquals(hot, top.get(0).get("key"));
+        System.out.println("记录 " + times + " 次访问耗时 " + nanos / 1_000_000 + " ms，平均 " + nanos / times
+                + " ns，top-3：" + top.subList(0, Math.min(3, top.size())));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testCacheWarmUp() {
+        assumeMysql();
+        assumeRedis();
+        boolean done = cacheWarmer.warmUp();
+        Map<String, Object> snapshot = cacheWarmer.snapshot();
+        System.out.println("预热" + (done ? "完成" : "未全部完成") + "：" + snapshot);
+        Map<String, Map<String, Object>> tasks = (Map<String, Map<String, Object>>) snapshot.get("tasks");
+        tasks.forEach((name, task) -> Assert.assertNotEquals(name, "FAILED", task.get("status")));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testShopDegrade() {
+        assumeRedis();
+        // 写入缓存时同时写入影子副本，删除缓存后模拟数据库不可用
+        long id = -System.nanoTime();
+        String key = RedisConstants.CACHE_SHOP_KEY + id;
+        Shop shop = new Shop();
+        shop.setId(id);
+        shop.setName("降级测试");
+        try {
+            cacheClient.set(key, shop, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            cacheClient.delete(key);
+            LongAdder dbCalls = new LongAdder();
+            int times = 100;
+            long begin = System.nanoTime();
+            for (int i = 0; i < times; i++) {
+                Shop result = cacheClient.queryWithMutex(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, s -> {
+                    dbCalls.increment();
+                    throw new IllegalStateException("数据库不可用");
+                }, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+                Assert.assertEquals("降级测试", result.getName());
+            }
+            long nanos = System.nanoTime() - begin;
+            // 旧数据不会写回缓存，熔断器打开后不再查询数据库
+            Assert.assertNull(stringRedisTemplate.opsForValue().get(key));
+            Assert.assertTrue(dbCalls.sum() < times);
+            Map<String, Object> prefixes = (Map<String, Object>) cacheClient.getDegradeStats().get("prefixes");
+            System.out.println("降级查询 " + times + " 次，查询数据库 " + dbCalls.sum() + " 次，平均 "
+                    + nanos / times / 1000 + " us，熔断器：" + prefixes.get(RedisConstants.CACHE_SHOP_KEY));
+        } finally {
+            // 断言失败时也要删除影子副本及缓存
+            stringRedisTemplate.delete(Arrays.asList(key, RedisConstants.CACHE_SHADOW_KEY + key));
+        }
+    }
 }